@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variants of the ExternalServices operations.  Each call returns
+ * immediately; the future completes with the same result the blocking call would
+ * have returned.  The calling thread never waits on cloud I/O.
+ */
+public interface AsyncExternalServices extends ExternalServices {
+    CompletableFuture<ExternalResult> publishMessageAsync(String topic, String messageContents);
+
+    CompletableFuture<ExternalResult> publishMessageAsync(Credential credential, String topic, String messageContents);
+
+    CompletableFuture<ExternalResult> publishMessagesAsync(String topic, List<String> messages);
+
+    CompletableFuture<ExternalResult> publishMessagesAsync(Credential credential, String topic, List<String> messages);
+
+    CompletableFuture<ExternalResult> publishMetricAsync(String namespace, String metricName, String dimensionName, String dimensionValue, double value);
+    CompletableFuture<ExternalResult> publishMetricAsync(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value);
+
+    CompletableFuture<ExternalResult> publishMetricsAsync(String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values);
+    CompletableFuture<ExternalResult> publishMetricsAsync(Credential credential, String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values);
+
+    CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value);
+    CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value);
+
+    /**
+     * Read a file from S3 to an InputStream.  The callback runs on a background
+     * thread, not the caller's.
+     *
+     * @param url URL to read the file from
+     * @param callback Do something with the InputStream
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer callback, String profile, String region);
+
+    /**
+     * Read a file from S3 to an InputStream, using the default S3 profile.  The
+     * callback runs on a background thread, not the caller's.
+     *
+     * @param url URL to read the file from
+     * @param callback Do something with the InputStream
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer callback);
+
+    /**
+     * Read a zip archive from S3 one entry at a time, using the supplied S3 profile.
+     * @param url URL to read the archive from
+     * @param callback Called with each entry's name and content, on a worker thread
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer callback, String profile, String region);
+
+    /**
+     * Read a zip archive from S3 one entry at a time using the default S3 profile.
+     * @param url URL to read the archive from
+     * @param callback Called with each entry's name and content, on a worker thread
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer callback);
+
+    /**
+     * Copy a file from S3 to disk, using the supplied S3 profile.
+     * @param url URL to read the file from
+     * @param file destination path on disk
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getFileAsync(String url, String file, String profile, String region);
+
+    /**
+     * Copy a file from S3 to disk using the default S3 profile.
+     * @param url URL to read the file from
+     * @param file destination path on disk
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getFileAsync(String url, String file);
+
+    /**
+     * Copy every object under an S3 prefix to a directory on disk, using the supplied S3 profile.
+     * @param url URL of the prefix to read
+     * @param directory destination directory on disk
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory, String profile, String region);
+
+    /**
+     * Copy every object under an S3 prefix to a directory on disk using the default S3 profile.
+     * @param url URL of the prefix to read
+     * @param directory destination directory on disk
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory);
+
+    /**
+     * Copy a file on disk to S3, using the supplied S3 profile.
+     * @param url
+     * @param file
+     * @param profile
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> putFileAsync(String url, String file, String profile, String region);
+
+    /**
+     * Copy a file on disk to S3 using the default S3 profile.
+     * @param url
+     * @param file
+     * @return future result
+     */
+    CompletableFuture<ExternalResult> putFileAsync(String url, String file);
+}
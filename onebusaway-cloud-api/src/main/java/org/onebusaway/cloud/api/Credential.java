@@ -15,6 +15,8 @@
  */
 package org.onebusaway.cloud.api;
 
+import java.util.Objects;
+
 /**
  * encapsulates the various types of authentication mechanisms
  * such as api key, external credential, user/password...
@@ -82,6 +84,22 @@ public class Credential {
         _type = type;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Credential)) return false;
+        Credential that = (Credential) o;
+        return _type == that._type
+                && Objects.equals(_key, that._key)
+                && Objects.equals(_keyName, that._keyName)
+                && Objects.equals(_value, that._value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(_type, _key, _keyName, _value);
+    }
+
     public String toString() {
         return "Credential{" + (getType()==null?"NuLl":getType().toString()) + "(" + _key + ")}";
     }
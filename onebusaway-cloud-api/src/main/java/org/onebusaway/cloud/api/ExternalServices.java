@@ -15,7 +15,21 @@
  */
 package org.onebusaway.cloud.api;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * Abstract common cloud functions into an interface with the hopes of keeping OneBusAway
@@ -25,6 +39,52 @@ import java.util.List;
 public interface ExternalServices {
     ExternalResult publishMessage(String topic, String messageConents);
 
+    /**
+     * Publish a message with the given credential.
+     * @param credential credential to publish with, or null for the default
+     * @param topic topic ARN, routed to the ARN's region, or a topic name in the credential's region
+     * @param messageContents message body
+     * @return result; the default only supports a null credential
+     */
+    default ExternalResult publishMessage(Credential credential, String topic, String messageContents) {
+        if (credential == null) {
+            return publishMessage(topic, messageContents);
+        }
+        return unsupported("publishMessage with a credential");
+    }
+
+    /**
+     * Publish several messages to the same topic, batched into as few requests as possible.
+     * @param topic topic to publish to
+     * @param messages message bodies, published in order
+     * @return result; when messages are sent immediately it reports each message.  The
+     * default publishes each message on its own and succeeds only if all of them do.
+     */
+    default ExternalResult publishMessages(String topic, List<String> messages) {
+        List<String> errors = new ArrayList<>();
+        for (String message : messages) {
+            ExternalResult result = publishMessage(topic, message);
+            if (!result.getSuccess()) {
+                errors.add(result.getErrorMessage());
+            }
+        }
+        return result(errors.isEmpty(), errors.isEmpty() ? null : String.join("; ", errors));
+    }
+
+    /**
+     * Publish several messages to the same topic with the given credential.
+     * @param credential credential to publish with, or null for the default
+     * @param topic topic ARN or name
+     * @param messages message bodies, published in order
+     * @return result; the default only supports a null credential
+     */
+    default ExternalResult publishMessages(Credential credential, String topic, List<String> messages) {
+        if (credential == null) {
+            return publishMessages(topic, messages);
+        }
+        return unsupported("publishMessages with a credential");
+    }
+
     ExternalResult publishMetric(String namespace, String metricName, String dimensionName, String dimensionValue, double value);
     ExternalResult publishMetric(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value);
 
@@ -34,6 +94,64 @@ public interface ExternalServices {
     ExternalResult publishMultiDimensionalMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value);
     ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value);
 
+    /**
+     * Publish a value described by the metric's unit, storage resolution and, if it
+     * has one, timestamp.  A metric without a timestamp is stamped when this is called,
+     * not when it reaches the service.  The default publishes by name only, dropping
+     * the unit, resolution and timestamp.
+     */
+    default ExternalResult publishMetric(String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(namespace, metric.getName(), dimensionName, dimensionValue, value);
+    }
+
+    default ExternalResult publishMetric(Credential credential, String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(credential, namespace, metric.getName(), dimensionName, dimensionValue, value);
+    }
+
+    default ExternalResult publishMultiDimensionalMetric(String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(namespace, metric.getName(), dimensionName, dimensionValue, value);
+    }
+
+    default ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(credential, namespace, metric.getName(), dimensionName, dimensionValue, value);
+    }
+
+    /**
+     * Register a metric series for repeated recording, e.g. once per vehicle update.
+     * Register once and keep the handle; registering the same series again returns
+     * a handle to the same series.
+     *
+     * The default handle publishes every value on its own through publishMultiDimensionalMetric.
+     *
+     * @param dimensionName and dimensionValue may both be null for a series without dimensions
+     */
+    default MetricHandle registerMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return registerMetric(null, namespace, metricName, dimensionName, dimensionValue);
+    }
+
+    default MetricHandle registerMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        String[] names = dimensionName == null ? new String[0] : dimensionName.clone();
+        String[] values = dimensionValue == null ? new String[0] : dimensionValue.clone();
+        if (credential == null) {
+            return value -> publishMultiDimensionalMetric(namespace, metricName, names, values, value);
+        }
+        return value -> publishMultiDimensionalMetric(credential, namespace, metricName, names, values, value);
+    }
+
+    /**
+     * Counters, gauges, timers and histograms whose values are published together
+     * to the namespace once per step.  Asking again for the same namespace returns
+     * the same registry.  An implementation without a registry of its own hands
+     * out meters that discard what is recorded.
+     */
+    default MeterRegistry getMeterRegistry(String namespace) {
+        return getMeterRegistry(null, namespace);
+    }
+
+    default MeterRegistry getMeterRegistry(Credential credential, String namespace) {
+        return NoopMeterRegistry.INSTANCE;
+    }
+
     /**
      * Read a file from S3 to an InputStream
      *
@@ -64,6 +182,76 @@ public interface ExternalServices {
      */
     ExternalResult getFileAsStream(String url, InputStreamConsumer callback);
 
+    /**
+     * Read a zip archive from S3 one entry at a time, using the supplied S3 profile.
+     * @param url URL to read the archive from
+     * @param callback Called with each entry's name and content
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return result
+     */
+    default ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer callback, String profile, String region) {
+        return getFileAsStream(url, in -> readZipEntries(in, callback), profile, region);
+    }
+
+    /**
+     * Read a zip archive from S3 one entry at a time using the default S3 profile.
+     * @param url URL to read the archive from
+     * @param callback Called with each entry's name and content
+     * @return result
+     */
+    default ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer callback) {
+        return getFileAsStream(url, in -> readZipEntries(in, callback));
+    }
+
+    /**
+     * Copy a file from S3 to disk, using the supplied S3 profile.  The file only
+     * appears at its destination once completely written.
+     * @param url URL to read the file from
+     * @param file destination path on disk
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return result
+     */
+    default ExternalResult getFile(String url, String file, String profile, String region) {
+        return copyToFile(file, consumer -> getFileAsStream(url, consumer, profile, region));
+    }
+
+    /**
+     * Copy a file from S3 to disk using the default S3 profile.
+     * @param url URL to read the file from
+     * @param file destination path on disk
+     * @return result
+     */
+    default ExternalResult getFile(String url, String file) {
+        return copyToFile(file, consumer -> getFileAsStream(url, consumer));
+    }
+
+    /**
+     * Copy every object under an S3 prefix to a directory on disk, using the supplied
+     * S3 profile.  Objects are downloaded concurrently and files already matching
+     * their object are left alone.  Implementations that cannot list a prefix report
+     * a failed result.
+     * @param url URL of the prefix to read, e.g. s3://bucket/bundles/current/
+     * @param directory destination directory on disk
+     * @param profile profile to use with S3 (default to "default")
+     * @param region us-east-1 for example
+     * @return result
+     */
+    default ExternalResult getDirectory(String url, String directory, String profile, String region) {
+        return unsupported("getDirectory");
+    }
+
+    /**
+     * Copy every object under an S3 prefix to a directory on disk using the default S3 profile.
+     * @param url URL of the prefix to read
+     * @param directory destination directory on disk
+     * @return result
+     */
+    default ExternalResult getDirectory(String url, String directory) {
+        return unsupported("getDirectory");
+    }
+
     /**
      * Copy a file on disk to S3, using the supplied S3 profile.
      * @param url
@@ -88,4 +276,118 @@ public interface ExternalServices {
      * @return true if this is the primary instance, false otherwise
      */
     boolean isInstancePrimary();
-}
\ No newline at end of file
+
+    /**
+     * The election behind isInstancePrimary, for callers that need its fencing token.
+     * The default only wraps isInstancePrimary: it issues no tokens, and a listener
+     * hears only of leadership held when it is added, not of later changes.
+     */
+    default LeadershipElectionService getLeadershipElectionService() {
+        ExternalServices services = this;
+        return new LeadershipElectionService() {
+            @Override
+            public boolean isInstancePrimary() {
+                return services.isInstancePrimary();
+            }
+
+            @Override
+            public long getFencingToken() {
+                return -1;
+            }
+
+            @Override
+            public void addListener(LeadershipListener listener) {
+                if (services.isInstancePrimary()) {
+                    listener.leadershipAcquired(-1);
+                }
+            }
+
+            @Override
+            public void removeListener(LeadershipListener listener) {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+    }
+
+    private static void readZipEntries(InputStream in, ZipEntryConsumer callback) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        // the callback may close its entry; that must not close the archive
+        InputStream entryStream = new FilterInputStream(zip) {
+            @Override
+            public void close() {
+            }
+        };
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                callback.accept(entry.getName(), entryStream);
+            }
+        }
+    }
+
+    // stream into a temporary file beside the destination and move it into place once complete
+    private ExternalResult copyToFile(String file, Function<InputStreamConsumer, ExternalResult> read) {
+        Path destination = Paths.get(file).toAbsolutePath();
+        Path[] temp = new Path[1];
+        try {
+            return read.apply(in -> {
+                Files.createDirectories(destination.getParent());
+                temp[0] = newPartFile(destination);
+                Files.copy(in, temp[0], StandardCopyOption.REPLACE_EXISTING);
+                if (Files.exists(destination)
+                        && Files.getFileAttributeView(destination, PosixFileAttributeView.class) != null) {
+                    // a replaced file keeps its permissions
+                    Files.setPosixFilePermissions(temp[0], Files.getPosixFilePermissions(destination));
+                }
+                Files.move(temp[0], destination, StandardCopyOption.REPLACE_EXISTING);
+            });
+        } finally {
+            if (temp[0] != null) {
+                try {
+                    Files.deleteIfExists(temp[0]);
+                } catch (IOException ignored) {
+                    // best effort; the download itself has already been reported
+                }
+            }
+        }
+    }
+
+    // created with the umask's permissions, as a FileOutputStream would be; Files.createTempFile is owner only
+    private static Path newPartFile(Path destination) throws IOException {
+        while (true) {
+            Path temp = destination.resolveSibling("." + destination.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".part");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException taken) {
+                // try another name
+            }
+        }
+    }
+
+    private ExternalResult unsupported(String operation) {
+        return result(false, operation + " is not supported by " + getClass().getName());
+    }
+
+    private static ExternalResult result(boolean success, String error) {
+        return new ExternalResult() {
+            @Override
+            public boolean getSuccess() {
+                return success;
+            }
+
+            @Override
+            public String getErrorMessage() {
+                return error;
+            }
+
+            @Override
+            public String getResponseMessage() {
+                return null;
+            }
+        };
+    }
+}
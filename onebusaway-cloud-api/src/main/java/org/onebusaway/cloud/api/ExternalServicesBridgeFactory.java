@@ -25,11 +25,20 @@ public class ExternalServicesBridgeFactory {
 
     private final Logger _log = LoggerFactory.getLogger(ExternalServicesBridgeFactory.class);
     public static final String AWS_KEY = "oba.cloud.aws";
+    // AWS services with metrics written as Embedded Metric Format log lines
+    public static final String EMF_KEY = "oba.cloud.emf";
     private static final String NOOP_FACTORY = "org.onebusaway.cloud.noop.ExternalServicesNoopFactory";
     private static final String AWS_FACTORY = "org.onebusaway.cloud.aws.ExternalServicesAwsFactory";
+    private static final String EMF_FACTORY = "org.onebusaway.cloud.aws.ExternalServicesEmfFactory";
 
 
     public ExternalServices getExternalServices() {
+        if (getPropertySet(EMF_KEY)) {
+            ExternalServices es = instantiate(EMF_FACTORY);
+            if (es != null) {
+                return es;
+            }
+        }
         if (getPropertySet(AWS_KEY)) {
             ExternalServices es = instantiate(AWS_FACTORY);
             if (es != null) {
@@ -39,6 +48,17 @@ public class ExternalServicesBridgeFactory {
         return instantiate(NOOP_FACTORY);
     }
 
+    /**
+     * The configured services, for callers that want non-blocking calls.
+     */
+    public AsyncExternalServices getAsyncExternalServices() {
+        ExternalServices es = getExternalServices();
+        if (es instanceof AsyncExternalServices) {
+            return (AsyncExternalServices) es;
+        }
+        throw new IllegalStateException("asynchronous calls not supported by " + es);
+    }
+
     private boolean getPropertySet(String key) {
         return "true".equalsIgnoreCase(System.getProperty(key));
     }
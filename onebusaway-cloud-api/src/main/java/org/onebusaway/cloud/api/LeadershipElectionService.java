@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+/**
+ * Decides which of a group of instances is the primary, for work that only one of
+ * them should do.
+ */
+public interface LeadershipElectionService {
+
+    /**
+     * Cheap enough to call on every unit of work: it reads memory only, never the
+     * network or configuration.
+     *
+     * @return true if this instance currently holds leadership
+     */
+    boolean isInstancePrimary();
+
+    /**
+     * A number that increases each time leadership changes hands.  Pass it along with
+     * writes made as leader so the receiver can reject writes from a deposed leader.
+     *
+     * @return the token of the current term, or -1 if this instance is not the leader
+     * or the election does not issue tokens
+     */
+    long getFencingToken();
+
+    void addListener(LeadershipListener listener);
+
+    void removeListener(LeadershipListener listener);
+
+    /**
+     * Stop taking part in the election, giving up leadership if held.
+     */
+    void shutdown();
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+/**
+ * Told when this instance gains or loses leadership, so callers need not poll
+ * isInstancePrimary.  Called on the election's thread, so implementations should
+ * return quickly.
+ */
+public interface LeadershipListener {
+
+    /**
+     * @param fencingToken the token of the new term, or -1 if the election issues none
+     */
+    void leadershipAcquired(long fencingToken);
+
+    void leadershipLost();
+}
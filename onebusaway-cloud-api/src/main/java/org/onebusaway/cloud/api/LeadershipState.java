@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The outcome of an election as a pair of volatile fields, so reading it is a
+ * plain memory read.  Changes are serialized and passed on to listeners; a
+ * listener added while this instance leads is told so at once.
+ */
+public class LeadershipState {
+
+    private static final Logger _log = LoggerFactory.getLogger(LeadershipState.class);
+
+    private final List<LeadershipListener> _listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean _primary;
+    private volatile long _token = -1;
+
+    public LeadershipState(boolean initiallyPrimary) {
+        _primary = initiallyPrimary;
+    }
+
+    public boolean isPrimary() {
+        return _primary;
+    }
+
+    /**
+     * @return the fencing token of the current term, or -1 if not primary
+     */
+    public long getToken() {
+        return _primary ? _token : -1;
+    }
+
+    public synchronized void acquired(long token) {
+        if (_primary && _token == token) return;
+        _token = token;
+        _primary = true;
+        for (LeadershipListener listener : _listeners) {
+            acquired(listener, token);
+        }
+    }
+
+    public synchronized void lost() {
+        if (!_primary) return;
+        _primary = false;
+        _token = -1;
+        for (LeadershipListener listener : _listeners) {
+            try {
+                listener.leadershipLost();
+            } catch (RuntimeException e) {
+                _log.error("leadership listener failed: " + e, e);
+            }
+        }
+    }
+
+    public synchronized void addListener(LeadershipListener listener) {
+        _listeners.add(listener);
+        if (_primary) {
+            acquired(listener, _token);
+        }
+    }
+
+    public void removeListener(LeadershipListener listener) {
+        _listeners.remove(listener);
+    }
+
+    private static void acquired(LeadershipListener listener, long token) {
+        try {
+            listener.leadershipAcquired(token);
+        } catch (RuntimeException e) {
+            _log.error("leadership listener failed: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.Properties;
+
+/**
+ * The record a lease based election keeps in its store: who holds leadership, the
+ * fencing token of their term and how long the lease lasts without renewal.
+ */
+public class Lease {
+
+    private final String holder;
+    private final long token;
+    private final long durationMillis;
+    private final boolean released;
+    // assigned by the store on read
+    private String version;
+
+    public Lease(String holder, long token, long durationMillis, boolean released) {
+        this.holder = holder;
+        this.token = token;
+        this.durationMillis = durationMillis;
+        this.released = released;
+    }
+
+    public String getHolder() { return holder; }
+    public long getToken() { return token; }
+    public long getDurationMillis() { return durationMillis; }
+    /** true if the holder gave the lease up and it may be taken at once */
+    public boolean isReleased() { return released; }
+    /** the store's version of this record, e.g. an ETag, for the next conditional write */
+    public String getVersion() { return version; }
+    public Lease withVersion(String version) {
+        this.version = version;
+        return this;
+    }
+
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("holder", holder);
+        p.setProperty("token", Long.toString(token));
+        p.setProperty("durationMillis", Long.toString(durationMillis));
+        p.setProperty("released", Boolean.toString(released));
+        return p;
+    }
+
+    public static Lease fromProperties(Properties p) {
+        return new Lease(p.getProperty("holder", ""),
+                Long.parseLong(p.getProperty("token", "0")),
+                Long.parseLong(p.getProperty("durationMillis", "0")),
+                Boolean.parseBoolean(p.getProperty("released")));
+    }
+
+    @Override
+    public String toString() {
+        return "Lease{holder=" + holder + ", token=" + token + ", durationMillis=" + durationMillis
+                + ", released=" + released + ", version=" + version + "}";
+    }
+}
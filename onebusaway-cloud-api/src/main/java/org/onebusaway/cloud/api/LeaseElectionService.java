@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leadership held as a lease in a LeaseStore.  The leader renews the lease every
+ * heartbeat; the others take it over once it has gone a full lease duration
+ * without changing, or at once if the leader released it.
+ *
+ * Only elapsed time on each instance's own clock is compared, never timestamps
+ * across instances.  The leader counts its term from before the write that
+ * renewed it, and the others from after they saw that write, so the leader's term
+ * always ends before anyone else may take over.  Each takeover increments the
+ * lease's token, which serves as the fencing token.
+ */
+public class LeaseElectionService implements LeadershipElectionService {
+
+    private static final Logger _log = LoggerFactory.getLogger(LeaseElectionService.class);
+
+    private final LeaseStore _store;
+    private final String _holderId;
+    private final long _leaseNanos;
+    private final long _heartbeatMillis;
+    private ScheduledExecutorService _executor;
+
+    private final LeadershipState _state = new LeadershipState(false);
+    private volatile long _termEndNanos;
+
+    // heartbeat thread only
+    private String _version;
+    private String _observedVersion;
+    private long _observedAtNanos;
+
+    /**
+     * @param holderId identifies this instance in the lease; must be unique within the group
+     * @param leaseMillis how long leadership lasts without renewal, and so the longest failover
+     * @param heartbeatMillis how often the lease is read and renewed; well under leaseMillis
+     */
+    public LeaseElectionService(LeaseStore store, String holderId, long leaseMillis, long heartbeatMillis) {
+        if (heartbeatMillis < 1 || heartbeatMillis >= leaseMillis) {
+            throw new IllegalArgumentException("heartbeatMillis=" + heartbeatMillis
+                    + " must be positive and less than leaseMillis=" + leaseMillis);
+        }
+        _store = store;
+        _holderId = holderId;
+        _leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        _heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * A holder id made of the host name and a random suffix, unique per process.
+     */
+    public static String defaultHolderId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public synchronized void start() {
+        if (_executor != null) return;
+        _executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-election");
+            t.setDaemon(true);
+            return t;
+        });
+        _executor.scheduleWithFixedDelay(this::heartbeat, 0, _heartbeatMillis, TimeUnit.MILLISECONDS);
+        _log.info("{} joined lease election, lease={}ms, heartbeat={}ms", _holderId,
+                TimeUnit.NANOSECONDS.toMillis(_leaseNanos), _heartbeatMillis);
+    }
+
+    @Override
+    public boolean isInstancePrimary() {
+        // the term may have run out between heartbeats
+        return _state.isPrimary() && System.nanoTime() - _termEndNanos < 0;
+    }
+
+    @Override
+    public long getFencingToken() {
+        long token = _state.getToken();
+        return isInstancePrimary() ? token : -1;
+    }
+
+    /**
+     * Listeners hear of a lapsed term at the next heartbeat; isInstancePrimary
+     * reflects it immediately.
+     */
+    @Override
+    public void addListener(LeadershipListener listener) {
+        _state.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(LeadershipListener listener) {
+        _state.removeListener(listener);
+    }
+
+    public String getHolderId() {
+        return _holderId;
+    }
+
+    @Override
+    public void shutdown() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = _executor;
+            _executor = null;
+        }
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(_heartbeatMillis * 4, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        long token = getFencingToken();
+        _state.lost();
+        if (token != -1) {
+            try {
+                // let the next leader take over without waiting out the lease
+                _store.write(new Lease(_holderId, token, TimeUnit.NANOSECONDS.toMillis(_leaseNanos), true), _version);
+                _log.info("{} released leadership, token {}", _holderId, token);
+            } catch (Exception e) {
+                _log.warn("unable to release lease, it will expire: " + e);
+            }
+        }
+    }
+
+    void heartbeat() {
+        try {
+            long started = System.nanoTime();
+            Lease current = _store.read();
+            long now = System.nanoTime();
+            if (current == null) {
+                acquire(started, 1, null);
+            } else if (_holderId.equals(current.getHolder()) && !current.isReleased()) {
+                // ours, including a write whose response was lost to a timeout
+                renew(started, current);
+            } else {
+                if (_state.isPrimary()) {
+                    lose("lease taken by " + current.getHolder());
+                }
+                if (!current.getVersion().equals(_observedVersion)) {
+                    _observedVersion = current.getVersion();
+                    _observedAtNanos = now;
+                }
+                long durationNanos = TimeUnit.MILLISECONDS.toNanos(current.getDurationMillis());
+                if (current.isReleased() || now - _observedAtNanos >= durationNanos) {
+                    acquire(started, current.getToken() + 1, current.getVersion());
+                }
+            }
+        } catch (Throwable any) {
+            // the term runs out by itself if renewals keep failing
+            _log.warn("lease heartbeat failed: " + any);
+        }
+        if (_state.isPrimary() && System.nanoTime() - _termEndNanos >= 0) {
+            lose("lease expired without renewal");
+        }
+    }
+
+    private void renew(long started, Lease current) throws Exception {
+        String version = _store.write(new Lease(_holderId, current.getToken(),
+                TimeUnit.NANOSECONDS.toMillis(_leaseNanos), false), current.getVersion());
+        if (version == null) {
+            lose("renewal lost a race");
+            return;
+        }
+        _version = version;
+        _termEndNanos = started + _leaseNanos;
+        if (!_state.isPrimary()) {
+            _log.warn("{} is now the primary instance, token {}", _holderId, current.getToken());
+            _state.acquired(current.getToken());
+        }
+        if (System.nanoTime() - _termEndNanos >= 0) {
+            _log.warn("lease renewal took longer than the lease");
+        }
+    }
+
+    private void acquire(long started, long token, String expectedVersion) throws Exception {
+        String version = _store.write(new Lease(_holderId, token,
+                TimeUnit.NANOSECONDS.toMillis(_leaseNanos), false), expectedVersion);
+        if (version == null) {
+            // someone else took it; watch their lease from here
+            return;
+        }
+        _version = version;
+        _termEndNanos = started + _leaseNanos;
+        _log.warn("{} is now the primary instance, token {}", _holderId, token);
+        _state.acquired(token);
+    }
+
+    private void lose(String why) {
+        _log.warn("{} is no longer the primary instance: {}", _holderId, why);
+        _version = null;
+        _state.lost();
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.io.IOException;
+
+/**
+ * A single record with compare-and-set writes, e.g. an object written with a
+ * conditional put or a row written with a condition expression.
+ */
+public interface LeaseStore {
+
+    /**
+     * @return the current lease with its version set, or null if there is none
+     */
+    Lease read() throws IOException;
+
+    /**
+     * Write the lease if the record is still at expectedVersion.
+     *
+     * @param expectedVersion the version last read, or null to write only if there is no record
+     * @return the version written, or null if another writer got there first
+     */
+    String write(Lease lease, String expectedVersion) throws IOException;
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of non-negative values.  Each power of two between the
+ * lowest and highest exponent is divided into 16 equal buckets, so a value is
+ * placed within about 3% of itself whatever its magnitude.  Values below the
+ * range count as zero and values above it count in the last bucket.
+ *
+ * Recording is a single atomic increment and never allocates.  Histograms with
+ * the same range can be merged, and snapshotAndReset() moves the counts out
+ * without losing a racing record.
+ */
+public class LogLinearHistogram {
+
+    /** buckets per power of two are 2^SUB_BUCKET_BITS */
+    public static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MANTISSA_BITS = 52;
+    private static final int EXPONENT_BIAS = 1023;
+
+    private final int _lowestExponent;
+    private final int _highestExponent;
+    // index 0 counts zero and values below the range
+    private final AtomicLongArray _counts;
+
+    /**
+     * @param lowest the smallest value told apart from zero, e.g. 0.001 for microseconds in a millisecond timer
+     * @param highest the largest value told apart from its neighbours; larger values are counted with it
+     */
+    public LogLinearHistogram(double lowest, double highest) {
+        this(lowestExponent(lowest, highest), Math.getExponent(highest));
+    }
+
+    private static int lowestExponent(double lowest, double highest) {
+        if (!(lowest > 0) || !(highest >= lowest) || Double.isInfinite(highest)) {
+            throw new IllegalArgumentException("need 0 < lowest <= highest: " + lowest + ", " + highest);
+        }
+        return Math.getExponent(lowest);
+    }
+
+    private LogLinearHistogram(int lowestExponent, int highestExponent) {
+        _lowestExponent = lowestExponent;
+        _highestExponent = highestExponent;
+        _counts = new AtomicLongArray(1 + (highestExponent - lowestExponent + 1) * SUB_BUCKETS);
+    }
+
+    public void record(double value) {
+        recordCount(value, 1);
+    }
+
+    public void recordCount(double value, long count) {
+        if (Double.isNaN(value)) return;
+        _counts.addAndGet(indexOf(value), count);
+    }
+
+    private int indexOf(double value) {
+        if (value <= 0) return 0;
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = (int) (bits >>> MANTISSA_BITS) - EXPONENT_BIAS;
+        if (exponent < _lowestExponent) return 0;
+        if (exponent > _highestExponent) return _counts.length() - 1;
+        int subBucket = (int) (bits >>> (MANTISSA_BITS - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - _lowestExponent) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the midpoint of the bucket, the value the bucket's samples are reported as
+     */
+    public double bucketValue(int index) {
+        if (index == 0) return 0;
+        int exponent = _lowestExponent + (index - 1) / SUB_BUCKETS;
+        int subBucket = (index - 1) % SUB_BUCKETS;
+        return Math.scalb(1 + (subBucket + 0.5) / SUB_BUCKETS, exponent);
+    }
+
+    public int bucketCount() {
+        return _counts.length();
+    }
+
+    public long countAt(int index) {
+        return _counts.get(index);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            total += _counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the value below which that share of samples fall, or NaN if there are none
+     */
+    public double valueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) return Double.NaN;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(_counts.length() - 1);
+    }
+
+    /**
+     * Add the other histogram's counts to this one.
+     * @throws IllegalArgumentException if the two do not cover the same range
+     */
+    public void merge(LogLinearHistogram other) {
+        if (other._lowestExponent != _lowestExponent || other._highestExponent != _highestExponent) {
+            throw new IllegalArgumentException("cannot merge histograms of 2^" + other._lowestExponent + "..2^"
+                    + other._highestExponent + " into 2^" + _lowestExponent + "..2^" + _highestExponent);
+        }
+        for (int i = 0; i < _counts.length(); i++) {
+            long count = other._counts.get(i);
+            if (count != 0) {
+                _counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Move the counts into a new histogram and leave this one empty.
+     */
+    public LogLinearHistogram snapshotAndReset() {
+        LogLinearHistogram snapshot = new LogLinearHistogram(_lowestExponent, _highestExponent);
+        for (int i = 0; i < _counts.length(); i++) {
+            if (_counts.get(i) != 0) {
+                snapshot._counts.set(i, _counts.getAndSet(i, 0));
+            }
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges, timers and histograms for one metric namespace.  Meters are
+ * created once and kept; recording on them is cheap and lock-free, and the
+ * registry publishes every meter once per step, so the cost of publishing
+ * depends on the number of meters rather than the number of events.
+ *
+ * Tags are given as name, value pairs and become metric dimensions.  Asking for
+ * a meter with the same name and tags again returns the same meter.
+ */
+public interface MeterRegistry {
+
+    Counter counter(String name, String... tags);
+
+    /**
+     * Sample the supplier once per step.  The supplier runs on the publishing
+     * thread and must be quick and thread safe.
+     */
+    void gauge(String name, MetricUnit unit, DoubleSupplier supplier, String... tags);
+
+    Timer timer(String name, String... tags);
+
+    Histogram histogram(String name, MetricUnit unit, String... tags);
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+/**
+ * What a metric value is, beyond its number: its name, its unit, how finely it
+ * is stored and when it was measured.  Descriptors are immutable; keep one per
+ * metric and stamp it with withTimestamp() when the event time matters, e.g.
+ * when publishing is deferred or batched.
+ */
+public class MetricDescriptor {
+
+    /** stored at one minute resolution */
+    public static final int STANDARD_RESOLUTION = 60;
+    /** stored at one second resolution, at a higher price */
+    public static final int HIGH_RESOLUTION = 1;
+    /** stamped with the time it is published */
+    public static final long NO_TIMESTAMP = 0;
+
+    private final String name;
+    private final MetricUnit unit;
+    private final int storageResolution;
+    private final long timestampMillis;
+
+    public MetricDescriptor(String name, MetricUnit unit) {
+        this(name, unit, STANDARD_RESOLUTION, NO_TIMESTAMP);
+    }
+
+    private MetricDescriptor(String name, MetricUnit unit, int storageResolution, long timestampMillis) {
+        if (name == null || unit == null) {
+            throw new IllegalArgumentException("name and unit are required");
+        }
+        if (storageResolution != STANDARD_RESOLUTION && storageResolution != HIGH_RESOLUTION) {
+            throw new IllegalArgumentException("storageResolution must be " + STANDARD_RESOLUTION + " or "
+                    + HIGH_RESOLUTION + " seconds: " + storageResolution);
+        }
+        this.name = name;
+        this.unit = unit;
+        this.storageResolution = storageResolution;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public String getName() { return name; }
+    public MetricUnit getUnit() { return unit; }
+    /** seconds, STANDARD_RESOLUTION or HIGH_RESOLUTION */
+    public int getStorageResolution() { return storageResolution; }
+    /** when the value was measured in epoch milliseconds, or NO_TIMESTAMP */
+    public long getTimestampMillis() { return timestampMillis; }
+
+    public boolean isHighResolution() {
+        return storageResolution == HIGH_RESOLUTION;
+    }
+
+    public MetricDescriptor withStorageResolution(int seconds) {
+        return new MetricDescriptor(name, unit, seconds, timestampMillis);
+    }
+
+    public MetricDescriptor withHighResolution() {
+        return withStorageResolution(HIGH_RESOLUTION);
+    }
+
+    /**
+     * @param epochMillis when the value was measured
+     */
+    public MetricDescriptor withTimestamp(long epochMillis) {
+        return new MetricDescriptor(name, unit, storageResolution, epochMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricDescriptor{name=" + name + ", unit=" + unit + ", storageResolution=" + storageResolution
+                + ", timestampMillis=" + timestampMillis + "}";
+    }
+}
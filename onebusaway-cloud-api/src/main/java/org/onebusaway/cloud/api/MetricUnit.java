@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+/**
+ * The unit of a metric's values.  Names are those CloudWatch uses.
+ */
+public enum MetricUnit {
+    SECONDS("Seconds"),
+    MILLISECONDS("Milliseconds"),
+    MICROSECONDS("Microseconds"),
+    BYTES("Bytes"),
+    KILOBYTES("Kilobytes"),
+    MEGABYTES("Megabytes"),
+    GIGABYTES("Gigabytes"),
+    TERABYTES("Terabytes"),
+    BITS("Bits"),
+    KILOBITS("Kilobits"),
+    MEGABITS("Megabits"),
+    GIGABITS("Gigabits"),
+    TERABITS("Terabits"),
+    PERCENT("Percent"),
+    COUNT("Count"),
+    BYTES_PER_SECOND("Bytes/Second"),
+    KILOBYTES_PER_SECOND("Kilobytes/Second"),
+    MEGABYTES_PER_SECOND("Megabytes/Second"),
+    GIGABYTES_PER_SECOND("Gigabytes/Second"),
+    TERABYTES_PER_SECOND("Terabytes/Second"),
+    BITS_PER_SECOND("Bits/Second"),
+    KILOBITS_PER_SECOND("Kilobits/Second"),
+    MEGABITS_PER_SECOND("Megabits/Second"),
+    GIGABITS_PER_SECOND("Gigabits/Second"),
+    TERABITS_PER_SECOND("Terabits/Second"),
+    COUNT_PER_SECOND("Count/Second"),
+    NONE("None");
+
+    private final String _name;
+
+    MetricUnit(String name) {
+        _name = name;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+}
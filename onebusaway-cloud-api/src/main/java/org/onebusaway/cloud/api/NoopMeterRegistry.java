@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Hands out shared meters that discard everything recorded, for implementations
+ * without a registry of their own.
+ */
+public class NoopMeterRegistry implements MeterRegistry {
+
+    public static final NoopMeterRegistry INSTANCE = new NoopMeterRegistry();
+
+    private static final Counter COUNTER = new Counter() {
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void increment(double amount) {
+        }
+    };
+    private static final Timer TIMER = (long amount, TimeUnit unit) -> { };
+    private static final Histogram HISTOGRAM = value -> { };
+
+    @Override
+    public Counter counter(String name, String... tags) {
+        return COUNTER;
+    }
+
+    @Override
+    public void gauge(String name, MetricUnit unit, DoubleSupplier supplier, String... tags) {
+    }
+
+    @Override
+    public Timer timer(String name, String... tags) {
+        return TIMER;
+    }
+
+    @Override
+    public Histogram histogram(String name, MetricUnit unit, String... tags) {
+        return HISTOGRAM;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durations of an operation, published per step.
+ */
+public interface Timer {
+
+    void record(long amount, TimeUnit unit);
+
+    /**
+     * Run the task and record how long it took, whether or not it completed normally.
+     */
+    default void record(Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
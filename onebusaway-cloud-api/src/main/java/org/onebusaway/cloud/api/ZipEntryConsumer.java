@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Called once per file in a zip archive, in archive order.  The stream holds the
+ * decompressed content of that entry only.
+ */
+public interface ZipEntryConsumer {
+    void accept(String entryName, InputStream stream) throws IOException;
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.api;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogLinearHistogramTest {
+
+    // half a bucket, relative to the smallest value in it
+    private static final double MAX_RELATIVE_ERROR = 1.0 / (2 * (1 << LogLinearHistogram.SUB_BUCKET_BITS));
+
+    @Test
+    public void bucketBoundaries() {
+        LogLinearHistogram histogram = new LogLinearHistogram(1, 1024);
+        // 1 + 11 powers of two of 16 buckets
+        assertEquals(177, histogram.bucketCount());
+        assertEquals(1, indexOf(histogram, 1.0));
+        assertEquals(1, indexOf(histogram, Math.nextDown(1.0625)));
+        assertEquals(2, indexOf(histogram, 1.0625));
+        assertEquals(16, indexOf(histogram, Math.nextDown(2.0)));
+        assertEquals(17, indexOf(histogram, 2.0));
+        assertEquals(176, indexOf(histogram, Math.nextDown(2048.0)));
+        // reported as the bucket's midpoint
+        assertEquals(1.03125, histogram.bucketValue(1), 0);
+        assertEquals(2.0625, histogram.bucketValue(17), 0);
+        assertEquals(2016.0, histogram.bucketValue(176), 0);
+    }
+
+    @Test
+    public void valuesOutsideRangeAreClamped() {
+        LogLinearHistogram histogram = new LogLinearHistogram(1, 1024);
+        assertEquals(0, indexOf(histogram, 0));
+        assertEquals(0, indexOf(histogram, -5));
+        assertEquals(0, indexOf(histogram, 0.5));
+        assertEquals(176, indexOf(histogram, 2048));
+        assertEquals(176, indexOf(histogram, 1e12));
+        assertEquals(0.0, histogram.bucketValue(0), 0);
+    }
+
+    @Test
+    public void nanIsIgnored() {
+        LogLinearHistogram histogram = new LogLinearHistogram(1, 1024);
+        histogram.record(Double.NaN);
+        assertEquals(0, histogram.getCount());
+        assertTrue(Double.isNaN(histogram.valueAtPercentile(50)));
+    }
+
+    @Test
+    public void everyValueIsReportedWithinHalfABucket() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            double value = Math.pow(10, -3 + 7 * random.nextDouble());
+            LogLinearHistogram single = new LogLinearHistogram(0.001, 10000);
+            single.record(value);
+            assertWithin(value, single.valueAtPercentile(100));
+        }
+    }
+
+    @Test
+    public void valueAtPercentileMatchesSortedSample() {
+        LogLinearHistogram histogram = new LogLinearHistogram(0.001, 100000);
+        Random random = new Random(7);
+        double[] sample = new double[20000];
+        for (int i = 0; i < sample.length; i++) {
+            // long tailed, like latencies
+            sample[i] = Math.exp(3 + 1.5 * random.nextGaussian());
+            histogram.record(sample[i]);
+        }
+        Arrays.sort(sample);
+        assertEquals(sample.length, histogram.getCount());
+        for (double percentile : new double[] { 0, 1, 10, 25, 50, 75, 90, 99, 99.9, 100 }) {
+            int rank = Math.max(1, (int) Math.ceil(percentile / 100 * sample.length));
+            assertWithin(sample[rank - 1], histogram.valueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void recordCountWeighsTheValue() {
+        LogLinearHistogram histogram = new LogLinearHistogram(1, 1024);
+        histogram.record(10);
+        histogram.recordCount(100, 9);
+        assertEquals(10, histogram.getCount());
+        assertWithin(10, histogram.valueAtPercentile(10));
+        assertWithin(100, histogram.valueAtPercentile(11));
+    }
+
+    @Test
+    public void mergeEqualsRecordingEverythingInOne() {
+        LogLinearHistogram all = new LogLinearHistogram(0.01, 1000);
+        LogLinearHistogram first = new LogLinearHistogram(0.01, 1000);
+        LogLinearHistogram second = new LogLinearHistogram(0.01, 1000);
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            double value = 1000 * random.nextDouble();
+            all.record(value);
+            (i % 3 == 0 ? first : second).record(value);
+        }
+        first.merge(second);
+        for (int i = 0; i < all.bucketCount(); i++) {
+            assertEquals("bucket " + i, all.countAt(i), first.countAt(i));
+        }
+        assertEquals(all.valueAtPercentile(99), first.valueAtPercentile(99), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsDifferentRange() {
+        new LogLinearHistogram(1, 1024).merge(new LogLinearHistogram(1, 2048));
+    }
+
+    @Test
+    public void snapshotAndResetMovesEveryCount() {
+        LogLinearHistogram histogram = new LogLinearHistogram(1, 1024);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        LogLinearHistogram snapshot = histogram.snapshotAndReset();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(0, histogram.getCount());
+        assertWithin(50, snapshot.valueAtPercentile(50));
+        // the snapshot covers the same range, so it can be merged back
+        histogram.record(7);
+        histogram.merge(snapshot);
+        assertEquals(101, histogram.getCount());
+    }
+
+    private static void assertWithin(double expected, double actual) {
+        assertTrue("expected " + expected + " got " + actual,
+                Math.abs(actual - expected) <= expected * MAX_RELATIVE_ERROR);
+    }
+
+    // the bucket a lone sample of the value lands in
+    private static int indexOf(LogLinearHistogram like, double value) {
+        LogLinearHistogram histogram = like.snapshotAndReset();
+        histogram.record(value);
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            if (histogram.countAt(i) != 0) return i;
+        }
+        throw new AssertionError("not recorded: " + value);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.ExternalResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The combined result of an operation that was split into several requests.
+ * It succeeds only if every part succeeded; the parts are available individually.
+ */
+public class AggregateExternalResult implements ExternalResult {
+    private final List<ExternalResult> _results;
+
+    public AggregateExternalResult(List<? extends ExternalResult> results) {
+        _results = Collections.unmodifiableList(new ArrayList<>(results));
+    }
+
+    public List<ExternalResult> getResults() {
+        return _results;
+    }
+
+    public int getFailureCount() {
+        int failures = 0;
+        for (ExternalResult result : _results) {
+            if (!result.getSuccess()) failures++;
+        }
+        return failures;
+    }
+
+    @Override
+    public boolean getSuccess() {
+        return getFailureCount() == 0;
+    }
+
+    @Override
+    public String getErrorMessage() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _results.size(); i++) {
+            ExternalResult result = _results.get(i);
+            if (!result.getSuccess()) {
+                if (sb.length() > 0) sb.append("; ");
+                sb.append("part ").append(i).append(": ").append(result.getErrorMessage());
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    @Override
+    public String getResponseMessage() {
+        return (_results.size() - getFailureCount()) + " of " + _results.size() + " parts succeeded";
+    }
+}
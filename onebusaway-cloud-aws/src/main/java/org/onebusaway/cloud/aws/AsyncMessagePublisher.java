@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.Credential;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers SNS messages and publishes them from a background thread, coalescing
+ * messages to the same topic into PublishBatch requests.  Bursts of notifications
+ * then cost one request per ten messages and the caller never waits on SNS.
+ */
+public class AsyncMessagePublisher extends BatchingPublisher<AsyncMessagePublisher.PendingMessage> {
+
+    public static final String ASYNC_KEY = "oba.cloud.aws.sns.async";
+    public static final String QUEUE_SIZE_KEY = "oba.cloud.aws.sns.queueSize";
+    public static final String BATCH_SIZE_KEY = "oba.cloud.aws.sns.batchSize";
+    public static final String FLUSH_INTERVAL_KEY = "oba.cloud.aws.sns.flushIntervalMillis";
+    public static final String OVERFLOW_POLICY_KEY = "oba.cloud.aws.sns.overflowPolicy";
+    public static final String BLOCK_TIMEOUT_KEY = "oba.cloud.aws.sns.blockTimeoutMillis";
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    // short, a notification should not sit in the buffer long
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+    private static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+
+    private final SNSServices _sns;
+
+    public AsyncMessagePublisher(SNSServices sns) {
+        this(sns,
+                Integer.getInteger(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE),
+                Integer.getInteger(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE),
+                Long.getLong(FLUSH_INTERVAL_KEY, DEFAULT_FLUSH_INTERVAL_MILLIS),
+                OverflowPolicy.valueOf(System.getProperty(OVERFLOW_POLICY_KEY, OverflowPolicy.DROP_NEWEST.name())),
+                Long.getLong(BLOCK_TIMEOUT_KEY, DEFAULT_BLOCK_TIMEOUT_MILLIS));
+    }
+
+    public AsyncMessagePublisher(SNSServices sns, int queueSize, int batchSize,
+                                 long flushIntervalMillis, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        super("sns-message", queueSize, batchSize, flushIntervalMillis, overflowPolicy, blockTimeoutMillis);
+        _sns = sns;
+    }
+
+    /**
+     * Queue messages for publishing.
+     * @return false if one or more of the messages were dropped by the overflow policy
+     */
+    public boolean publish(Credential credential, String topic, List<String> messages) {
+        boolean accepted = true;
+        for (String message : messages) {
+            accepted &= enqueue(new PendingMessage(credential, topic, message));
+        }
+        return accepted;
+    }
+
+    @Override
+    protected void flush(List<PendingMessage> batch) {
+        Map<Destination, List<String>> byTopic = new LinkedHashMap<>();
+        for (PendingMessage pending : batch) {
+            byTopic.computeIfAbsent(pending.destination, k -> new ArrayList<>()).add(pending.message);
+        }
+        for (Map.Entry<Destination, List<String>> entry : byTopic.entrySet()) {
+            Destination destination = entry.getKey();
+            AggregateExternalResult result = _sns.publishBatch(destination.getCredential(), destination.getName(),
+                    entry.getValue());
+            int failed = result.getFailureCount();
+            recordSent(result.getResults().size() - failed);
+            recordFailed(failed);
+        }
+    }
+
+    static class PendingMessage {
+        private final Destination destination;
+        private final String message;
+
+        PendingMessage(Credential credential, String topic, String message) {
+            this.destination = new Destination(credential, topic);
+            this.message = message;
+        }
+    }
+}
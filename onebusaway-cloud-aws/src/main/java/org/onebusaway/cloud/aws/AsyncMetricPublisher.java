@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.onebusaway.cloud.api.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers metric datums in memory and publishes them to CloudWatch from a
+ * background thread, so callers never wait on a PutMetricData round trip.
+ * Datums are flushed when a full batch is waiting or when the flush interval
+ * elapses, whichever comes first.
+ */
+public class AsyncMetricPublisher extends BatchingPublisher<AsyncMetricPublisher.PendingDatum> {
+
+    public static final String ASYNC_KEY = "oba.cloud.aws.metrics.async";
+    public static final String QUEUE_SIZE_KEY = "oba.cloud.aws.metrics.queueSize";
+    public static final String BATCH_SIZE_KEY = "oba.cloud.aws.metrics.batchSize";
+    public static final String FLUSH_INTERVAL_KEY = "oba.cloud.aws.metrics.flushIntervalMillis";
+    public static final String OVERFLOW_POLICY_KEY = "oba.cloud.aws.metrics.overflowPolicy";
+    public static final String BLOCK_TIMEOUT_KEY = "oba.cloud.aws.metrics.blockTimeoutMillis";
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = CloudWatchServices.DEFAULT_MAX_DATUMS_PER_REQUEST;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10000;
+    private static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+
+    private final Logger _log = LoggerFactory.getLogger(AsyncMetricPublisher.class);
+
+    private final CloudWatchServices _cloudwatch;
+
+    public AsyncMetricPublisher(CloudWatchServices cloudwatch) {
+        this(cloudwatch,
+                Integer.getInteger(QUEUE_SIZE_KEY, DEFAULT_QUEUE_SIZE),
+                Integer.getInteger(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE),
+                Long.getLong(FLUSH_INTERVAL_KEY, DEFAULT_FLUSH_INTERVAL_MILLIS),
+                OverflowPolicy.valueOf(System.getProperty(OVERFLOW_POLICY_KEY, OverflowPolicy.DROP_NEWEST.name())),
+                Long.getLong(BLOCK_TIMEOUT_KEY, DEFAULT_BLOCK_TIMEOUT_MILLIS));
+    }
+
+    public AsyncMetricPublisher(CloudWatchServices cloudwatch, int queueSize, int batchSize,
+                                long flushIntervalMillis, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        super("cloudwatch-metric", queueSize, batchSize, flushIntervalMillis, overflowPolicy, blockTimeoutMillis);
+        _cloudwatch = cloudwatch;
+    }
+
+    /**
+     * Queue datums for publishing.
+     * @return false if one or more of the datums were dropped by the overflow policy
+     */
+    public boolean publish(Credential credential, String namespace, MetricDatum... datums) {
+        boolean accepted = true;
+        for (MetricDatum datum : datums) {
+            accepted &= enqueue(new PendingDatum(credential, namespace, datum));
+        }
+        return accepted;
+    }
+
+    @Override
+    protected void flush(List<PendingDatum> batch) {
+        // group by destination, preserving arrival order within each group
+        Map<Destination, List<MetricDatum>> groups = new LinkedHashMap<>();
+        for (PendingDatum pending : batch) {
+            groups.computeIfAbsent(pending.destination, k -> new ArrayList<>()).add(pending.datum);
+        }
+        for (Map.Entry<Destination, List<MetricDatum>> entry : groups.entrySet()) {
+            Credential credential = entry.getKey().getCredential();
+            String namespace = entry.getKey().getName();
+            for (List<MetricDatum> chunk : _cloudwatch.chunk(entry.getValue())) {
+                // spooled datums count as sent, the spool delivers them
+                if (_cloudwatch.isSpooling() && _cloudwatch.spool(credential, namespace, chunk)) {
+                    recordSent(chunk.size());
+                    continue;
+                }
+                try {
+                    _cloudwatch.putMetricData(credential, namespace, chunk);
+                    recordSent(chunk.size());
+                } catch (Throwable any) {
+                    if (_cloudwatch.shouldSpool(any) && _cloudwatch.spool(credential, namespace, chunk)) {
+                        _log.warn("spooled " + chunk.size() + " metrics to " + namespace + ": " + any);
+                        recordSent(chunk.size());
+                        continue;
+                    }
+                    recordFailed(chunk.size());
+                    _log.warn("unable to publish " + chunk.size() + " metrics to " + namespace + ": " + any);
+                }
+            }
+        }
+    }
+
+    static class PendingDatum {
+        private final Destination destination;
+        private final MetricDatum datum;
+
+        PendingDatum(Credential credential, String namespace, MetricDatum datum) {
+            this.destination = new Destination(credential, namespace);
+            this.datum = datum;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Process wide cache of AWS clients, one per client type and credential.  AWS
+ * clients are thread safe and each owns a connection pool, so they should be
+ * shared rather than built per call.
+ *
+ * Lookups of an existing client take no lock.  A missing client is built exactly
+ * once; threads asking for the same key wait for that build, while builds for
+ * other keys proceed independently.  The registry is bounded; the least recently
+ * used client is forgotten when the bound is exceeded, and shut down after a grace
+ * period.  Each SDK client registers its connection pool with the SDK's idle
+ * connection reaper, so an evicted client is never collected unless shut down.
+ * The grace period lets calls already made on it finish, so callers look their
+ * client up for each use rather than holding on to it.
+ *
+ * The shared instance shuts every client down at JVM exit, once each user that
+ * retained it to drain work at exit has released it.
+ */
+public class AwsClientRegistry {
+
+    public static final String MAX_CLIENTS_KEY = "oba.cloud.aws.maxClients";
+    private static final int DEFAULT_MAX_CLIENTS = 64;
+    // coarse access tracking so the hot path rarely writes shared state
+    private static final long ACCESS_RESOLUTION_NANOS = TimeUnit.SECONDS.toNanos(1);
+    public static final String EVICTION_GRACE_SECONDS_KEY = "oba.cloud.aws.evictedClientGraceSeconds";
+    private static final long DEFAULT_EVICTION_GRACE_SECONDS = 600;
+
+    private static final Logger _log = LoggerFactory.getLogger(AwsClientRegistry.class);
+
+    private static final AwsClientRegistry INSTANCE =
+            new AwsClientRegistry(Integer.getInteger(MAX_CLIENTS_KEY, DEFAULT_MAX_CLIENTS));
+
+    static {
+        INSTANCE.shutdownAtExit();
+    }
+
+    private final int _maxClients;
+    private final long _graceMillis;
+    private final ConcurrentHashMap<ClientKey, ClientHolder> _clients = new ConcurrentHashMap<>();
+    // evicted clients waiting out the grace period, guarded by this
+    private final Set<ClientHolder> _evicted = new HashSet<>();
+    // created on first eviction
+    private ScheduledExecutorService _reaper;
+    // users still needing clients, guarded by this; the last to release shuts every client down
+    private final Set<Object> _users = new HashSet<>();
+
+    public static AwsClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public AwsClientRegistry(int maxClients) {
+        this(maxClients, TimeUnit.SECONDS.toMillis(
+                Long.getLong(EVICTION_GRACE_SECONDS_KEY, DEFAULT_EVICTION_GRACE_SECONDS)));
+    }
+
+    /**
+     * @param graceMillis how long an evicted client is left running before it is shut down
+     */
+    AwsClientRegistry(int maxClients, long graceMillis) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("maxClients must be positive: " + maxClients);
+        }
+        _maxClients = maxClients;
+        _graceMillis = graceMillis;
+    }
+
+    /**
+     * Return the cached client of the given type for the credentials, building it if necessary.
+     *
+     * @param type client interface, e.g. AmazonS3.class
+     * @param cc credentials the client is built with; null for the SDK default provider chain
+     * @param builder builds the client on a cache miss
+     */
+    public <T> T getClient(Class<T> type, CredentialContainer cc, Function<CredentialContainer, T> builder) {
+        ClientKey key = new ClientKey(type, cc);
+        ClientHolder holder = _clients.get(key);
+        if (holder == null) {
+            ClientHolder created = new ClientHolder();
+            holder = _clients.putIfAbsent(key, created);
+            if (holder == null) {
+                holder = created;
+                evictIfNecessary();
+            }
+        }
+        return type.cast(holder.get(cc, builder));
+    }
+
+    public int size() {
+        return _clients.size();
+    }
+
+    /**
+     * Keep the clients running until the user releases them, e.g. for a service
+     * whose shutdown hook still publishes at JVM exit.
+     */
+    public synchronized void retain(Object user) {
+        _users.add(user);
+    }
+
+    /**
+     * Release a user's hold on the clients.  Once the last user has released them,
+     * every client is shut down.  A user not retained is ignored.
+     */
+    public void release(Object user) {
+        boolean last;
+        synchronized (this) {
+            last = _users.remove(user) && _users.isEmpty();
+        }
+        if (last) {
+            shutdown();
+        }
+    }
+
+    // the registry holds the clients itself until exit, when it releases them alongside any other user
+    private void shutdownAtExit() {
+        retain(this);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> release(this), "aws-client-shutdown"));
+    }
+
+    /**
+     * Shut down and forget every cached client, including evicted ones still in their grace period.
+     */
+    public void shutdown() {
+        for (ClientKey key : _clients.keySet()) {
+            ClientHolder holder = _clients.remove(key);
+            if (holder != null) {
+                shutdownClient(holder.client);
+            }
+        }
+        List<ClientHolder> evicted;
+        synchronized (this) {
+            if (_reaper != null) {
+                _reaper.shutdownNow();
+                _reaper = null;
+            }
+            evicted = new ArrayList<>(_evicted);
+            _evicted.clear();
+        }
+        for (ClientHolder holder : evicted) {
+            shutdownClient(holder.client);
+        }
+    }
+
+    private void evictIfNecessary() {
+        while (_clients.size() > _maxClients) {
+            Map.Entry<ClientKey, ClientHolder> eldest = null;
+            for (Map.Entry<ClientKey, ClientHolder> entry : _clients.entrySet()) {
+                if (eldest == null || entry.getValue().lastAccess - eldest.getValue().lastAccess < 0) {
+                    eldest = entry;
+                }
+            }
+            if (eldest != null && _clients.remove(eldest.getKey(), eldest.getValue())) {
+                _log.info("evicting AWS client {}", eldest.getKey());
+                scheduleShutdown(eldest.getValue());
+            }
+        }
+    }
+
+    private synchronized void scheduleShutdown(ClientHolder holder) {
+        if (_reaper == null) {
+            _reaper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("aws-client-reaper"));
+        }
+        _evicted.add(holder);
+        _reaper.schedule(() -> {
+            boolean pending;
+            synchronized (this) {
+                pending = _evicted.remove(holder);
+            }
+            if (pending) {
+                shutdownClient(holder.client);
+            }
+        }, _graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // evicted clients not yet shut down
+    synchronized int evictedCount() {
+        return _evicted.size();
+    }
+
+    private static void shutdownClient(Object client) {
+        if (client == null) return;
+        try {
+            if (client instanceof AmazonWebServiceClient) {
+                ((AmazonWebServiceClient) client).shutdown();
+            } else if (client instanceof TransferManager) {
+                // each TransferManager is built on an S3 client of its own
+                ((TransferManager) client).shutdownNow(true);
+            }
+        } catch (Throwable any) {
+            _log.warn("exception shutting down " + client + ": " + any);
+        }
+    }
+
+    private static class ClientHolder {
+        private volatile Object client;
+        private volatile long lastAccess = System.nanoTime();
+
+        <T> Object get(CredentialContainer cc, Function<CredentialContainer, T> builder) {
+            long now = System.nanoTime();
+            if (now - lastAccess > ACCESS_RESOLUTION_NANOS) {
+                lastAccess = now;
+            }
+            Object result = client;
+            if (result == null) {
+                synchronized (this) {
+                    result = client;
+                    if (result == null) {
+                        // a failed build leaves the holder empty so the next caller retries
+                        result = builder.apply(cc);
+                        client = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+    private static class ClientKey {
+        private final Class<?> type;
+        private final CredentialContainer credentials;
+
+        ClientKey(Class<?> type, CredentialContainer credentials) {
+            this.type = type;
+            this.credentials = credentials;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ClientKey)) return false;
+            ClientKey that = (ClientKey) o;
+            return type == that.type && Objects.equals(credentials, that.credentials);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, credentials);
+        }
+
+        @Override
+        public String toString() {
+            return type.getSimpleName() + credentials;
+        }
+    }
+}
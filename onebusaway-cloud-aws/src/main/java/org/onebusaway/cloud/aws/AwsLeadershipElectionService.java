@@ -20,6 +20,9 @@ import com.amazonaws.services.autoscaling.AmazonAutoScalingClientBuilder;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.Filter;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
@@ -27,129 +30,350 @@ import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.util.EC2MetadataUtils;
+import org.onebusaway.cloud.api.LeadershipElectionService;
+import org.onebusaway.cloud.api.LeadershipListener;
+import org.onebusaway.cloud.api.LeadershipState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class AwsLeadershipElectionService {
+/**
+ * Elects the oldest instance of an auto scaling group as primary.
+ *
+ * The group is found by name once, with an exact lookup or else a paginated scan
+ * for the name prefix that can be narrowed server side by a tag filter, and then
+ * looked up by its full name.  Launch times never change, so instances are only
+ * described the first time they are seen.  Polling backs off while membership is
+ * stable and returns to the minimum interval when it changes or an instance is in
+ * a lifecycle transition.
+ */
+public class AwsLeadershipElectionService implements LeadershipElectionService {
 
-    private static Logger _log = LoggerFactory.getLogger(AwsLeadershipElectionService.class);
+    public static final String AUTO_SCALING_GROUP_KEY = "aws.autoScalingGroup";
+    // Key=Value of a tag on the group, to narrow the prefix scan
+    public static final String GROUP_TAG_KEY = "oba.cloud.aws.election.groupTag";
+    public static final String MIN_POLL_KEY = "oba.cloud.aws.election.minPollMillis";
+    public static final String MAX_POLL_KEY = "oba.cloud.aws.election.maxPollMillis";
+    // election latency and API call counts are published here when set
+    public static final String METRICS_NAMESPACE_KEY = "oba.cloud.aws.election.metricsNamespace";
+    // what isInstancePrimary answers until the first election completes
+    public static final String INITIAL_PRIMARY_KEY = "oba.cloud.aws.election.initialPrimary";
+    private static final long DEFAULT_MIN_POLL_MILLIS = 10000;
+    // also the longest a departed primary can go unnoticed, so keep it at a minute or less
+    private static final long DEFAULT_MAX_POLL_MILLIS = 60000;
+    private static final int GROUPS_PER_PAGE = 100;
+    private static final String IN_SERVICE = "InService";
 
-    private boolean _primary = true;
+    private static Logger _log = LoggerFactory.getLogger(AwsLeadershipElectionService.class);
 
+    // null if no group is configured, in which case every instance is primary
+    private final String _autoScalingGroupName = System.getProperty(AUTO_SCALING_GROUP_KEY);
+    private final LeadershipState _state;
     private ScheduledExecutorService _scheduledExecutorService;
 
-    public boolean isInstancePrimary() {
-        String autoScalingGroupName = System.getProperty("aws.autoScalingGroup");
-        if (autoScalingGroupName == null) {
-            return true;
+    private final CloudWatchServices _cloudwatch;
+    private final AtomicLong _elections = new AtomicLong();
+    private final AtomicLong _groupRequests = new AtomicLong();
+    private final AtomicLong _instanceRequests = new AtomicLong();
+    private volatile long _lastElectionMillis = -1;
+
+    public AwsLeadershipElectionService() {
+        this(null);
+    }
+
+    /**
+     * @param cloudwatch publishes election metrics if a metrics namespace is configured; may be null
+     */
+    public AwsLeadershipElectionService(CloudWatchServices cloudwatch) {
+        _cloudwatch = cloudwatch;
+        _state = new LeadershipState(_autoScalingGroupName == null
+                || Boolean.getBoolean(INITIAL_PRIMARY_KEY));
+    }
+
+    /**
+     * Begin electing in the background; isInstancePrimary gives the initial state
+     * until the first election completes.
+     */
+    public synchronized void start() {
+        if (_autoScalingGroupName == null || _scheduledExecutorService != null) {
+            return;
+        }
+        try {
+            _log.info("scheduling primary check for group " + _autoScalingGroupName);
+            _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("leadership-election"));
+            // each run schedules the next
+            _scheduledExecutorService.execute(new LeadershipElectionTask(_autoScalingGroupName));
+        } catch (Throwable any) {
+            _log.error("exception scheduling primary check: " + any, any);
         }
-        scheduleTaskIfUnscheduled(autoScalingGroupName);
-        return _primary;
     }
 
-    private void scheduleTaskIfUnscheduled(String autoScalingGroupName) {
-        if (_scheduledExecutorService == null) {
-            try {
-                _log.info("scheduling primary check for group " + autoScalingGroupName);
-                _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-                _scheduledExecutorService.scheduleAtFixedRate(new LeadershipElectionTask(autoScalingGroupName),
-                        1, 1, TimeUnit.MINUTES);
-                // and run now, synchronously:
-                new LeadershipElectionTask(autoScalingGroupName).run();
-            } catch (Throwable any) {
-                _log.error("exception scheduling primary check: " + any, any);
-            }
+    @Override
+    public boolean isInstancePrimary() {
+        return _state.isPrimary();
+    }
+
+    /**
+     * Launch order carries no term number, so there are no fencing tokens.
+     */
+    @Override
+    public long getFencingToken() {
+        return -1;
+    }
+
+    @Override
+    public void addListener(LeadershipListener listener) {
+        _state.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(LeadershipListener listener) {
+        _state.removeListener(listener);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (_scheduledExecutorService != null) {
+            _scheduledExecutorService.shutdownNow();
         }
+        _state.lost();
     }
 
+    /** elections run so far */
+    public long getElectionCount() { return _elections.get(); }
+    /** DescribeAutoScalingGroups requests made so far */
+    public long getGroupRequestCount() { return _groupRequests.get(); }
+    /** DescribeInstances requests made so far */
+    public long getInstanceRequestCount() { return _instanceRequests.get(); }
+    /** duration of the most recent election, or -1 before the first */
+    public long getLastElectionMillis() { return _lastElectionMillis; }
+
     private class LeadershipElectionTask implements Runnable {
-        private AmazonAutoScaling _autoScale;
-        private AmazonEC2 _ec2;
         private String _autoScalingGroupName;
+        private final Filter _groupFilter;
+        private final long _minPollMillis = Long.getLong(MIN_POLL_KEY, DEFAULT_MIN_POLL_MILLIS);
+        private final long _maxPollMillis = Long.getLong(MAX_POLL_KEY, DEFAULT_MAX_POLL_MILLIS);
+        private final String _metricsNamespace = System.getProperty(METRICS_NAMESPACE_KEY);
+
+        // full name of the group matching the prefix, once found
+        private String _resolvedGroupName;
+        private String _instanceId;
+        private final Map<String, Date> _launchTimes = new HashMap<>();
+        private String _lastMembership;
+        private long _pollMillis = _minPollMillis;
 
         public LeadershipElectionTask(String autoScalingGroupName) {
+            _autoScalingGroupName = autoScalingGroupName;
+            _groupFilter = parseTagFilter(System.getProperty(GROUP_TAG_KEY));
             try {
-                _ec2 = AmazonEC2ClientBuilder.standard().build();
-                _autoScale = AmazonAutoScalingClientBuilder.standard().build();;
-                _autoScalingGroupName = autoScalingGroupName;
+                ec2();
+                autoScale();
             } catch(Throwable e){
                 _log.warn("Unable to create AWS Clients", e);
             }
         }
 
-        public void run() {
-            AutoScalingGroup autoScalingGroup = getAutoScalingGroups();
-
-            if(autoScalingGroup != null) {
-                try {
-                    String oldestInstance = null;
-                    Date oldestInstanceLaunchTime = new Date();
+        // looked up for each request, as the registry may evict and later shut down a client
+        private AmazonEC2 ec2() {
+            return AwsClientRegistry.getInstance().getClient(AmazonEC2.class, null,
+                    cc -> AmazonEC2ClientBuilder.standard().build());
+        }
 
-                    List<String> instanceIds = autoScalingGroup.getInstances().stream()
-                            .map(com.amazonaws.services.autoscaling.model.Instance::getInstanceId)
-                            .collect(Collectors.toList());
+        private AmazonAutoScaling autoScale() {
+            return AwsClientRegistry.getInstance().getClient(AmazonAutoScaling.class, null,
+                    cc -> AmazonAutoScalingClientBuilder.standard().build());
+        }
 
-                    List<Instance> instances = getInstances(instanceIds);
+        public void run() {
+            long start = System.nanoTime();
+            long groupRequests = _groupRequests.get();
+            long instanceRequests = _instanceRequests.get();
+            try {
+                elect();
+            } catch (Throwable any) {
+                _log.error("exception with primary check:" + any, any);
+                _pollMillis = _minPollMillis;
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            _lastElectionMillis = elapsed;
+            _elections.incrementAndGet();
+            publishMetrics(elapsed, _groupRequests.get() - groupRequests, _instanceRequests.get() - instanceRequests);
+            if (!_scheduledExecutorService.isShutdown()) {
+                _scheduledExecutorService.schedule(this, _pollMillis, TimeUnit.MILLISECONDS);
+            }
+        }
 
-                    for (Instance instance : instances) {
-                        if (instance.getLaunchTime().before(oldestInstanceLaunchTime)) {
-                            oldestInstanceLaunchTime = instance.getLaunchTime();
-                            oldestInstance = instance.getInstanceId();
-                        }
-                    }
+        private void elect() {
+            AutoScalingGroup autoScalingGroup = getAutoScalingGroup();
+            if (autoScalingGroup == null) {
+                _log.warn("Not the primary instance, no autoScaling group found.");
+                _state.lost();
+                _pollMillis = _minPollMillis;
+                return;
+            }
 
-                    if (oldestInstance != null && oldestInstance.equals(EC2MetadataUtils.getInstanceId())) {
-                        _log.warn("This is the primary instance.");
-                        _primary = true;
-                    } else {
-                        _log.warn("This is not the primary instance. Oldest Instance Id is {}, this Instance Id is {}", oldestInstance, EC2MetadataUtils.getInstanceId());
-                        _primary = false;
-                    }
-                } catch (Throwable any) {
-                    _log.error("exception with primary check:" + any, any);
+            List<String> instanceIds = new ArrayList<>();
+            List<String> membership = new ArrayList<>();
+            boolean inTransition = false;
+            for (com.amazonaws.services.autoscaling.model.Instance member : autoScalingGroup.getInstances()) {
+                String state = member.getLifecycleState();
+                membership.add(member.getInstanceId() + ":" + state);
+                if (!IN_SERVICE.equals(state)) {
+                    inTransition = true;
+                }
+                // an instance on its way out should hand over now rather than when it is gone
+                if (state == null || !state.startsWith("Terminat")) {
+                    instanceIds.add(member.getInstanceId());
                 }
+            }
+            String oldestInstance = findOldest(instanceIds);
+            String thisInstance = getInstanceId();
+            if (oldestInstance != null && oldestInstance.equals(thisInstance)) {
+                if (!_state.isPrimary()) _log.warn("This is the primary instance.");
+                _state.acquired(-1);
             } else {
-                _log.warn("Not the primary instance, no autoScaling group found.");
-                _primary = false;
+                if (_state.isPrimary()) _log.warn("This is not the primary instance. Oldest Instance Id is {}, this Instance Id is {}",
+                        oldestInstance, thisInstance);
+                _state.lost();
             }
+
+            membership.sort(null);
+            String signature = String.join(",", membership);
+            if (inTransition || !signature.equals(_lastMembership)) {
+                _pollMillis = _minPollMillis;
+            } else {
+                _pollMillis = Math.min(_pollMillis * 2, _maxPollMillis);
+            }
+            _lastMembership = signature;
         }
 
-        private AutoScalingGroup getAutoScalingGroups(){
-            try {
-                DescribeAutoScalingGroupsResult result = _autoScale.describeAutoScalingGroups(
-                        new DescribeAutoScalingGroupsRequest());
-                return result.getAutoScalingGroups().stream()
-                        .filter(group -> group.getAutoScalingGroupName().startsWith(_autoScalingGroupName))
-                        .findFirst().orElse(null);
-            } catch (Throwable any) {
-                _log.error("exception retrieving autoscaling groups " + any, any);
+        private String findOldest(List<String> instanceIds) {
+            _launchTimes.keySet().retainAll(instanceIds);
+            List<String> unknown = new ArrayList<>();
+            for (String id : instanceIds) {
+                if (!_launchTimes.containsKey(id)) unknown.add(id);
             }
+            if (!unknown.isEmpty()) {
+                for (Instance instance : getInstances(unknown)) {
+                    _launchTimes.put(instance.getInstanceId(), instance.getLaunchTime());
+                }
+            }
+            String oldest = null;
+            Date oldestLaunchTime = null;
+            for (Map.Entry<String, Date> entry : _launchTimes.entrySet()) {
+                Date launchTime = entry.getValue();
+                // ties go to the lowest instance id, so every instance agrees
+                if (oldest == null || launchTime.before(oldestLaunchTime)
+                        || (launchTime.equals(oldestLaunchTime) && entry.getKey().compareTo(oldest) < 0)) {
+                    oldest = entry.getKey();
+                    oldestLaunchTime = launchTime;
+                }
+            }
+            return oldest;
+        }
+
+        private String getInstanceId() {
+            if (_instanceId == null) {
+                _instanceId = EC2MetadataUtils.getInstanceId();
+            }
+            return _instanceId;
+        }
+
+        private AutoScalingGroup getAutoScalingGroup() {
+            if (_resolvedGroupName != null) {
+                AutoScalingGroup group = describeGroup(_resolvedGroupName);
+                if (group != null) return group;
+                // the group was replaced, e.g. by a stack update
+                _log.info("auto scaling group {} is gone, searching again", _resolvedGroupName);
+                _resolvedGroupName = null;
+            }
+            AutoScalingGroup group = describeGroup(_autoScalingGroupName);
+            if (group == null) {
+                group = findGroupByPrefix();
+            }
+            if (group != null) {
+                _resolvedGroupName = group.getAutoScalingGroupName();
+                _log.info("using auto scaling group {}", _resolvedGroupName);
+            }
+            return group;
+        }
+
+        private AutoScalingGroup describeGroup(String name) {
+            _groupRequests.incrementAndGet();
+            DescribeAutoScalingGroupsResult result = autoScale().describeAutoScalingGroups(
+                    new DescribeAutoScalingGroupsRequest().withAutoScalingGroupNames(name));
+            return result.getAutoScalingGroups().isEmpty() ? null : result.getAutoScalingGroups().get(0);
+        }
+
+        private AutoScalingGroup findGroupByPrefix() {
+            String nextToken = null;
+            do {
+                DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest()
+                        .withMaxRecords(GROUPS_PER_PAGE)
+                        .withNextToken(nextToken);
+                if (_groupFilter != null) {
+                    request.withFilters(_groupFilter);
+                }
+                _groupRequests.incrementAndGet();
+                DescribeAutoScalingGroupsResult result = autoScale().describeAutoScalingGroups(request);
+                for (AutoScalingGroup group : result.getAutoScalingGroups()) {
+                    if (group.getAutoScalingGroupName().startsWith(_autoScalingGroupName)) {
+                        return group;
+                    }
+                }
+                nextToken = result.getNextToken();
+            } while (nextToken != null);
             return null;
         }
 
-        private List<Instance> getInstances(List<String> instanceIds){
-            try {
-                DescribeInstancesRequest request = new DescribeInstancesRequest();
-                request.setInstanceIds(instanceIds);
-                DescribeInstancesResult result = _ec2.describeInstances(request);
-                List<Instance> instances = new ArrayList();
+        private List<Instance> getInstances(List<String> instanceIds) {
+            List<Instance> instances = new ArrayList<>();
+            String nextToken = null;
+            do {
+                _instanceRequests.incrementAndGet();
+                DescribeInstancesResult result = ec2().describeInstances(new DescribeInstancesRequest()
+                        .withInstanceIds(instanceIds)
+                        .withNextToken(nextToken));
                 for (Reservation reservation : result.getReservations()) {
                     instances.addAll(reservation.getInstances());
                 }
-                return instances;
-            } catch (Throwable e){
-                _log.error("Unable to retreive instances", e);
-                return Collections.EMPTY_LIST;
+                nextToken = result.getNextToken();
+            } while (nextToken != null);
+            return instances;
+        }
+
+        private void publishMetrics(long elapsedMillis, long groupRequests, long instanceRequests) {
+            if (_metricsNamespace == null || _cloudwatch == null) return;
+            try {
+                Date now = new Date();
+                _cloudwatch.publishMetric(null, _metricsNamespace,
+                        new MetricDatum().withMetricName("ElectionLatency").withUnit(StandardUnit.Milliseconds)
+                                .withTimestamp(now).withValue((double) elapsedMillis),
+                        new MetricDatum().withMetricName("ElectionApiCalls").withUnit(StandardUnit.Count)
+                                .withTimestamp(now).withValue((double) (groupRequests + instanceRequests)));
+            } catch (Throwable any) {
+                _log.warn("unable to publish election metrics: " + any);
             }
         }
     }
+
+    // "Key=Value" filters on that tag, "Key" on the presence of the tag
+    private static Filter parseTagFilter(String tag) {
+        if (tag == null || tag.isEmpty()) return null;
+        int eq = tag.indexOf('=');
+        if (eq < 0) {
+            return new Filter().withName("tag-key").withValues(tag);
+        }
+        return new Filter().withName("tag:" + tag.substring(0, eq)).withValues(tag.substring(eq + 1));
+    }
 }
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers items in a bounded queue and hands them to flush() in batches from a
+ * background thread, so callers never wait on a round trip.  A batch is flushed
+ * when it is full or when the flush interval elapses, whichever comes first.
+ */
+public abstract class BatchingPublisher<T> {
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+    // upper bound on how long the flusher waits before re-checking for shutdown
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger _log = LoggerFactory.getLogger(getClass());
+
+    private final String _name;
+    private final BlockingQueue<T> _queue;
+    private final int _batchSize;
+    private final long _flushIntervalNanos;
+    private final OverflowPolicy _overflowPolicy;
+    private final long _blockTimeoutMillis;
+
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    private volatile boolean _running = false;
+    private Thread _flusher;
+
+    /**
+     * @param name names the flusher thread and log messages
+     */
+    protected BatchingPublisher(String name, int queueSize, int batchSize, long flushIntervalMillis,
+                                OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        if (queueSize < 1 || batchSize < 1 || flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("queueSize=" + queueSize + ", batchSize=" + batchSize
+                    + " and flushIntervalMillis=" + flushIntervalMillis + " must be positive");
+        }
+        _name = name;
+        _queue = new ArrayBlockingQueue<>(queueSize);
+        _batchSize = batchSize;
+        _flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        _overflowPolicy = overflowPolicy;
+        _blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    public synchronized void start() {
+        if (_running) return;
+        _running = true;
+        _flusher = new Thread(this::runFlusher, _name + "-flusher");
+        _flusher.setDaemon(true);
+        _flusher.start();
+        _log.info("asynchronous {} publishing started: queueSize={}, batchSize={}, policy={}",
+                _name, _queue.remainingCapacity(), _batchSize, _overflowPolicy);
+    }
+
+    /**
+     * Publish the batch.  Implementations report the outcome through recordSent
+     * and recordFailed; an exception counts the whole batch as failed.
+     */
+    protected abstract void flush(List<T> batch);
+
+    protected void recordSent(int count) { _sent.addAndGet(count); }
+    protected void recordFailed(int count) { _failed.addAndGet(count); }
+
+    /**
+     * Queue an item, applying the overflow policy if the queue is full.
+     * @return false if the item was dropped
+     */
+    protected boolean enqueue(T item) {
+        if (!_running) {
+            _dropped.incrementAndGet();
+            return false;
+        }
+        switch (_overflowPolicy) {
+            case DROP_OLDEST:
+                while (!_queue.offer(item)) {
+                    if (_queue.poll() != null) {
+                        _dropped.incrementAndGet();
+                    }
+                }
+                break;
+            case BLOCK:
+                try {
+                    if (!_queue.offer(item, _blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        _dropped.incrementAndGet();
+                        return false;
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    _dropped.incrementAndGet();
+                    return false;
+                }
+                break;
+            default:
+                if (!_queue.offer(item)) {
+                    _dropped.incrementAndGet();
+                    return false;
+                }
+        }
+        _queued.incrementAndGet();
+        return true;
+    }
+
+    private void runFlusher() {
+        List<T> batch = new ArrayList<>(_batchSize);
+        long deadline = System.nanoTime() + _flushIntervalNanos;
+        while (_running) {
+            try {
+                long remaining = deadline - System.nanoTime();
+                T item = remaining > 0
+                        ? _queue.poll(Math.min(remaining, MAX_POLL_NANOS), TimeUnit.NANOSECONDS) : null;
+                if (item != null) {
+                    batch.add(item);
+                    _queue.drainTo(batch, _batchSize - batch.size());
+                }
+                if (batch.size() >= _batchSize || System.nanoTime() - deadline >= 0) {
+                    flushQuietly(batch);
+                    deadline = System.nanoTime() + _flushIntervalNanos;
+                }
+            } catch (InterruptedException ie) {
+                break;
+            } catch (Throwable any) {
+                _log.error("exception flushing " + _name + ": " + any, any);
+            }
+        }
+        _queue.drainTo(batch);
+        flushQuietly(batch);
+    }
+
+    private void flushQuietly(List<T> batch) {
+        if (batch.isEmpty()) return;
+        try {
+            flush(batch);
+        } catch (Throwable any) {
+            recordFailed(batch.size());
+            _log.warn("unable to publish " + batch.size() + " " + _name + " items: " + any);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stop accepting items and publish everything still queued.
+     */
+    public void shutdown() {
+        Thread flusher;
+        synchronized (this) {
+            if (!_running) return;
+            _running = false;
+            flusher = _flusher;
+        }
+        try {
+            flusher.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        _log.info("asynchronous {} publishing stopped: queued={}, sent={}, dropped={}, failed={}",
+                _name, getQueuedCount(), getSentCount(), getDroppedCount(), getFailedCount());
+    }
+
+    public boolean isRunning() { return _running; }
+
+    /** items accepted into the buffer */
+    public long getQueuedCount() { return _queued.get(); }
+    /** items successfully published, or spooled to disk for replay */
+    public long getSentCount() { return _sent.get(); }
+    /** items discarded by the overflow policy or after shutdown */
+    public long getDroppedCount() { return _dropped.get(); }
+    /** items that the service rejected or that failed in transit */
+    public long getFailedCount() { return _failed.get(); }
+    /** items currently waiting to be published */
+    public int getPendingCount() { return _queue.size(); }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executors that run blocking SDK calls.  By default these are
+ * bounded pools of platform threads.  With oba.cloud.aws.virtualThreads=true,
+ * on a JVM that supports them, each task gets its own virtual thread instead,
+ * and a per-service permit count keeps concurrency within what the service's
+ * HTTP connection pool can serve.
+ */
+class CloudExecutors {
+
+    public static final String VIRTUAL_THREADS_KEY = "oba.cloud.aws.virtualThreads";
+    // e.g. oba.cloud.aws.s3.maxConcurrency
+    private static final String MAX_CONCURRENCY_KEY_FORMAT = "oba.cloud.aws.%s.maxConcurrency";
+    // matches the SDK's default ClientConfiguration.maxConnections
+    private static final int DEFAULT_MAX_CONCURRENCY = 50;
+
+    private static final Logger _log = LoggerFactory.getLogger(CloudExecutors.class);
+
+    private CloudExecutors() {
+    }
+
+    /**
+     * @param service short service name used for thread names and the concurrency property
+     * @param platformThreads pool size when virtual threads are not in use
+     * @param queueSize pending tasks allowed when virtual threads are not in use
+     * @param callerRunsWhenFull run on the submitting thread rather than reject when the queue is full
+     */
+    static ExecutorService newExecutor(String service, int platformThreads, int queueSize,
+                                       boolean callerRunsWhenFull) {
+        if (Boolean.getBoolean(VIRTUAL_THREADS_KEY)) {
+            ExecutorService virtual = newVirtualThreadExecutor(service);
+            if (virtual != null) {
+                int maxConcurrency = Integer.getInteger(String.format(MAX_CONCURRENCY_KEY_FORMAT, service),
+                        DEFAULT_MAX_CONCURRENCY);
+                _log.info("running {} calls on virtual threads, at most {} at once", service, maxConcurrency);
+                return new ConcurrencyLimitedExecutor(virtual, maxConcurrency);
+            }
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(platformThreads, platformThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), new NamedThreadFactory(service),
+                callerRunsWhenFull
+                        ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Thread.ofVirtual().name(service + "-", 1).factory(), looked up reflectively as we compile for Java 11
+    private static ExecutorService newVirtualThreadExecutor(String service) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, service + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            _log.warn("virtual threads requested but not available on Java "
+                    + System.getProperty("java.version") + ", using platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * Starts every task immediately on the delegate, but lets at most maxConcurrency
+     * of them past the permit at once.  Waiting for a permit is cheap on a virtual thread.
+     */
+    static class ConcurrencyLimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService _delegate;
+        private final Semaphore _permits;
+
+        ConcurrencyLimitedExecutor(ExecutorService delegate, int maxConcurrency) {
+            _delegate = delegate;
+            _permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            _delegate.execute(() -> {
+                boolean permitted = false;
+                try {
+                    _permits.acquire();
+                    permitted = true;
+                } catch (InterruptedException ie) {
+                    // run it anyway, interrupted, so its future fails or completes rather than never finishing
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    command.run();
+                } finally {
+                    if (permitted) {
+                        _permits.release();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            _delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return _delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return _delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return _delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return _delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
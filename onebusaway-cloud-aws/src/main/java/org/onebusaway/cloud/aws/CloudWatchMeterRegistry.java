@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.onebusaway.cloud.api.Counter;
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.Histogram;
+import org.onebusaway.cloud.api.LogLinearHistogram;
+import org.onebusaway.cloud.api.MeterRegistry;
+import org.onebusaway.cloud.api.MetricUnit;
+import org.onebusaway.cloud.api.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A MeterRegistry that publishes to one CloudWatch namespace.  Every step the
+ * meters are snapshotted and reset, and the resulting datums go out together as
+ * one batched publish: counters as their total, gauges as their current value,
+ * and timers and histograms as the values and counts of their buckets, from
+ * which CloudWatch computes percentiles.
+ */
+public class CloudWatchMeterRegistry implements MeterRegistry {
+
+    public static final String STEP_KEY = "oba.cloud.aws.metrics.stepMillis";
+    private static final long DEFAULT_STEP_MILLIS = 60000;
+    // PutMetricData accepts up to 150 distinct values per datum
+    static final int MAX_VALUES_PER_DATUM = 150;
+    // histograms cover 1e-3 to 1e12 in any unit, in 801 buckets
+    private static final double HISTOGRAM_LOWEST = 1e-3;
+    private static final double HISTOGRAM_HIGHEST = 1e12;
+
+    private final Logger _log = LoggerFactory.getLogger(CloudWatchMeterRegistry.class);
+
+    private final CloudWatchServices _cloudwatch;
+    private final Credential _credential;
+    private final String _namespace;
+    private final long _stepMillis;
+    private final ConcurrentHashMap<MeterId, Meter> _meters = new ConcurrentHashMap<>();
+    private ScheduledExecutorService _scheduledExecutorService;
+
+    public CloudWatchMeterRegistry(CloudWatchServices cloudwatch, Credential credential, String namespace) {
+        this(cloudwatch, credential, namespace, Long.getLong(STEP_KEY, DEFAULT_STEP_MILLIS));
+    }
+
+    public CloudWatchMeterRegistry(CloudWatchServices cloudwatch, Credential credential, String namespace,
+                                   long stepMillis) {
+        if (stepMillis < 1) {
+            throw new IllegalArgumentException("stepMillis must be positive: " + stepMillis);
+        }
+        _cloudwatch = cloudwatch;
+        _credential = credential;
+        _namespace = namespace;
+        _stepMillis = stepMillis;
+    }
+
+    public synchronized void start() {
+        if (_scheduledExecutorService != null) return;
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("cloudwatch-meter-registry"));
+        _scheduledExecutorService.scheduleAtFixedRate(this::publishQuietly,
+                _stepMillis, _stepMillis, TimeUnit.MILLISECONDS);
+        _log.info("publishing meters of {} every {} ms", _namespace, _stepMillis);
+    }
+
+    @Override
+    public Counter counter(String name, String... tags) {
+        return register(new MeterId(name, MetricUnit.COUNT, tags), StepCounter.class, StepCounter::new);
+    }
+
+    @Override
+    public void gauge(String name, MetricUnit unit, DoubleSupplier supplier, String... tags) {
+        // registering a gauge again replaces its supplier
+        MeterId id = new MeterId(name, unit, tags);
+        _meters.compute(id, (k, existing) -> {
+            if (existing != null && !(existing instanceof SampledGauge)) {
+                throw alreadyRegistered(id, existing);
+            }
+            return new SampledGauge(supplier);
+        });
+    }
+
+    @Override
+    public Timer timer(String name, String... tags) {
+        return register(new MeterId(name, MetricUnit.MILLISECONDS, tags), StepTimer.class, StepTimer::new);
+    }
+
+    @Override
+    public Histogram histogram(String name, MetricUnit unit, String... tags) {
+        return register(new MeterId(name, unit, tags), StepHistogram.class, StepHistogram::new);
+    }
+
+    private <T extends Meter> T register(MeterId id, Class<T> type, Supplier<T> factory) {
+        Meter meter = _meters.computeIfAbsent(id, k -> factory.get());
+        if (!type.isInstance(meter)) {
+            throw alreadyRegistered(id, meter);
+        }
+        return type.cast(meter);
+    }
+
+    private static IllegalArgumentException alreadyRegistered(MeterId id, Meter meter) {
+        return new IllegalArgumentException(id.name + " " + id.dimensions + " is already registered as a "
+                + meter.getClass().getSimpleName());
+    }
+
+    public int size() {
+        return _meters.size();
+    }
+
+    private void publishQuietly() {
+        try {
+            publish();
+        } catch (Throwable any) {
+            _log.error("exception publishing meters of " + _namespace + ": " + any, any);
+        }
+    }
+
+    /**
+     * Snapshot and reset every meter and publish the results as one batch.
+     */
+    public void publish() {
+        Date timestamp = new Date();
+        List<MetricDatum> datums = new ArrayList<>(_meters.size());
+        for (Map.Entry<MeterId, Meter> entry : _meters.entrySet()) {
+            MeterId id = entry.getKey();
+            int first = datums.size();
+            entry.getValue().snapshot(datums);
+            for (int i = first; i < datums.size(); i++) {
+                MetricDatum datum = datums.get(i);
+                datum.withMetricName(id.name).withUnit(id.unit.getName()).withTimestamp(timestamp);
+                if (!id.dimensions.isEmpty()) {
+                    datum.setDimensions(id.dimensions);
+                }
+            }
+        }
+        if (!datums.isEmpty()) {
+            _cloudwatch.publishAggregated(_credential, _namespace, datums);
+        }
+    }
+
+    /**
+     * Publish what has been recorded so far and stop the periodic publish.
+     */
+    public synchronized void shutdown() {
+        if (_scheduledExecutorService == null) return;
+        _scheduledExecutorService.shutdown();
+        try {
+            _scheduledExecutorService.awaitTermination(_stepMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        _scheduledExecutorService = null;
+        publishQuietly();
+    }
+
+    private interface Meter {
+        // add the datums of the step just ended, without name, unit or dimensions
+        void snapshot(List<MetricDatum> datums);
+    }
+
+    private static class StepCounter implements Meter, Counter {
+        private final DoubleAdder _count = new DoubleAdder();
+
+        @Override
+        public void increment() {
+            _count.add(1);
+        }
+
+        @Override
+        public void increment(double amount) {
+            _count.add(amount);
+        }
+
+        // zero is published too, so an idle counter reads as zero rather than missing
+        @Override
+        public void snapshot(List<MetricDatum> datums) {
+            datums.add(new MetricDatum().withValue(_count.sumThenReset()));
+        }
+    }
+
+    private static class SampledGauge implements Meter {
+        private final DoubleSupplier _supplier;
+
+        SampledGauge(DoubleSupplier supplier) {
+            _supplier = supplier;
+        }
+
+        @Override
+        public void snapshot(List<MetricDatum> datums) {
+            double value = _supplier.getAsDouble();
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                datums.add(new MetricDatum().withValue(value));
+            }
+        }
+    }
+
+    private static class StepHistogram implements Meter, Histogram {
+        private final LogLinearHistogram _histogram;
+
+        StepHistogram() {
+            this(HISTOGRAM_LOWEST, HISTOGRAM_HIGHEST);
+        }
+
+        StepHistogram(double lowest, double highest) {
+            _histogram = new LogLinearHistogram(lowest, highest);
+        }
+
+        @Override
+        public void record(double value) {
+            _histogram.record(value);
+        }
+
+        // one datum per MAX_VALUES_PER_DATUM occupied buckets, nothing if the step was idle
+        @Override
+        public void snapshot(List<MetricDatum> datums) {
+            LogLinearHistogram snapshot = _histogram.snapshotAndReset();
+            List<Double> values = new ArrayList<>();
+            List<Double> counts = new ArrayList<>();
+            for (int i = 0; i < snapshot.bucketCount(); i++) {
+                long count = snapshot.countAt(i);
+                if (count == 0) continue;
+                values.add(snapshot.bucketValue(i));
+                counts.add((double) count);
+                if (values.size() == MAX_VALUES_PER_DATUM) {
+                    datums.add(new MetricDatum().withValues(values).withCounts(counts));
+                    values.clear();
+                    counts.clear();
+                }
+            }
+            if (!values.isEmpty()) {
+                datums.add(new MetricDatum().withValues(values).withCounts(counts));
+            }
+        }
+    }
+
+    private static class StepTimer extends StepHistogram implements Timer {
+        private static final double NANOS_PER_MILLI = 1e6;
+
+        // a microsecond to an hour, in 513 buckets
+        StepTimer() {
+            super(1e-3, TimeUnit.HOURS.toMillis(1));
+        }
+
+        @Override
+        public void record(long amount, TimeUnit unit) {
+            record(unit.toNanos(amount) / NANOS_PER_MILLI);
+        }
+    }
+
+    /**
+     * Name and dimensions of a meter, with the unit it publishes in.
+     */
+    private static class MeterId {
+        private final String name;
+        private final MetricUnit unit;
+        private final List<Dimension> dimensions;
+        private final int hash;
+
+        MeterId(String name, MetricUnit unit, String[] tags) {
+            if (tags.length % 2 != 0) {
+                throw new IllegalArgumentException("tags must be name, value pairs: " + Arrays.toString(tags));
+            }
+            List<Dimension> dimensions = new ArrayList<>(tags.length / 2);
+            for (int i = 0; i < tags.length; i += 2) {
+                dimensions.add(new Dimension().withName(tags[i]).withValue(tags[i + 1]));
+            }
+            this.name = name;
+            this.unit = unit;
+            this.dimensions = Collections.unmodifiableList(dimensions);
+            // the unit is not part of the identity, as CloudWatch does not key on it
+            this.hash = Objects.hash(name, this.dimensions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MeterId)) return false;
+            MeterId that = (MeterId) o;
+            return hash == that.hash && name.equals(that.name) && dimensions.equals(that.dimensions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.onebusaway.cloud.aws;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
@@ -23,19 +24,117 @@ import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import org.onebusaway.cloud.api.Credential;
 import org.onebusaway.cloud.api.ExternalResult;
+import org.onebusaway.cloud.api.MeterRegistry;
+import org.onebusaway.cloud.api.MetricDescriptor;
+import org.onebusaway.cloud.api.MetricHandle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 public class CloudWatchServices {
     private final Logger _log = LoggerFactory.getLogger(CloudWatchServices.class);
-    private static final int MAX_DATUM_LENGTH = 20;
 
-    Map<Credential, AmazonCloudWatch> _clientMap = new HashMap<>();
+    public static final String MAX_DATUMS_PER_REQUEST_KEY = "oba.cloud.aws.metrics.maxDatumsPerRequest";
+    public static final String MAX_REQUEST_BYTES_KEY = "oba.cloud.aws.metrics.maxRequestBytes";
+    public static final String PUBLISH_THREADS_KEY = "oba.cloud.aws.metrics.publishThreads";
+    // PutMetricData accepts up to 1000 datums and a 1 MB payload per request
+    static final int DEFAULT_MAX_DATUMS_PER_REQUEST = 1000;
+    private static final int DEFAULT_MAX_REQUEST_BYTES = 1000 * 1000;
+    private static final int DEFAULT_PUBLISH_THREADS = 4;
+    // form encoding overhead of each field, e.g. "&MetricData.member.1000.Dimensions.member.30.Value="
+    private static final int ENCODED_FIELD_OVERHEAD = 56;
+
+    private final AwsClientRegistry _clients = AwsClientRegistry.getInstance();
+    private final int _maxDatumsPerRequest = Integer.getInteger(MAX_DATUMS_PER_REQUEST_KEY, DEFAULT_MAX_DATUMS_PER_REQUEST);
+    private final int _maxRequestBytes = Integer.getInteger(MAX_REQUEST_BYTES_KEY, DEFAULT_MAX_REQUEST_BYTES);
+    private final ExecutorService _publishExecutor;
+
+    // null unless asynchronous publishing is enabled
+    private AsyncMetricPublisher _asyncPublisher;
+    // aggregate every metric rather than only those recorded through handles
+    private final boolean _aggregateAll = Boolean.getBoolean(MetricAggregator.AGGREGATE_KEY);
+    // null until aggregation is enabled or a metric handle is registered
+    private volatile MetricAggregator _aggregator;
+    private final Map<Destination, CloudWatchMeterRegistry> _registries = new ConcurrentHashMap<>();
+    // registered once something needs draining at exit, removed by an explicit shutdown()
+    private Thread _shutdownHook;
+    // null unless spooling is enabled
+    private final DiskSpool _spool;
+    private final SpoolReplayer _replayer;
+
+    public CloudWatchServices() {
+        this(true);
+    }
+
+    /**
+     * @param spool false to never spool, even with a spool directory set
+     */
+    CloudWatchServices(boolean spool) {
+        _spool = spool ? DiskSpool.fromSystemProperties("cloudwatch", this) : null;
+        int threads = Integer.getInteger(PUBLISH_THREADS_KEY, DEFAULT_PUBLISH_THREADS);
+        _publishExecutor = CloudExecutors.newExecutor("cloudwatch", threads, threads * 4, true);
+        if (_spool != null) {
+            // the spool's replayer, shared with any other instance spooling to the same directory
+            _replayer = _spool.replayer(this::replay);
+        } else {
+            _replayer = null;
+        }
+        if (Boolean.getBoolean(AsyncMetricPublisher.ASYNC_KEY)) {
+            _asyncPublisher = new AsyncMetricPublisher(this);
+            _asyncPublisher.start();
+        }
+        if (_aggregateAll) {
+            _aggregator = new MetricAggregator(this);
+            _aggregator.start();
+        }
+        if (_asyncPublisher != null || _aggregator != null || _spool != null) {
+            ensureShutdownHook();
+        }
+    }
+
+    // publish whatever is buffered when the JVM exits
+    private synchronized void ensureShutdownHook() {
+        if (_shutdownHook == null) {
+            _shutdownHook = new Thread(this::shutdown, "cloudwatch-metric-drain");
+            // the drain publishes through the clients, so they must outlive it
+            _clients.retain(this);
+            Runtime.getRuntime().addShutdownHook(_shutdownHook);
+        }
+    }
+
+    // so an instance shut down by its owner does not stay reachable from the JVM
+    private synchronized void removeShutdownHook() {
+        if (_shutdownHook != null && Thread.currentThread() != _shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(_shutdownHook);
+            } catch (IllegalStateException shuttingDown) {
+                // the hook is already running or about to
+            }
+            _shutdownHook = null;
+        }
+    }
+
+    public AsyncMetricPublisher getAsyncPublisher() {
+        return _asyncPublisher;
+    }
+
+    public MetricAggregator getAggregator() {
+        return _aggregator;
+    }
 
     public ExternalResult publishMetric(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
         return publishMetric(new CredentialContainer().getDefaultCredential(),
@@ -53,11 +152,77 @@ public class CloudWatchServices {
         return publishMetric(credential, namespace, metricDatum);
     }
 
+    public ExternalResult publishMetric(String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(new CredentialContainer().getDefaultCredential(),
+                namespace, metric, dimensionName, dimensionValue, value);
+    }
+    public ExternalResult publishMetric(Credential credential, String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        List<Dimension> dims = null;
+        if (dimensionName != null && dimensionValue != null) {
+            dims = Collections.singletonList(new Dimension().withName(dimensionName).withValue(dimensionValue));
+        }
+        return publishMetric(credential, namespace, getMetricAsMetricDatum(metric, dims, value));
+    }
+
     public ExternalResult publishMultiDimensionalMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
         return publishMultiDimensionalMetric(new CredentialContainer().getDefaultCredential(),
                 namespace, metricName, dimensionName, dimensionValue, value);
     }
     public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        MetricDatum metricDatum = getMetricAsMetricDatum(metricName, toDimensions(dimensionName, dimensionValue), value);
+        return publishMetric(credential, namespace, metricDatum);
+    }
+
+    public ExternalResult publishMultiDimensionalMetric(String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(new CredentialContainer().getDefaultCredential(),
+                namespace, metric, dimensionName, dimensionValue, value);
+    }
+    public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        MetricDatum metricDatum = getMetricAsMetricDatum(metric, toDimensions(dimensionName, dimensionValue), value);
+        return publishMetric(credential, namespace, metricDatum);
+    }
+
+    public MetricHandle registerMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return registerMetric(new CredentialContainer().getDefaultCredential(),
+                namespace, metricName, dimensionName, dimensionValue);
+    }
+
+    /**
+     * Handles publish through the aggregator, which is started here if aggregation
+     * is not otherwise enabled.
+     */
+    public MetricHandle registerMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return getOrStartAggregator().register(new MetricAggregator.MetricKey(credential, namespace, metricName,
+                StandardUnit.Count.toString(), toDimensions(dimensionName, dimensionValue)));
+    }
+
+    private synchronized MetricAggregator getOrStartAggregator() {
+        if (_aggregator == null) {
+            MetricAggregator aggregator = new MetricAggregator(this);
+            aggregator.start();
+            ensureShutdownHook();
+            _aggregator = aggregator;
+        }
+        return _aggregator;
+    }
+
+    public MeterRegistry getMeterRegistry(String namespace) {
+        return getMeterRegistry(new CredentialContainer().getDefaultCredential(), namespace);
+    }
+
+    /**
+     * One registry per namespace and credential, started on first use.
+     */
+    public MeterRegistry getMeterRegistry(Credential credential, String namespace) {
+        return _registries.computeIfAbsent(new Destination(credential, namespace), d -> {
+            CloudWatchMeterRegistry registry = new CloudWatchMeterRegistry(this, credential, namespace);
+            registry.start();
+            ensureShutdownHook();
+            return registry;
+        });
+    }
+
+    private static List<Dimension> toDimensions(String[] dimensionName, String[] dimensionValue) {
         ArrayList<Dimension> dims = null;
 
         if (dimensionName != null && dimensionValue != null) {
@@ -74,9 +239,7 @@ public class CloudWatchServices {
         } else if (dimensionName != dimensionValue) { // the should both be null for consistency
             throw new IllegalStateException("Dimension mismatch: name=" + dimensionName + " vs value=" + dimensionValue);
         }
-
-        MetricDatum metricDatum = getMetricAsMetricDatum(metricName, dims, value);
-        return publishMetric(credential, namespace, metricDatum);
+        return dims;
     }
 
     public ExternalResult publishMetrics(String namespace, List<String> metricNames, List<String> dimensionNames,
@@ -98,9 +261,9 @@ public class CloudWatchServices {
         }
 
         if (dimensionNames != null && dimensionValues != null &&
-                dimensionNames.size() != metricNames.size() || dimensionValues.size() != metricNames.size()) {
-            throw new IllegalStateException("Input array lengths must match: dimensionNames=" + metricNames.size() +
-                    " vs dimensionValues " + dimensionValues.size());
+                (dimensionNames.size() != metricNames.size() || dimensionValues.size() != metricNames.size())) {
+            throw new IllegalStateException("Input array lengths must match: dimensionNames=" + dimensionNames.size() +
+                    " vs dimensionValues " + dimensionValues.size() + " vs metricNames " + metricNames.size());
         }
 
         MetricDatum[] metricDatums = new MetricDatum[metricNames.size()];
@@ -114,25 +277,31 @@ public class CloudWatchServices {
             MetricDatum metricDatum = getMetricAsMetricDatum(metricNames.get(i), dims, values.get(i));
             metricDatums[i] = metricDatum;
         }
-        if (metricDatums.length > MAX_DATUM_LENGTH) {
-            ExternalResult lastResult = null;
-            List<MetricDatum[]> metricData = splitArray(metricDatums, MAX_DATUM_LENGTH);
-            for (MetricDatum[] metricDatum : metricData) {
-                lastResult = publishMetric(credential, namespace, metricDatum);
-            }
-            return lastResult;
-        } else {
-            return publishMetric(credential, namespace, metricDatums);
-        }
+        return publishMetric(credential, namespace, metricDatums);
     }
 
-    private MetricDatum getMetricAsMetricDatum(String metricName, List<Dimension> dims, double value){
-        MetricDatum datum = new MetricDatum().withMetricName(metricName).withValue(value).withUnit(StandardUnit.Count);
+    // a count, unstamped: the aggregator keeps only explicit timestamps apart, and publishing stamps it
+    MetricDatum getMetricAsMetricDatum(String metricName, List<Dimension> dims, double value){
+        return newDatum(metricName, StandardUnit.Count.toString(), null, null, dims, value);
+    }
+
+    MetricDatum getMetricAsMetricDatum(MetricDescriptor metric, List<Dimension> dims, double value) {
+        Date timestamp = metric.getTimestampMillis() == MetricDescriptor.NO_TIMESTAMP
+                ? null : new Date(metric.getTimestampMillis());
+        // standard resolution is CloudWatch's default, so it is left off the request
+        Integer storageResolution = metric.isHighResolution() ? metric.getStorageResolution() : null;
+        return newDatum(metric.getName(), metric.getUnit().getName(), storageResolution, timestamp, dims, value);
+    }
+
+    private static MetricDatum newDatum(String metricName, String unit, Integer storageResolution, Date timestamp,
+                                        List<Dimension> dims, double value) {
+        MetricDatum datum = new MetricDatum().withMetricName(metricName).withValue(value).withUnit(unit)
+                .withTimestamp(timestamp);
+        if (storageResolution != null) {
+            datum.setStorageResolution(storageResolution);
+        }
         if (dims != null) {
-            if (datum.getDimensions() == null) {
-                datum.setDimensions(new ArrayList<Dimension>());
-            }
-            datum.getDimensions().addAll(dims);
+            datum.setDimensions(dims);
         }
         return datum;
     }
@@ -141,46 +310,344 @@ public class CloudWatchServices {
         return publishMetric(new CredentialContainer().getDefaultCredential(), namespace, datum);
     }
     public ExternalResult publishMetric(Credential credential, String namespace, MetricDatum ... datum) {
+        // an aggregator started only for metric handles leaves other metrics alone
+        if (_aggregator != null && _aggregateAll) {
+            List<MetricDatum> unaggregated = new ArrayList<>(0);
+            for (MetricDatum md : datum) {
+                if (!_aggregator.record(credential, namespace, md)) {
+                    unaggregated.add(md);
+                }
+            }
+            if (unaggregated.isEmpty()) {
+                return new AwsExternalResult(true, null, "aggregated");
+            }
+            datum = unaggregated.toArray(new MetricDatum[0]);
+        }
+        return publishUnaggregated(credential, namespace, datum);
+    }
+
+    // publish the rolled up statistics of an aggregation period
+    void publishAggregated(Credential credential, String namespace, List<MetricDatum> datums) {
+        try {
+            ExternalResult result = publishUnaggregated(credential, namespace, datums.toArray(new MetricDatum[0]));
+            if (!result.getSuccess()) {
+                _log.warn("unable to publish aggregated metrics to " + namespace + ": " + result.getErrorMessage());
+            }
+        } catch (Throwable any) {
+            _log.warn("unable to publish " + datums.size() + " aggregated metrics to " + namespace + ": " + any);
+        }
+    }
+
+    private ExternalResult publishUnaggregated(Credential credential, String namespace, MetricDatum ... datum) {
+        // stamped now so that queued, spooled or batched datums keep the time they were published
+        Date now = null;
+        for (MetricDatum md : datum) {
+            if (md.getTimestamp() == null) {
+                if (now == null) now = new Date();
+                md.setTimestamp(now);
+            }
+        }
+        if (_asyncPublisher != null) {
+            if (_asyncPublisher.publish(credential, namespace, datum)) {
+                return new AwsExternalResult(true, null, "queued");
+            }
+            return new AwsExternalResult(false, "metric queue full, datums dropped", null);
+        }
+        List<List<MetricDatum>> chunks = chunk(Arrays.asList(datum));
+        if (isSpooling()) {
+            for (List<MetricDatum> chunk : chunks) {
+                if (!spool(credential, namespace, chunk)) {
+                    return new AwsExternalResult(false, "metric spool unavailable, datums dropped", null);
+                }
+            }
+            return new AwsExternalResult(true, null, "spooled");
+        }
+        if (chunks.size() == 1) {
+            try {
+                PutMetricDataResult result = putMetricData(credential, namespace, chunks.get(0));
+                return new AwsExternalResult(true, result.toString(), null);
+            } catch (AmazonClientException ace) {
+                if (shouldSpool(ace) && spool(credential, namespace, chunks.get(0))) {
+                    _log.warn("spooled " + chunks.get(0).size() + " metrics to " + namespace + ": " + ace);
+                    return new AwsExternalResult(true, null, "spooled");
+                }
+                throw ace;
+            }
+        }
+        return publishChunksInParallel(credential, namespace, chunks);
+    }
+
+    // submit every chunk at once and wait for all of them, so N chunks cost about one round trip
+    private ExternalResult publishChunksInParallel(Credential credential, String namespace,
+                                                   List<List<MetricDatum>> chunks) {
+        List<Future<PutMetricDataResult>> futures = new ArrayList<>(chunks.size());
+        for (List<MetricDatum> chunk : chunks) {
+            futures.add(_publishExecutor.submit(() -> putMetricData(credential, namespace, chunk)));
+        }
+        List<ExternalResult> results = new ArrayList<>(chunks.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(new AwsExternalResult(true, futures.get(i).get().toString(), null));
+            } catch (ExecutionException ee) {
+                if (shouldSpool(ee.getCause()) && spool(credential, namespace, chunks.get(i))) {
+                    _log.warn("spooled " + chunks.get(i).size() + " metrics to " + namespace + ": " + ee.getCause());
+                    results.add(new AwsExternalResult(true, null, "spooled"));
+                    continue;
+                }
+                _log.warn("unable to publish " + chunks.get(i).size() + " metrics to " + namespace + ": " + ee.getCause());
+                results.add(new AwsExternalResult(false, String.valueOf(ee.getCause()), null));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                results.add(new AwsExternalResult(false, ie.toString(), null));
+            }
+        }
+        return new AggregateExternalResult(results);
+    }
+
+    /**
+     * Split datums into PutMetricData sized requests, limited by both datum count and payload size.
+     */
+    List<List<MetricDatum>> chunk(List<MetricDatum> datums) {
+        List<List<MetricDatum>> chunks = new ArrayList<>(datums.size() / _maxDatumsPerRequest + 1);
+        List<MetricDatum> current = new ArrayList<>(Math.min(datums.size(), _maxDatumsPerRequest));
+        int currentBytes = 0;
+        for (MetricDatum datum : datums) {
+            int size = estimateEncodedSize(datum);
+            if (!current.isEmpty() && (current.size() >= _maxDatumsPerRequest || currentBytes + size > _maxRequestBytes)) {
+                chunks.add(current);
+                current = new ArrayList<>(Math.min(datums.size(), _maxDatumsPerRequest));
+                currentBytes = 0;
+            }
+            current.add(datum);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    // a conservative estimate of the datum's size on the wire
+    private static int estimateEncodedSize(MetricDatum datum) {
+        int size = 4 * ENCODED_FIELD_OVERHEAD + length(datum.getMetricName()) + 24;
+        if (datum.getDimensions() != null) {
+            for (Dimension dim : datum.getDimensions()) {
+                size += 2 * ENCODED_FIELD_OVERHEAD + length(dim.getName()) + length(dim.getValue());
+            }
+        }
+        if (datum.getStatisticValues() != null) {
+            size += 4 * (ENCODED_FIELD_OVERHEAD + 24);
+        }
+        if (datum.getValues() != null) {
+            size += datum.getValues().size() * (ENCODED_FIELD_OVERHEAD + 24);
+        }
+        if (datum.getCounts() != null) {
+            size += datum.getCounts().size() * (ENCODED_FIELD_OVERHEAD + 24);
+        }
+        if (datum.getTimestamp() != null) {
+            size += ENCODED_FIELD_OVERHEAD + 24;
+        }
+        if (datum.getStorageResolution() != null) {
+            size += ENCODED_FIELD_OVERHEAD + 2;
+        }
+        return size;
+    }
+
+    private static int length(String s) {
+        // values are URL encoded, allow for some escaping
+        return s == null ? 0 : s.length() * 3 / 2;
+    }
+
+    // synchronous round trip to CloudWatch
+    PutMetricDataResult putMetricData(Credential credential, String namespace, Collection<MetricDatum> datum) {
         PutMetricDataRequest pmdr = new PutMetricDataRequest().withNamespace(namespace).withMetricData(datum);
         for(MetricDatum md : datum){
             _log.debug("cloudwatch(" + namespace + ":" + md.getMetricName()
                     + " (" + md.getDimensions() + ") "
                     + " " + md.getValue() + ")");
         }
-        PutMetricDataResult result = getClient(credential).putMetricData(pmdr);
-        return new AwsExternalResult(true, result.toString(), null);
+        return getClient(credential).putMetricData(pmdr);
     }
 
-    // split array up into smaller chunks - code found online
-    private <T extends Object> List<T[]> splitArray(T[] array, int splitSize) {
+    /**
+     * @return true while the service is down and metrics go straight to the spool
+     */
+    boolean isSpooling() {
+        return _replayer != null && _replayer.isOutage();
+    }
 
-        int numberOfArrays = array.length / splitSize;
-        int remainder = array.length % splitSize;
+    /**
+     * @return true if the failure is worth spooling for, i.e. spooling is enabled and it may pass
+     */
+    boolean shouldSpool(Throwable failure) {
+        return _spool != null && failure instanceof AmazonClientException
+                && SpoolReplayer.isTransient((AmazonClientException) failure);
+    }
 
-        int start = 0;
-        int end = 0;
+    /**
+     * Append datums of at most one request to the spool, to be replayed when CloudWatch recovers.
+     * @return false if spooling is disabled or the spool refused them
+     */
+    boolean spool(Credential credential, String namespace, List<MetricDatum> datums) {
+        if (_spool == null) return false;
+        try {
+            if (!_spool.append(encode(credential, namespace, datums))) {
+                return false;
+            }
+        } catch (IOException ioe) {
+            _log.warn("unable to spool metrics to " + namespace + ": " + ioe);
+            return false;
+        }
+        _replayer.reportOutage();
+        return true;
+    }
+
+    // each spooled record is one PutMetricData request
+    private void replay(List<byte[]> records) throws IOException {
+        for (byte[] record : records) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            Credential credential = DiskSpool.readCredential(in);
+            String namespace = DiskSpool.readString(in);
+            int count = in.readInt();
+            List<MetricDatum> datums = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                datums.add(readDatum(in));
+            }
+            try {
+                putMetricData(credential, namespace, datums);
+            } catch (AmazonClientException ace) {
+                if (SpoolReplayer.isTransient(ace)) throw ace;
+                _log.warn("dropping " + count + " spooled metrics rejected by " + namespace + ": " + ace);
+            }
+        }
+    }
+
+    private static byte[] encode(Credential credential, String namespace, List<MetricDatum> datums) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + datums.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        DiskSpool.writeCredential(out, credential);
+        DiskSpool.writeString(out, namespace);
+        out.writeInt(datums.size());
+        for (MetricDatum datum : datums) {
+            writeDatum(out, datum);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
 
-        List<T[]> list = new ArrayList<T[]>();
-        for (int i = 0; i < numberOfArrays; i++) {
-            end += splitSize;
-            list.add(Arrays.copyOfRange(array, start, end));
-            start = end;
+    private static void writeDatum(DataOutputStream out, MetricDatum datum) throws IOException {
+        DiskSpool.writeString(out, datum.getMetricName());
+        DiskSpool.writeString(out, datum.getUnit());
+        out.writeLong(datum.getTimestamp() == null ? -1 : datum.getTimestamp().getTime());
+        out.writeInt(datum.getStorageResolution() == null ? 0 : datum.getStorageResolution());
+        out.writeBoolean(datum.getValue() != null);
+        if (datum.getValue() != null) {
+            out.writeDouble(datum.getValue());
         }
+        StatisticSet statistics = datum.getStatisticValues();
+        out.writeBoolean(statistics != null);
+        if (statistics != null) {
+            out.writeDouble(statistics.getSampleCount());
+            out.writeDouble(statistics.getSum());
+            out.writeDouble(statistics.getMinimum());
+            out.writeDouble(statistics.getMaximum());
+        }
+        writeDoubles(out, datum.getValues());
+        writeDoubles(out, datum.getCounts());
+        List<Dimension> dims = datum.getDimensions();
+        out.writeInt(dims == null ? 0 : dims.size());
+        if (dims != null) {
+            for (Dimension dim : dims) {
+                DiskSpool.writeString(out, dim.getName());
+                DiskSpool.writeString(out, dim.getValue());
+            }
+        }
+    }
 
-        if(remainder > 0) {
-            list.add(Arrays.copyOfRange(array, start, (start + remainder)));
+    private static MetricDatum readDatum(DataInputStream in) throws IOException {
+        MetricDatum datum = new MetricDatum().withMetricName(DiskSpool.readString(in)).withUnit(DiskSpool.readString(in));
+        long timestamp = in.readLong();
+        if (timestamp != -1) {
+            datum.setTimestamp(new Date(timestamp));
+        }
+        int storageResolution = in.readInt();
+        if (storageResolution != 0) {
+            datum.setStorageResolution(storageResolution);
+        }
+        if (in.readBoolean()) {
+            datum.setValue(in.readDouble());
+        }
+        if (in.readBoolean()) {
+            datum.setStatisticValues(new StatisticSet().withSampleCount(in.readDouble()).withSum(in.readDouble())
+                    .withMinimum(in.readDouble()).withMaximum(in.readDouble()));
+        }
+        List<Double> values = readDoubles(in);
+        if (values != null) {
+            datum.setValues(values);
+        }
+        List<Double> counts = readDoubles(in);
+        if (counts != null) {
+            datum.setCounts(counts);
+        }
+        int dims = in.readInt();
+        if (dims > 0) {
+            List<Dimension> dimensions = new ArrayList<>(dims);
+            for (int i = 0; i < dims; i++) {
+                dimensions.add(new Dimension().withName(DiskSpool.readString(in)).withValue(DiskSpool.readString(in)));
+            }
+            datum.setDimensions(dimensions);
+        }
+        return datum;
+    }
+
+    private static void writeDoubles(DataOutputStream out, List<Double> values) throws IOException {
+        out.writeInt(values == null || values.isEmpty() ? -1 : values.size());
+        if (values != null) {
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static List<Double> readDoubles(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        List<Double> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readDouble());
+        }
+        return values;
+    }
+
+    /**
+     * Publish anything still aggregated or buffered and stop the background threads, if any.
+     * Spooled metrics not yet replayed stay on disk for the next start.
+     */
+    public void shutdown() {
+        removeShutdownHook();
+        for (CloudWatchMeterRegistry registry : _registries.values()) {
+            registry.shutdown();
+        }
+        if (_aggregator != null) {
+            _aggregator.shutdown();
+        }
+        if (_asyncPublisher != null) {
+            _asyncPublisher.shutdown();
+        }
+        _publishExecutor.shutdown();
+        if (_spool != null) {
+            // the last instance using the spool stops its replayer and closes it
+            _spool.release(this);
         }
-        return list;
+        _clients.release(this);
     }
 
     // cached AWS client per credential
-    private AmazonCloudWatch getClient(Credential credential) {
-        if (_clientMap.get(credential) == null) {
-            _clientMap.put(credential, AmazonCloudWatchClientBuilder.standard()
-                    .withCredentials(new ProfileCredentialsProvider(credential.getKey()))
-                    .withRegion(credential.getValue())
-                    .build());
-        }
-        return _clientMap.get(credential);
+    AmazonCloudWatch getClient(Credential credential) {
+        return _clients.getClient(AmazonCloudWatch.class, CredentialContainer.fromCredential(credential),
+                cc -> AmazonCloudWatchClientBuilder.standard()
+                        .withCredentials(new ProfileCredentialsProvider(cc.getProfile()))
+                        .withRegion(cc.getRegion())
+                        .build());
     }
 }
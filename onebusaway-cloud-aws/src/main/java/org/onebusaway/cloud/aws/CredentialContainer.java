@@ -17,6 +17,8 @@ package org.onebusaway.cloud.aws;
 
 import org.onebusaway.cloud.api.Credential;
 
+import java.util.Objects;
+
 public class CredentialContainer {
 
     public static final String DEFAULT_PROFILE = "default";
@@ -51,6 +53,29 @@ public class CredentialContainer {
         return new Credential().createExternalProfileKey(DEFAULT_PROFILE, DEFAULT_REGION);
     }
 
+    /**
+     * The profile and region of an EXTERNAL_PROFILE credential.
+     */
+    public static CredentialContainer fromCredential(Credential credential) {
+        if (credential == null) return getDefault();
+        String profile = credential.getKey() == null ? DEFAULT_PROFILE : credential.getKey();
+        String region = credential.getValue() == null ? DEFAULT_REGION : credential.getValue();
+        return new CredentialContainer(profile, region);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CredentialContainer)) return false;
+        CredentialContainer that = (CredentialContainer) o;
+        return Objects.equals(profile, that.profile) && Objects.equals(region, that.region);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(profile, region);
+    }
+
     public String toString() {
         return "{region=" + region + ", profile=" + profile + "}";
     }
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.Credential;
+
+import java.util.Objects;
+
+/**
+ * Where something is published: a credential, possibly null for the default,
+ * and a name within the service, e.g. a CloudWatch namespace or an SNS topic.
+ */
+class Destination {
+    private final Credential credential;
+    private final String name;
+
+    Destination(Credential credential, String name) {
+        this.credential = credential;
+        this.name = name;
+    }
+
+    Credential getCredential() { return credential; }
+
+    String getName() { return name; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Destination)) return false;
+        Destination that = (Destination) o;
+        return Objects.equals(credential, that.credential) && Objects.equals(name, that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(credential, name);
+    }
+}
@@ -0,0 +1,604 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only queue of records on local disk, for data that could not be
+ * delivered and is to be replayed later.  Records are appended to fixed size,
+ * memory-mapped segment files, so an append is a copy into the page cache; a
+ * background thread forces dirty segments to disk every sync interval, which
+ * batches the fsyncs of many appends.  A process crash loses nothing, a power
+ * failure at most the last sync interval.
+ *
+ * The reader takes records oldest first and commits them once handled; the
+ * read position is kept in a small mapped file, and fully read segments are
+ * deleted.  The spool is capped in size, by discarding its oldest segment, and
+ * in age, by skipping records older than the maximum age when they are read.
+ *
+ * Each record is a 16 byte header, the payload length, a CRC32 of the payload
+ * and the append time, followed by the payload.  The length is written last,
+ * so a torn append reads as the end of the segment.
+ *
+ * A directory holds one spool: within a process every user of the directory
+ * shares one spool and one replayer, and a lock file keeps a second process out.
+ */
+class DiskSpool {
+
+    public static final String DIRECTORY_KEY = "oba.cloud.aws.spool.directory";
+    public static final String SEGMENT_BYTES_KEY = "oba.cloud.aws.spool.segmentBytes";
+    public static final String MAX_BYTES_KEY = "oba.cloud.aws.spool.maxBytes";
+    public static final String MAX_AGE_KEY = "oba.cloud.aws.spool.maxAgeMillis";
+    public static final String SYNC_INTERVAL_KEY = "oba.cloud.aws.spool.syncIntervalMillis";
+    private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String POSITION_FILE = "position";
+    private static final String LOCK_FILE = "lock";
+    private static final int HEADER_BYTES = 16;
+    private static final int END_OF_SEGMENT = -1;
+
+    private static final Logger _log = LoggerFactory.getLogger(DiskSpool.class);
+
+    // open spools by directory, so every user in the process appends to and replays the same one
+    private static final Map<Path, DiskSpool> _spools = new HashMap<>();
+    // directories this process holds the lock file of
+    private static final Set<Path> _locked = ConcurrentHashMap.newKeySet();
+
+    private final String _name;
+    private final Path _directory;
+    private final int _segmentBytes;
+    private final long _maxBytes;
+    private final long _maxAgeMillis;
+    private final long _syncIntervalMillis;
+    // held open for the lock, which keeps other processes out of the directory
+    private final FileChannel _lockChannel;
+    // guarded by _spools
+    private final Set<Object> _users = new HashSet<>();
+    private SpoolReplayer _replayer;
+
+    // oldest first; the first is being read and the last written
+    private final ArrayDeque<Segment> _segments = new ArrayDeque<>();
+    // segment id and offset of the next unread record
+    private final MappedByteBuffer _position;
+    private int _readOffset;
+    // where the last read() stopped, made the read position by commit()
+    private long _pendingSegment;
+    private int _pendingOffset;
+    private int _pendingRecords;
+    // segments appended to since the last sync
+    private final List<Segment> _unsynced = new ArrayList<>();
+    private boolean _positionChanged = false;
+    private volatile boolean _empty;
+    private volatile boolean _open = true;
+    private Thread _syncer;
+
+    private final AtomicLong _appended = new AtomicLong();
+    private final AtomicLong _committed = new AtomicLong();
+    private final AtomicLong _expired = new AtomicLong();
+    private final AtomicLong _discarded = new AtomicLong();
+
+    /**
+     * The spool configured by system properties, shared with every other user of the
+     * same directory in the process.  Give it back with release(user).
+     * @param service names the spool's subdirectory and threads, e.g. "sns"
+     * @param user the service instance taking the spool
+     * @return the spool, or null if spooling is not enabled or the directory is unusable
+     */
+    static DiskSpool fromSystemProperties(String service, Object user) {
+        String directory = System.getProperty(DIRECTORY_KEY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        Path path = Paths.get(directory, service).toAbsolutePath().normalize();
+        synchronized (_spools) {
+            DiskSpool spool = _spools.get(path);
+            if (spool == null) {
+                try {
+                    spool = new DiskSpool(service, path,
+                            Integer.getInteger(SEGMENT_BYTES_KEY, DEFAULT_SEGMENT_BYTES),
+                            Long.getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES),
+                            Long.getLong(MAX_AGE_KEY, DEFAULT_MAX_AGE_MILLIS),
+                            Long.getLong(SYNC_INTERVAL_KEY, DEFAULT_SYNC_INTERVAL_MILLIS));
+                } catch (IOException ioe) {
+                    _log.error("unable to spool " + service + " to " + path + ", spooling disabled: " + ioe);
+                    return null;
+                }
+                spool.start();
+                _spools.put(path, spool);
+            }
+            spool._users.add(user);
+            return spool;
+        }
+    }
+
+    /**
+     * The spool's replayer, started on first use with that caller's sender.  Every
+     * user of a spool sends to the same service, so one sender replays for all.
+     */
+    synchronized SpoolReplayer replayer(SpoolReplayer.Sender sender) {
+        if (_replayer == null) {
+            _replayer = new SpoolReplayer(_name, this, sender);
+            _replayer.start();
+        }
+        return _replayer;
+    }
+
+    /**
+     * Give back a spool taken with fromSystemProperties.  The last user to release
+     * it stops its replayer and closes it; releasing twice is harmless.
+     */
+    void release(Object user) {
+        synchronized (_spools) {
+            if (!_users.remove(user) || !_users.isEmpty()) return;
+            _spools.remove(_directory, this);
+        }
+        SpoolReplayer replayer;
+        synchronized (this) {
+            replayer = _replayer;
+        }
+        if (replayer != null) {
+            replayer.shutdown();
+        }
+        close();
+    }
+
+    DiskSpool(String name, Path directory, int segmentBytes, long maxBytes, long maxAgeMillis,
+              long syncIntervalMillis) throws IOException {
+        if (segmentBytes < 4096 || maxBytes < 2L * segmentBytes || maxAgeMillis < 1 || syncIntervalMillis < 1) {
+            throw new IllegalArgumentException("need segmentBytes >= 4096 (" + segmentBytes
+                    + "), maxBytes >= two segments (" + maxBytes + ") and positive maxAgeMillis ("
+                    + maxAgeMillis + ") and syncIntervalMillis (" + syncIntervalMillis + ")");
+        }
+        _name = name;
+        _directory = directory.toAbsolutePath();
+        _segmentBytes = segmentBytes;
+        _maxBytes = maxBytes;
+        _maxAgeMillis = maxAgeMillis;
+        _syncIntervalMillis = syncIntervalMillis;
+        Files.createDirectories(_directory);
+        _lockChannel = lock(_directory);
+        try {
+            try (FileChannel channel = FileChannel.open(_directory.resolve(POSITION_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                _position = channel.map(FileChannel.MapMode.READ_WRITE, 0, 12);
+            }
+            load();
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    // fail fast rather than have two spools write over each other's segments
+    private static FileChannel lock(Path directory) throws IOException {
+        // closing any channel to the lock file may drop this process's lock, so check here first
+        if (!_locked.add(directory)) {
+            throw new IOException(directory + " is already spooled to by this process");
+        }
+        try {
+            FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (lock == null) {
+                channel.close();
+                throw new IOException(directory + " is locked by another process");
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            _locked.remove(directory);
+            throw e;
+        }
+    }
+
+    private void unlock() {
+        try {
+            _lockChannel.close();
+        } catch (IOException ioe) {
+            _log.warn("unable to unlock {}: {}", _directory, ioe.toString());
+        }
+        _locked.remove(_directory);
+    }
+
+    synchronized void start() {
+        if (_syncer != null) return;
+        _syncer = new Thread(this::runSyncer, _name + "-spool-sync");
+        _syncer.setDaemon(true);
+        _syncer.start();
+    }
+
+    /**
+     * Append a record.
+     * @return false if the record is larger than a segment or the spool is closed
+     */
+    synchronized boolean append(byte[] payload) {
+        int length = HEADER_BYTES + payload.length;
+        if (!_open || length > _segmentBytes) {
+            _discarded.incrementAndGet();
+            return false;
+        }
+        Segment segment = _segments.peekLast();
+        if (segment.writeOffset + length > _segmentBytes) {
+            try {
+                segment = roll(segment);
+            } catch (IOException ioe) {
+                _log.error("unable to add a segment to the " + _name + " spool: " + ioe);
+                _discarded.incrementAndGet();
+                return false;
+            }
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.writeOffset;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putLong(offset + 8, System.currentTimeMillis());
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(payload);
+        // the length makes the record visible, so it goes last
+        buffer.putInt(offset, payload.length);
+        segment.writeOffset += length;
+        if (!_unsynced.contains(segment)) {
+            _unsynced.add(segment);
+        }
+        _empty = false;
+        _appended.incrementAndGet();
+        return true;
+    }
+
+    // close off the segment and start the next, discarding the oldest if the spool is full
+    private Segment roll(Segment full) throws IOException {
+        if (full.writeOffset + 4 <= _segmentBytes) {
+            full.buffer.putInt(full.writeOffset, END_OF_SEGMENT);
+        }
+        full.writeOffset = _segmentBytes;
+        Segment next = Segment.create(_directory, full.id + 1, _segmentBytes);
+        _segments.addLast(next);
+        while ((long) _segments.size() * _segmentBytes > _maxBytes) {
+            Segment oldest = _segments.removeFirst();
+            _readOffset = 0;
+            _log.warn("{} spool is over {} bytes, discarding {}", _name, _maxBytes, oldest.file);
+            delete(oldest);
+            _discarded.incrementAndGet();
+        }
+        writePosition();
+        return next;
+    }
+
+    /**
+     * Read up to max records from the read position, skipping any that have expired.
+     * They are read again unless commit() is called.
+     */
+    synchronized List<byte[]> read(int max) {
+        List<byte[]> records = new ArrayList<>(Math.min(max, 64));
+        long expiredBefore = System.currentTimeMillis() - _maxAgeMillis;
+        Segment segment = _segments.peekFirst();
+        int offset = _readOffset;
+        while (records.size() < max) {
+            int length = offset + HEADER_BYTES <= _segmentBytes ? segment.buffer.getInt(offset) : END_OF_SEGMENT;
+            boolean valid = length > 0 && offset + HEADER_BYTES + length <= _segmentBytes;
+            byte[] payload = null;
+            if (valid) {
+                payload = readPayload(segment, offset, length);
+                valid = payload != null;
+            }
+            if (!valid) {
+                if (segment == _segments.peekLast()) break;
+                if (length != END_OF_SEGMENT) {
+                    _log.warn("{} spool: skipping the rest of {} at unreadable record at {}", _name, segment.file, offset);
+                }
+                segment = nextAfter(segment);
+                offset = 0;
+                continue;
+            }
+            long appended = segment.buffer.getLong(offset + 8);
+            offset += HEADER_BYTES + length;
+            if (appended < expiredBefore) {
+                _expired.incrementAndGet();
+            } else {
+                records.add(payload);
+            }
+        }
+        _pendingSegment = segment.id;
+        _pendingOffset = offset;
+        _pendingRecords = records.size();
+        return records;
+    }
+
+    // the payload of the record at offset, or null if it does not match its CRC
+    private static byte[] readPayload(Segment segment, int offset, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset + HEADER_BYTES);
+        view.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == segment.buffer.getInt(offset + 4) ? payload : null;
+    }
+
+    private Segment nextAfter(Segment segment) {
+        boolean found = false;
+        for (Segment s : _segments) {
+            if (found) return s;
+            found = s == segment;
+        }
+        throw new IllegalStateException(segment.file + " is the last segment");
+    }
+
+    /**
+     * Mark everything returned by the last read() as handled.
+     */
+    synchronized void commit() {
+        while (_segments.size() > 1 && _segments.peekFirst().id < _pendingSegment) {
+            delete(_segments.removeFirst());
+            _readOffset = 0;
+        }
+        // unless the segment was discarded while its records were being handled
+        if (_segments.peekFirst().id == _pendingSegment) {
+            _readOffset = _pendingOffset;
+        }
+        writePosition();
+        _committed.addAndGet(_pendingRecords);
+        _pendingRecords = 0;
+        _empty = _segments.size() == 1 && _readOffset >= _segments.peekLast().writeOffset;
+    }
+
+    boolean isEmpty() {
+        return _empty;
+    }
+
+    private void writePosition() {
+        _position.putLong(0, _segments.peekFirst().id);
+        _position.putInt(8, _readOffset);
+        _positionChanged = true;
+    }
+
+    private void load() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(_directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    _log.warn("ignoring {} in the {} spool", file, _name);
+                }
+            }
+        }
+        ids.sort(null);
+        long readSegment = _position.getLong(0);
+        for (long id : ids) {
+            Path file = segmentFile(_directory, id);
+            if (id < readSegment || Files.size(file) != _segmentBytes) {
+                // already read, or from a different segment size
+                Files.deleteIfExists(file);
+                continue;
+            }
+            _segments.addLast(Segment.open(file, id, _segmentBytes));
+        }
+        if (_segments.isEmpty()) {
+            _segments.addLast(Segment.create(_directory, Math.max(1, readSegment), _segmentBytes));
+        }
+        _readOffset = _segments.peekFirst().id == readSegment
+                ? Math.max(0, Math.min(_position.getInt(8), _segmentBytes)) : 0;
+        Segment last = _segments.peekLast();
+        last.writeOffset = endOfRecords(last);
+        for (Segment segment : _segments) {
+            if (segment != last) segment.writeOffset = _segmentBytes;
+        }
+        writePosition();
+        _empty = _segments.size() == 1 && _readOffset >= last.writeOffset;
+        _log.info("{} spool at {}: {} segments, {}", _name, _directory, _segments.size(),
+                _empty ? "empty" : "records to replay");
+    }
+
+    // the offset after the last intact record
+    private int endOfRecords(Segment segment) {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= _segmentBytes) {
+            int length = segment.buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) return _segmentBytes;
+            if (length <= 0 || offset + HEADER_BYTES + length > _segmentBytes) break;
+            if (readPayload(segment, offset, length) == null) break;
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private void runSyncer() {
+        while (_open) {
+            try {
+                Thread.sleep(_syncIntervalMillis);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            sync();
+        }
+    }
+
+    // force appended pages to disk, outside the lock so appends carry on meanwhile
+    private void sync() {
+        List<Segment> dirty;
+        boolean positionChanged;
+        synchronized (this) {
+            dirty = _unsynced.isEmpty() ? null : new ArrayList<>(_unsynced);
+            _unsynced.clear();
+            positionChanged = _positionChanged;
+            _positionChanged = false;
+        }
+        if (dirty != null) {
+            for (Segment segment : dirty) {
+                try {
+                    segment.buffer.force();
+                } catch (RuntimeException e) {
+                    // a discarded segment may already be gone
+                    _log.debug("unable to sync {}: {}", segment.file, e.toString());
+                }
+            }
+        }
+        if (positionChanged) {
+            _position.force();
+        }
+    }
+
+    /**
+     * Sync and stop accepting records.  What has been spooled is replayed after a restart.
+     */
+    void close() {
+        Thread syncer;
+        synchronized (this) {
+            if (!_open) return;
+            _open = false;
+            syncer = _syncer;
+        }
+        if (syncer != null) {
+            syncer.interrupt();
+            try {
+                syncer.join(_syncIntervalMillis * 10);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        unlock();
+        _log.info("{} spool closed: appended={}, committed={}, expired={}, discarded={}", _name,
+                getAppendedCount(), getCommittedCount(), getExpiredCount(), getDiscardedCount());
+    }
+
+    private void delete(Segment segment) {
+        _unsynced.remove(segment);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException ioe) {
+            _log.warn("unable to delete {}: {}", segment.file, ioe.toString());
+        }
+    }
+
+    private static Path segmentFile(Path directory, long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /** records appended */
+    long getAppendedCount() { return _appended.get(); }
+    /** records read and committed */
+    long getCommittedCount() { return _committed.get(); }
+    /** records skipped for being older than the maximum age */
+    long getExpiredCount() { return _expired.get(); }
+    /** records refused and segments discarded to keep under the maximum size */
+    long getDiscardedCount() { return _discarded.get(); }
+
+    // helpers for encoding records, strings may be null and longer than writeUTF allows
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // only the profile and region replay needs, never an API key: the spool is plain files on disk.
+    // A credential of another type is no use to an AWS client and replays with the default profile.
+    static void writeCredential(DataOutput out, Credential credential) throws IOException {
+        boolean profile = credential != null && (credential.getType() == null
+                || credential.getType() == Credential.CredentialType.EXTERNAL_PROFILE);
+        out.writeBoolean(profile);
+        if (profile) {
+            writeString(out, credential.getKey());
+            writeString(out, credential.getValue());
+        }
+    }
+
+    static Credential readCredential(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        String profile = readString(in);
+        String region = readString(in);
+        return new Credential().createExternalProfileKey(profile, region);
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+
+        private Segment(long id, Path file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path directory, long id, int size) throws IOException {
+            return open(segmentFile(directory, id), id, size);
+        }
+
+        // mapping past the end of a new file extends it with zeros, which read as no record
+        static Segment open(Path file, long id, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+}
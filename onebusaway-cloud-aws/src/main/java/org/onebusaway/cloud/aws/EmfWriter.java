@@ -0,0 +1,351 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes metrics as CloudWatch Embedded Metric Format, one JSON object per line,
+ * for the CloudWatch agent or a log driver to ship.  Publishing threads claim a
+ * slot of a bounded ring with one CAS and never block; when the ring is full the
+ * metric is dropped.  A single writer thread formats the lines into a buffer
+ * and writes it to the channel whenever it fills or the ring runs dry.  Each
+ * output has one writer per process, so its lines are never interleaved.
+ */
+class EmfWriter {
+
+    private static final Logger _log = LoggerFactory.getLogger(EmfWriter.class);
+
+    private static final int OUTPUT_BUFFER_BYTES = 64 * 1024;
+    // how long the idle writer sleeps before looking at the ring again
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    private static final String STDOUT = "stdout";
+
+    // started writers by output, standard output under STDOUT
+    private static final Map<String, EmfWriter> _writers = new HashMap<>();
+
+    private final String _name;
+    private final WritableByteChannel _channel;
+    private final AtomicReferenceArray<Event> _ring;
+    private final int _mask;
+    // next slot to claim, advanced by publishers
+    private final AtomicLong _tail = new AtomicLong();
+    // next slot to write, advanced only by the writer
+    private final AtomicLong _head = new AtomicLong();
+
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+
+    private final StringBuilder _line = new StringBuilder(256);
+    // array backed on both sides so the encoder takes its fast path
+    private CharBuffer _chars = CharBuffer.allocate(256);
+    private final ByteBuffer _buffer = ByteBuffer.allocate(OUTPUT_BUFFER_BYTES);
+    private final CharsetEncoder _encoder = StandardCharsets.UTF_8.newEncoder();
+
+    private volatile boolean _running = false;
+    private Thread _writer;
+
+    /**
+     * @param file the file to append to, or null for standard output
+     * @param capacity metrics the ring holds, rounded up to a power of two
+     */
+    EmfWriter(Path file, int capacity) throws IOException {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        _ring = new AtomicReferenceArray<>(size);
+        _mask = size - 1;
+        if (file == null) {
+            _name = STDOUT;
+            _channel = Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        } else {
+            _name = file.toString();
+            _channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * The started writer for the output, shared by every caller naming the same one and
+     * drained when the JVM exits.
+     * @param file the file to append to, or null for standard output
+     * @param capacity metrics the ring holds, if this call creates the writer
+     */
+    static EmfWriter shared(Path file, int capacity) throws IOException {
+        String key = file == null ? STDOUT : file.toAbsolutePath().normalize().toString();
+        synchronized (_writers) {
+            EmfWriter writer = _writers.get(key);
+            if (writer == null) {
+                writer = new EmfWriter(file, capacity);
+                writer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(writer::shutdown, "emf-drain"));
+                _writers.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    synchronized void start() {
+        if (_running) return;
+        _running = true;
+        _writer = new Thread(this::runWriter, "emf-writer");
+        _writer.setDaemon(true);
+        _writer.start();
+        _log.info("writing embedded metrics to {} through a ring of {}", _name, _ring.length());
+    }
+
+    /**
+     * Queue a metric for writing.
+     * @param timestamp epoch milliseconds
+     * @param storageResolution 1 for high resolution, otherwise standard
+     * @return false if the ring was full, the writer has stopped or a field is missing
+     */
+    boolean publish(String namespace, String metricName, String unit, int storageResolution, long timestamp,
+                    String[] dimensionNames, String[] dimensionValues, double value) {
+        if (!_running || namespace == null || metricName == null || unit == null
+                || Double.isNaN(value) || Double.isInfinite(value)) {
+            _dropped.incrementAndGet();
+            return false;
+        }
+        long slot;
+        do {
+            slot = _tail.get();
+            if (slot - _head.get() >= _ring.length()) {
+                _dropped.incrementAndGet();
+                return false;
+            }
+        } while (!_tail.compareAndSet(slot, slot + 1));
+        _ring.lazySet((int) slot & _mask, new Event(namespace, metricName, unit, storageResolution, timestamp,
+                dimensionNames, dimensionValues, value));
+        return true;
+    }
+
+    private void runWriter() {
+        while (_running || _head.get() != _tail.get()) {
+            try {
+                if (drain()) continue;
+                if (_head.get() != _tail.get()) {
+                    // a publisher is between claiming its slot and filling it
+                    Thread.yield();
+                } else {
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (Throwable any) {
+                // only a failed write gets here, so the buffered lines are what could not be written
+                _log.error("exception writing embedded metrics to " + _name + ": " + any, any);
+                _buffer.clear();
+            }
+        }
+        try {
+            flush();
+        } catch (IOException ioe) {
+            _log.error("unable to write embedded metrics to " + _name + ": " + ioe);
+        }
+    }
+
+    // write out every published event; false if there was none
+    private boolean drain() throws IOException {
+        long head = _head.get();
+        boolean any = false;
+        while (true) {
+            int index = (int) head & _mask;
+            Event event = _ring.get(index);
+            if (event == null) {
+                // the ring is empty, or a publisher has claimed the slot but not yet filled it
+                return any;
+            }
+            _ring.lazySet(index, null);
+            _head.lazySet(++head);
+            any = true;
+            try {
+                format(event);
+            } catch (RuntimeException badEvent) {
+                // only the line is lost, not the lines already buffered
+                _log.error("unable to format embedded metric " + event.metricName + ": " + badEvent);
+                _dropped.incrementAndGet();
+                continue;
+            }
+            append();
+            _written.incrementAndGet();
+        }
+    }
+
+    private void format(Event e) {
+        StringBuilder sb = _line;
+        sb.setLength(0);
+        sb.append("{\"_aws\":{\"Timestamp\":").append(e.timestamp)
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        quote(sb, e.namespace);
+        sb.append(",\"Dimensions\":[[");
+        int dimensions = 0;
+        if (e.dimensionNames != null) {
+            for (int i = 0; i < e.dimensionNames.length; i++) {
+                if (e.dimensionNames[i] == null || e.dimensionValues[i] == null) continue;
+                if (dimensions++ > 0) sb.append(',');
+                quote(sb, e.dimensionNames[i]);
+            }
+        }
+        sb.append("]],\"Metrics\":[{\"Name\":");
+        quote(sb, e.metricName);
+        sb.append(",\"Unit\":");
+        quote(sb, e.unit);
+        if (e.storageResolution == 1) {
+            sb.append(",\"StorageResolution\":1");
+        }
+        sb.append("}]}]}");
+        if (e.dimensionNames != null) {
+            for (int i = 0; i < e.dimensionNames.length; i++) {
+                if (e.dimensionNames[i] == null || e.dimensionValues[i] == null) continue;
+                sb.append(',');
+                quote(sb, e.dimensionNames[i]);
+                sb.append(':');
+                quote(sb, e.dimensionValues[i]);
+            }
+        }
+        sb.append(',');
+        quote(sb, e.metricName);
+        sb.append(':').append(e.value).append("}\n");
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    // encode the line into the buffer, writing the buffer out first if the line does not fit
+    private void append() throws IOException {
+        if (_chars.capacity() < _line.length()) {
+            _chars = CharBuffer.allocate(_line.length() * 2);
+        }
+        _line.getChars(0, _line.length(), _chars.array(), 0);
+        CharBuffer chars = _chars;
+        chars.clear().limit(_line.length());
+        int mark = _buffer.position();
+        _encoder.reset();
+        CoderResult result = _encoder.encode(chars, _buffer, true);
+        if (!result.isOverflow()) return;
+        // keep whole lines together: back out the partial line and retry in an empty buffer
+        _buffer.position(mark);
+        flush();
+        chars.rewind();
+        _encoder.reset();
+        if (!_encoder.encode(chars, _buffer, true).isOverflow()) return;
+        // longer than the buffer: encode it on its own and write it whole
+        _buffer.clear();
+        chars.rewind();
+        write(_encoder.encode(chars));
+    }
+
+    private void flush() throws IOException {
+        _buffer.flip();
+        write(_buffer);
+        _buffer.clear();
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            _channel.write(bytes);
+        }
+    }
+
+    /**
+     * Stop accepting metrics, write out everything queued and close the output.
+     */
+    void shutdown() {
+        Thread writer;
+        synchronized (this) {
+            if (!_running) return;
+            _running = false;
+            writer = _writer;
+        }
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (_channel instanceof FileChannel) {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {
+                _log.warn("unable to close {}: {}", _name, ioe.toString());
+            }
+        }
+        _log.info("embedded metrics to {} stopped: written={}, dropped={}", _name, getWrittenCount(),
+                getDroppedCount());
+    }
+
+    long getWrittenCount() { return _written.get(); }
+    long getDroppedCount() { return _dropped.get(); }
+    int getPendingCount() { return (int) (_tail.get() - _head.get()); }
+
+    private static class Event {
+        private final String namespace;
+        private final String metricName;
+        private final String unit;
+        private final int storageResolution;
+        private final long timestamp;
+        private final String[] dimensionNames;
+        private final String[] dimensionValues;
+        private final double value;
+
+        Event(String namespace, String metricName, String unit, int storageResolution, long timestamp,
+              String[] dimensionNames, String[] dimensionValues, double value) {
+            this.namespace = namespace;
+            this.metricName = metricName;
+            this.unit = unit;
+            this.storageResolution = storageResolution;
+            this.timestamp = timestamp;
+            this.dimensionNames = dimensionNames;
+            this.dimensionValues = dimensionValues;
+            this.value = value;
+        }
+    }
+}
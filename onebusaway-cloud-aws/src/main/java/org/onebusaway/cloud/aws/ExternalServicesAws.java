@@ -15,25 +15,71 @@
  */
 package org.onebusaway.cloud.aws;
 
+import com.amazonaws.AmazonClientException;
+import org.onebusaway.cloud.api.AsyncExternalServices;
 import org.onebusaway.cloud.api.Credential;
 import org.onebusaway.cloud.api.ExternalResult;
-import org.onebusaway.cloud.api.ExternalServices;
 import org.onebusaway.cloud.api.InputStreamConsumer;
+import org.onebusaway.cloud.api.LeadershipElectionService;
+import org.onebusaway.cloud.api.LeaseElectionService;
+import org.onebusaway.cloud.api.MeterRegistry;
+import org.onebusaway.cloud.api.MetricDescriptor;
+import org.onebusaway.cloud.api.MetricHandle;
+import org.onebusaway.cloud.api.ZipEntryConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
-public class ExternalServicesAws implements ExternalServices {
+public class ExternalServicesAws implements AsyncExternalServices {
+
+    public static final String ASYNC_THREADS_KEY = "oba.cloud.aws.async.threads";
+    public static final String ASYNC_QUEUE_SIZE_KEY = "oba.cloud.aws.async.queueSize";
+    private static final int DEFAULT_ASYNC_THREADS = 16;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+    // when set, leadership is a lease in this S3 object rather than the oldest instance of the group
+    public static final String ELECTION_LEASE_URL_KEY = "oba.cloud.aws.election.leaseUrl";
+    public static final String ELECTION_LEASE_MILLIS_KEY = "oba.cloud.aws.election.leaseMillis";
+    public static final String ELECTION_HEARTBEAT_MILLIS_KEY = "oba.cloud.aws.election.heartbeatMillis";
+    // several S3 round trips of slack, so tail latency does not cost the leader its lease;
+    // failover in well under a second needs a lower latency store than S3
+    private static final long DEFAULT_ELECTION_LEASE_MILLIS = 10000;
+    private static final long DEFAULT_ELECTION_HEARTBEAT_MILLIS = 1000;
 
     private Logger _log = LoggerFactory.getLogger(ExternalServicesAws.class);
 
-    private SNSServices _sns = new SNSServices();
-    private CloudWatchServices _cloudwatch = new CloudWatchServices();
+    // shared by every instance, so the background publishers and their shutdown
+    // hooks are not repeated for each instance a factory hands out
+    private static SNSServices _sharedSns;
+    private static CloudWatchServices _sharedCloudwatch;
+    // one election per process, started by the first caller that asks about leadership
+    private static volatile LeadershipElectionService _sharedElection;
+
+    private SNSServices _sns = sharedSns();
+    private final CloudWatchServices _cloudwatch;
     private S3Services _s3 = new S3Services();
-    private AwsLeadershipElectionService _election = new AwsLeadershipElectionService();
+    // run the blocking SDK calls behind the *Async methods
+    private ExecutorService _snsExecutor = newAsyncExecutor("sns");
+    private ExecutorService _cloudwatchExecutor = newAsyncExecutor("cloudwatch");
+    private ExecutorService _s3Executor = newAsyncExecutor("s3");
+
+    public ExternalServicesAws() {
+        this(sharedCloudwatch());
+    }
+
+    /**
+     * @param cloudwatch for a subclass that publishes metrics some other way
+     */
+    ExternalServicesAws(CloudWatchServices cloudwatch) {
+        _cloudwatch = cloudwatch;
+    }
 
     @Override
     public ExternalResult publishMessage(String topic, String messageConents) {
@@ -41,6 +87,22 @@ public class ExternalServicesAws implements ExternalServices {
         return new AwsExternalResult(result);
     }
 
+    @Override
+    public ExternalResult publishMessage(Credential credential, String topic, String messageContents) {
+        boolean result = _sns.publish(credential, topic, messageContents);
+        return new AwsExternalResult(result);
+    }
+
+    @Override
+    public ExternalResult publishMessages(String topic, List<String> messages) {
+        return _sns.publishMessages(topic, messages);
+    }
+
+    @Override
+    public ExternalResult publishMessages(Credential credential, String topic, List<String> messages) {
+        return _sns.publishMessages(credential, topic, messages);
+    }
+
     @Override
     public ExternalResult publishMetric(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
         return _cloudwatch.publishMetric(namespace, metricName, dimensionName, dimensionValue, value);
@@ -70,6 +132,46 @@ public class ExternalServicesAws implements ExternalServices {
                 dimensionName, dimensionValue, value);
     }
 
+    @Override
+    public ExternalResult publishMetric(String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return _cloudwatch.publishMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMetric(Credential credential, String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return _cloudwatch.publishMetric(credential, namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return _cloudwatch.publishMultiDimensionalMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return _cloudwatch.publishMultiDimensionalMetric(credential, namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public MetricHandle registerMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return _cloudwatch.registerMetric(namespace, metricName, dimensionName, dimensionValue);
+    }
+
+    @Override
+    public MetricHandle registerMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return _cloudwatch.registerMetric(credential, namespace, metricName, dimensionName, dimensionValue);
+    }
+
+    @Override
+    public MeterRegistry getMeterRegistry(String namespace) {
+        return _cloudwatch.getMeterRegistry(namespace);
+    }
+
+    @Override
+    public MeterRegistry getMeterRegistry(Credential credential, String namespace) {
+        return _cloudwatch.getMeterRegistry(credential, namespace);
+    }
+
 
     @Override
     public ExternalResult getFileAsStream(String url, InputStreamConsumer consumer) {
@@ -88,7 +190,7 @@ public class ExternalServicesAws implements ExternalServices {
         } else {
             credentials = new CredentialContainer(profile, region);
         }
-        try (InputStream inputStream = _s3.fetch(url, credentials)) {
+        try (InputStream inputStream = _s3.fetchDecoded(url, credentials)) {
             consumer.accept(inputStream);
             return new AwsExternalResult(true);
         } catch (IOException ex) {
@@ -98,6 +200,76 @@ public class ExternalServicesAws implements ExternalServices {
         }
     }
 
+    @Override
+    public ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer consumer) {
+        return getZipEntriesAsStream(url, consumer, CredentialContainer.DEFAULT_PROFILE, CredentialContainer.DEFAULT_REGION);
+    }
+
+    @Override
+    public ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer consumer, String profile, String region) {
+        CredentialContainer credentials;
+        if (profile == null || "default".equals(profile)) {
+            credentials = new CredentialContainer();
+        } else {
+            credentials = new CredentialContainer(profile, region);
+        }
+        try {
+            _s3.fetchZipEntries(url, credentials, consumer);
+            return new AwsExternalResult(true);
+        } catch (IOException | AmazonClientException ex) {
+            _log.error("Error reading zip entries from {}: {}", url, ex.toString());
+            return new AwsExternalResult(false, ex.toString(), null);
+        }
+    }
+
+    @Override
+    public ExternalResult getFile(String url, String file) {
+        return getFile(url, file, CredentialContainer.DEFAULT_PROFILE, CredentialContainer.DEFAULT_REGION);
+    }
+
+    @Override
+    public ExternalResult getFile(String url, String file, String profile, String region) {
+        CredentialContainer credentials;
+        if (profile == null || "default".equals(profile)) {
+            credentials = new CredentialContainer();
+        } else {
+            credentials = new CredentialContainer(profile, region);
+        }
+        try {
+            File written = _s3.download(url, new File(file), credentials);
+            return new AwsExternalResult(true, null, written.getPath());
+        } catch (IOException | AmazonClientException ex) {
+            _log.error("Error downloading {} to {}: {}", url, file, ex.toString());
+            return new AwsExternalResult(false, ex.toString(), null);
+        }
+    }
+
+    @Override
+    public ExternalResult getDirectory(String url, String directory) {
+        return getDirectory(url, directory, CredentialContainer.DEFAULT_PROFILE, CredentialContainer.DEFAULT_REGION);
+    }
+
+    @Override
+    public ExternalResult getDirectory(String url, String directory, String profile, String region) {
+        CredentialContainer credentials;
+        if (profile == null || "default".equals(profile)) {
+            credentials = new CredentialContainer();
+        } else {
+            credentials = new CredentialContainer(profile, region);
+        }
+        try {
+            S3Services.SyncSummary summary = _s3.syncPrefix(url, new File(directory), credentials);
+            if (summary.getFailed() > 0) {
+                return new AwsExternalResult(false, summary.getFailed() + " objects could not be downloaded",
+                        summary.toString());
+            }
+            return new AwsExternalResult(true, null, summary.toString());
+        } catch (IOException | AmazonClientException ex) {
+            _log.error("Error syncing {} to {}: {}", url, directory, ex.toString());
+            return new AwsExternalResult(false, ex.toString(), null);
+        }
+    }
+
     @Override
     public ExternalResult putFile(String url, String file) {
         return putFile(url, file, CredentialContainer.DEFAULT_PROFILE, CredentialContainer.DEFAULT_REGION);
@@ -116,6 +288,173 @@ public class ExternalServicesAws implements ExternalServices {
 
     @Override
     public boolean isInstancePrimary() {
-        return _election.isInstancePrimary();
+        return getLeadershipElectionService().isInstancePrimary();
+    }
+
+    @Override
+    public LeadershipElectionService getLeadershipElectionService() {
+        LeadershipElectionService election = _sharedElection;
+        if (election == null) {
+            synchronized (ExternalServicesAws.class) {
+                election = _sharedElection;
+                if (election == null) {
+                    election = newElectionService();
+                    _sharedElection = election;
+                }
+            }
+        }
+        return election;
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessageAsync(String topic, String messageContents) {
+        return async(_snsExecutor, () -> publishMessage(topic, messageContents));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessageAsync(Credential credential, String topic, String messageContents) {
+        return async(_snsExecutor, () -> publishMessage(credential, topic, messageContents));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessagesAsync(String topic, List<String> messages) {
+        return async(_snsExecutor, () -> publishMessages(topic, messages));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessagesAsync(Credential credential, String topic, List<String> messages) {
+        return async(_snsExecutor, () -> publishMessages(credential, topic, messages));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return async(_cloudwatchExecutor, () -> publishMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return async(_cloudwatchExecutor, () -> publishMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return async(_cloudwatchExecutor, () -> publishMetrics(namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(Credential credential, String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return async(_cloudwatchExecutor, () -> publishMetrics(credential, namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return async(_cloudwatchExecutor, () -> publishMultiDimensionalMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return async(_cloudwatchExecutor, () -> publishMultiDimensionalMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer consumer, String profile, String region) {
+        return async(_s3Executor, () -> getFileAsStream(url, consumer, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer consumer) {
+        return async(_s3Executor, () -> getFileAsStream(url, consumer));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer consumer, String profile, String region) {
+        return async(_s3Executor, () -> getZipEntriesAsStream(url, consumer, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer consumer) {
+        return async(_s3Executor, () -> getZipEntriesAsStream(url, consumer));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsync(String url, String file, String profile, String region) {
+        return async(_s3Executor, () -> getFile(url, file, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsync(String url, String file) {
+        return async(_s3Executor, () -> getFile(url, file));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory, String profile, String region) {
+        return async(_s3Executor, () -> getDirectory(url, directory, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory) {
+        return async(_s3Executor, () -> getDirectory(url, directory));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> putFileAsync(String url, String file, String profile, String region) {
+        return async(_s3Executor, () -> putFile(url, file, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> putFileAsync(String url, String file) {
+        return async(_s3Executor, () -> putFile(url, file));
+    }
+
+    // SDK exceptions complete the future exceptionally, a full queue completes it with a failed result
+    private CompletableFuture<ExternalResult> async(ExecutorService executor, Supplier<ExternalResult> call) {
+        try {
+            return CompletableFuture.supplyAsync(call, executor);
+        } catch (RejectedExecutionException ree) {
+            _log.warn("asynchronous request rejected: " + ree);
+            return CompletableFuture.completedFuture(new AwsExternalResult(false, "too many pending requests", null));
+        }
+    }
+
+    private LeadershipElectionService newElectionService() {
+        String leaseUrl = System.getProperty(ELECTION_LEASE_URL_KEY);
+        if (leaseUrl == null || leaseUrl.isEmpty()) {
+            AwsLeadershipElectionService election = new AwsLeadershipElectionService(_cloudwatch);
+            election.start();
+            return election;
+        }
+        LeaseElectionService election = new LeaseElectionService(
+                _s3.newLeaseStore(leaseUrl, CredentialContainer.getDefault()),
+                LeaseElectionService.defaultHolderId(),
+                Long.getLong(ELECTION_LEASE_MILLIS_KEY, DEFAULT_ELECTION_LEASE_MILLIS),
+                Long.getLong(ELECTION_HEARTBEAT_MILLIS_KEY, DEFAULT_ELECTION_HEARTBEAT_MILLIS));
+        election.start();
+        // hand over at once rather than after the lease runs out, while the S3 client is still running
+        AwsClientRegistry clients = AwsClientRegistry.getInstance();
+        clients.retain(election);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            election.shutdown();
+            clients.release(election);
+        }, "lease-release"));
+        return election;
+    }
+
+    private static synchronized SNSServices sharedSns() {
+        if (_sharedSns == null) {
+            _sharedSns = new SNSServices();
+        }
+        return _sharedSns;
+    }
+
+    private static synchronized CloudWatchServices sharedCloudwatch() {
+        if (_sharedCloudwatch == null) {
+            _sharedCloudwatch = new CloudWatchServices();
+        }
+        return _sharedCloudwatch;
+    }
+
+    private static ExecutorService newAsyncExecutor(String service) {
+        return CloudExecutors.newExecutor(service, Integer.getInteger(ASYNC_THREADS_KEY, DEFAULT_ASYNC_THREADS),
+                Integer.getInteger(ASYNC_QUEUE_SIZE_KEY, DEFAULT_ASYNC_QUEUE_SIZE), false);
     }
 }
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.ExternalResult;
+import org.onebusaway.cloud.api.MetricDescriptor;
+import org.onebusaway.cloud.api.MetricUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AWS services that publish metrics as Embedded Metric Format log lines instead
+ * of PutMetricData calls; the CloudWatch agent turns the lines into metrics.
+ * Publishing only queues the metric, so it costs no API call and never waits.
+ * Metric handles and meter registries still aggregate and publish through
+ * CloudWatch, as they already make one call per period, but are never spooled.
+ * Messages, S3 and leadership election are unchanged.  Every instance writing
+ * to the same output shares one writer.
+ */
+public class ExternalServicesEmf extends ExternalServicesAws {
+
+    public static final String FILE_KEY = "oba.cloud.aws.emf.file";
+    public static final String BUFFER_SIZE_KEY = "oba.cloud.aws.emf.bufferSize";
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    // names and values, both null
+    private static final String[][] NO_DIMENSIONS = new String[2][];
+
+    private static final Logger _log = LoggerFactory.getLogger(ExternalServicesEmf.class);
+
+    // for handles and meter registries only, so without the spool and its replayer
+    private static CloudWatchServices _sharedCloudwatch;
+
+    private final EmfWriter _writer = sharedWriter();
+
+    public ExternalServicesEmf() {
+        super(sharedCloudwatch());
+    }
+
+    private static synchronized CloudWatchServices sharedCloudwatch() {
+        if (_sharedCloudwatch == null) {
+            _sharedCloudwatch = new CloudWatchServices(false);
+        }
+        return _sharedCloudwatch;
+    }
+
+    private static EmfWriter sharedWriter() {
+        String file = System.getProperty(FILE_KEY);
+        int capacity = Integer.getInteger(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+        if (file != null && !file.isEmpty()) {
+            try {
+                return EmfWriter.shared(Paths.get(file), capacity);
+            } catch (IOException ioe) {
+                _log.error("unable to open " + file + " for embedded metrics, writing to standard output: " + ioe);
+            }
+        }
+        try {
+            return EmfWriter.shared(null, capacity);
+        } catch (IOException ioe) {
+            // standard output is not opened
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Override
+    public ExternalResult publishMetric(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return publish(namespace, metricName, MetricUnit.COUNT.getName(), MetricDescriptor.STANDARD_RESOLUTION,
+                System.currentTimeMillis(), dimension(dimensionName, dimensionValue), value);
+    }
+
+    @Override
+    public ExternalResult publishMetric(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(namespace, metricName, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMetric(String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publish(namespace, metric, dimension(dimensionName, dimensionValue), value);
+    }
+
+    @Override
+    public ExternalResult publishMetric(Credential credential, String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMetrics(String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        if (metricNames == null || values == null || metricNames.size() != values.size()) {
+            throw new IllegalStateException("Input array lengths must match: metricNames=" + metricNames
+                    + " vs values " + values);
+        }
+        boolean dimensioned = dimensionNames != null && dimensionValues != null;
+        if (dimensioned && (dimensionNames.size() != metricNames.size() || dimensionValues.size() != metricNames.size())) {
+            throw new IllegalStateException("Input array lengths must match: dimensionNames=" + dimensionNames.size()
+                    + " vs dimensionValues " + dimensionValues.size());
+        }
+        long timestamp = System.currentTimeMillis();
+        int dropped = 0;
+        for (int i = 0; i < metricNames.size(); i++) {
+            String[][] dimension = dimensioned ? dimension(dimensionNames.get(i), dimensionValues.get(i)) : NO_DIMENSIONS;
+            if (!_writer.publish(namespace, metricNames.get(i), MetricUnit.COUNT.getName(),
+                    MetricDescriptor.STANDARD_RESOLUTION, timestamp, dimension[0], dimension[1], values.get(i))) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            return new AwsExternalResult(false, dropped + " of " + metricNames.size() + " metrics dropped", null);
+        }
+        return new AwsExternalResult(true, null, "queued");
+    }
+
+    @Override
+    public ExternalResult publishMetrics(Credential credential, String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return publishMetrics(namespace, metricNames, dimensionNames, dimensionValues, values);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return publish(namespace, metricName, MetricUnit.COUNT.getName(), MetricDescriptor.STANDARD_RESOLUTION,
+                System.currentTimeMillis(), dimensions(dimensionName, dimensionValue), value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(namespace, metricName, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publish(namespace, metric, dimensions(dimensionName, dimensionValue), value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    // queuing does not block, so the asynchronous calls complete at once
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return CompletableFuture.completedFuture(publishMetrics(namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(Credential credential, String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return CompletableFuture.completedFuture(publishMetrics(credential, namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMultiDimensionalMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMultiDimensionalMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    EmfWriter getWriter() {
+        return _writer;
+    }
+
+    private ExternalResult publish(String namespace, MetricDescriptor metric, String[][] dimensions, double value) {
+        long timestamp = metric.getTimestampMillis() == MetricDescriptor.NO_TIMESTAMP
+                ? System.currentTimeMillis() : metric.getTimestampMillis();
+        return publish(namespace, metric.getName(), metric.getUnit() == null ? null : metric.getUnit().getName(),
+                metric.getStorageResolution(), timestamp, dimensions, value);
+    }
+
+    private ExternalResult publish(String namespace, String metricName, String unit, int storageResolution,
+                                   long timestamp, String[][] dimensions, double value) {
+        if (namespace == null || metricName == null || unit == null) {
+            return new AwsExternalResult(false, "namespace, metric name and unit are required: namespace="
+                    + namespace + " metricName=" + metricName + " unit=" + unit, null);
+        }
+        if (_writer.publish(namespace, metricName, unit, storageResolution, timestamp, dimensions[0], dimensions[1], value)) {
+            return new AwsExternalResult(true, null, "queued");
+        }
+        return new AwsExternalResult(false, "embedded metric buffer full, metric dropped", null);
+    }
+
+    private static String[][] dimension(String dimensionName, String dimensionValue) {
+        if (dimensionName == null || dimensionValue == null) {
+            return NO_DIMENSIONS;
+        }
+        return new String[][] { { dimensionName }, { dimensionValue } };
+    }
+
+    // copied, as the caller may reuse the arrays before the line is written
+    private static String[][] dimensions(String[] dimensionName, String[] dimensionValue) {
+        if (dimensionName == null && dimensionValue == null) {
+            return NO_DIMENSIONS;
+        }
+        if (dimensionName == null || dimensionValue == null || dimensionName.length != dimensionValue.length) {
+            throw new IllegalStateException("Dimension mismatch: name=" + dimensionName + " vs value=" + dimensionValue);
+        }
+        return new String[][] { dimensionName.clone(), dimensionValue.clone() };
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.MetricHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls individual samples up into one StatisticSet per metric, dimension set
+ * and period, so N samples cost one datum instead of N.  Recording is lock-free:
+ * sample count and sum go to striped adders and min/max are maintained by CAS.
+ */
+public class MetricAggregator {
+
+    public static final String AGGREGATE_KEY = "oba.cloud.aws.metrics.aggregate";
+    public static final String PERIOD_KEY = "oba.cloud.aws.metrics.aggregationPeriodMillis";
+
+    private static final long DEFAULT_PERIOD_MILLIS = 60000;
+    // accumulators idle this many periods are released
+    private static final int IDLE_PERIODS_BEFORE_EVICTION = 5;
+
+    private final Logger _log = LoggerFactory.getLogger(MetricAggregator.class);
+
+    private final CloudWatchServices _cloudwatch;
+    private final long _periodMillis;
+    private final ConcurrentHashMap<MetricKey, StatisticsAccumulator> _accumulators = new ConcurrentHashMap<>();
+    private ScheduledExecutorService _scheduledExecutorService;
+
+    public MetricAggregator(CloudWatchServices cloudwatch) {
+        this(cloudwatch, Long.getLong(PERIOD_KEY, DEFAULT_PERIOD_MILLIS));
+    }
+
+    public MetricAggregator(CloudWatchServices cloudwatch, long periodMillis) {
+        if (periodMillis < 1) {
+            throw new IllegalArgumentException("periodMillis must be positive: " + periodMillis);
+        }
+        _cloudwatch = cloudwatch;
+        _periodMillis = periodMillis;
+    }
+
+    public synchronized void start() {
+        if (_scheduledExecutorService != null) return;
+        _scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("cloudwatch-metric-aggregator"));
+        _scheduledExecutorService.scheduleAtFixedRate(this::flushQuietly,
+                _periodMillis, _periodMillis, TimeUnit.MILLISECONDS);
+        _log.info("metric aggregation started with a period of {} ms", _periodMillis);
+    }
+
+    /**
+     * Fold the datum's value into its period accumulator.  Datums that already carry
+     * a StatisticSet or value arrays, are stored at high resolution, have an explicit
+     * timestamp, or have no value, are not aggregated.
+     * @return false if the datum cannot be aggregated and should be published as is
+     */
+    public boolean record(Credential credential, String namespace, MetricDatum datum) {
+        if (datum.getValue() == null || datum.getStatisticValues() != null || datum.getValues() != null
+                || isHighResolution(datum) || datum.getTimestamp() != null) {
+            return false;
+        }
+        record(new MetricKey(credential, namespace, datum.getMetricName(), datum.getUnit(),
+                datum.getDimensions()), datum.getValue());
+        return true;
+    }
+
+    // the rolled up datum is stamped with the flush time, so a datum's own timestamp would be lost;
+    // rolling a one second metric up into a period would likewise defeat its resolution
+    private static boolean isHighResolution(MetricDatum datum) {
+        return datum.getStorageResolution() != null && datum.getStorageResolution() < 60;
+    }
+
+    /**
+     * A handle that records straight into the series' accumulator.  The series is
+     * kept, rather than released when idle, for as long as the aggregator runs.
+     */
+    public MetricHandle register(MetricKey key) {
+        // pinned inside compute so a concurrent eviction cannot orphan the accumulator
+        StatisticsAccumulator accumulator = _accumulators.compute(key, (k, existing) -> {
+            StatisticsAccumulator a = existing != null ? existing : new StatisticsAccumulator();
+            a.pin();
+            return a;
+        });
+        return accumulator::record;
+    }
+
+    public void record(MetricKey key, double value) {
+        while (true) {
+            StatisticsAccumulator accumulator = _accumulators.get(key);
+            if (accumulator == null) {
+                accumulator = _accumulators.computeIfAbsent(key, k -> new StatisticsAccumulator());
+            }
+            if (accumulator.recordIfLive(value)) return;
+            // evicted between the lookup and the record, the next lookup finds its replacement
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Throwable any) {
+            _log.error("exception flushing aggregated metrics: " + any, any);
+        }
+    }
+
+    /**
+     * Snapshot every accumulator, reset it for the next period and publish the non-empty ones.
+     */
+    public void flush() {
+        Date timestamp = new Date();
+        Map<Destination, List<MetricDatum>> byDestination = new LinkedHashMap<>();
+        Iterator<Map.Entry<MetricKey, StatisticsAccumulator>> it = _accumulators.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MetricKey, StatisticsAccumulator> entry = it.next();
+            MetricKey key = entry.getKey();
+            StatisticSet statistics = entry.getValue().snapshotAndReset();
+            if (statistics == null) {
+                if (entry.getValue().idlePeriods() > IDLE_PERIODS_BEFORE_EVICTION) {
+                    _accumulators.computeIfPresent(key, (k, a) -> a.retire() ? null : a);
+                }
+                continue;
+            }
+            MetricDatum datum = new MetricDatum()
+                    .withMetricName(key.metricName)
+                    .withUnit(key.unit)
+                    .withTimestamp(timestamp)
+                    .withStatisticValues(statistics);
+            if (!key.dimensions.isEmpty()) {
+                datum.setDimensions(key.dimensions);
+            }
+            byDestination.computeIfAbsent(new Destination(key.credential, key.namespace),
+                    k -> new ArrayList<>()).add(datum);
+        }
+        for (Map.Entry<Destination, List<MetricDatum>> entry : byDestination.entrySet()) {
+            Destination destination = entry.getKey();
+            _cloudwatch.publishAggregated(destination.getCredential(), destination.getName(), entry.getValue());
+        }
+    }
+
+    /**
+     * Publish what has been recorded so far and stop the periodic flush.
+     */
+    public synchronized void shutdown() {
+        if (_scheduledExecutorService == null) return;
+        _scheduledExecutorService.shutdown();
+        try {
+            _scheduledExecutorService.awaitTermination(_periodMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        _scheduledExecutorService = null;
+        flushQuietly();
+    }
+
+    /**
+     * Identity of an aggregated series.
+     */
+    public static class MetricKey {
+        private final Credential credential;
+        private final String namespace;
+        private final String metricName;
+        private final String unit;
+        private final List<Dimension> dimensions;
+        private final int hash;
+
+        public MetricKey(Credential credential, String namespace, String metricName, String unit,
+                         List<Dimension> dimensions) {
+            this.credential = credential;
+            this.namespace = namespace;
+            this.metricName = metricName;
+            this.unit = unit;
+            this.dimensions = dimensions == null ? Collections.emptyList() : new ArrayList<>(dimensions);
+            this.hash = Objects.hash(credential, namespace, metricName, unit, this.dimensions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MetricKey)) return false;
+            MetricKey that = (MetricKey) o;
+            return hash == that.hash
+                    && Objects.equals(metricName, that.metricName)
+                    && Objects.equals(namespace, that.namespace)
+                    && Objects.equals(unit, that.unit)
+                    && Objects.equals(dimensions, that.dimensions)
+                    && Objects.equals(credential, that.credential);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
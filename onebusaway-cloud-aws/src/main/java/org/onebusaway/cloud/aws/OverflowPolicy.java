@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+/**
+ * What a bounded publishing queue does with an item that arrives when it is full.
+ */
+public enum OverflowPolicy {
+    /** discard the item being published */
+    DROP_NEWEST,
+    /** discard the oldest queued item to make room */
+    DROP_OLDEST,
+    /** wait up to the block timeout for room, then discard */
+    BLOCK
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2018 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Presents an S3 object as one ordered stream while fetching it as concurrent
+ * range GETs.  At most parallelism parts are requested ahead of the reader, so
+ * memory use is bounded by (parallelism + 1) * partSize.  Every part is
+ * requested with the ETag of the first, so a concurrent overwrite of the object
+ * fails the read instead of splicing two versions together.
+ */
+class ParallelRangeInputStream extends InputStream {
+
+    private final AmazonS3 _s3;
+    private final String _bucket;
+    private final String _key;
+    private final String _etag;
+    private final long _length;
+    private final int _partSize;
+    private final int _parallelism;
+    private final ExecutorService _executor;
+    private final ArrayDeque<Future<byte[]>> _pending;
+
+    // offset of the first byte not yet requested
+    private long _nextPartStart;
+    private byte[] _current;
+    private int _position;
+    private boolean _closed = false;
+
+    /**
+     * @param first the object's first part, already requested with a range
+     */
+    ParallelRangeInputStream(AmazonS3 s3, String bucket, String key, S3Object first,
+                             ExecutorService executor, int partSize, int parallelism) throws IOException {
+        _s3 = s3;
+        _bucket = bucket;
+        _key = key;
+        _etag = first.getObjectMetadata().getETag();
+        _length = first.getObjectMetadata().getInstanceLength();
+        _partSize = partSize;
+        _parallelism = parallelism;
+        _executor = executor;
+        _pending = new ArrayDeque<>(parallelism);
+        try (S3ObjectInputStream in = first.getObjectContent()) {
+            _current = readFully(in, (int) first.getObjectMetadata().getContentLength());
+        }
+        _position = 0;
+        _nextPartStart = _current.length;
+        requestParts();
+    }
+
+    long getLength() {
+        return _length;
+    }
+
+    private void requestParts() {
+        while (_pending.size() < _parallelism && _nextPartStart < _length) {
+            final long start = _nextPartStart;
+            final long end = Math.min(_length, start + _partSize) - 1;
+            _pending.add(_executor.submit(() -> fetchPart(start, end)));
+            _nextPartStart = end + 1;
+        }
+    }
+
+    private byte[] fetchPart(long start, long end) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(_bucket, _key)
+                .withRange(start, end)
+                .withMatchingETagConstraint(_etag);
+        S3Object part = _s3.getObject(request);
+        if (part == null) {
+            throw new IOException("s3://" + _bucket + "/" + _key + " changed during download");
+        }
+        try (S3ObjectInputStream in = part.getObjectContent()) {
+            return readFully(in, (int) (end - start + 1));
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("expected " + length + " bytes, got " + offset);
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    // advance to the next part once the current one is consumed; false at end of object
+    private boolean ensureAvailable() throws IOException {
+        if (_closed) throw new IOException("stream closed");
+        while (_position >= _current.length) {
+            Future<byte[]> next = _pending.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                _current = next.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted reading s3://" + _bucket + "/" + _key);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException("unable to read s3://" + _bucket + "/" + _key, cause);
+            }
+            _position = 0;
+            requestParts();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) return -1;
+        return _current[_position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensureAvailable()) return -1;
+        int count = Math.min(len, _current.length - _position);
+        System.arraycopy(_current, _position, b, off, count);
+        _position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return _closed ? 0 : _current.length - _position;
+    }
+
+    @Override
+    public void close() {
+        if (_closed) return;
+        _closed = true;
+        for (Future<byte[]> future : _pending) {
+            future.cancel(true);
+        }
+        _pending.clear();
+        _current = new byte[0];
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a stream pipeline: a producer runs on its own thread and hands
+ * fixed size chunks to the reading thread through a bounded queue, so the two
+ * sides work concurrently with at most depth chunks in between.  Chunk buffers
+ * are recycled rather than allocated per write.
+ *
+ * A producer may divide its output into named entries, e.g. the members of a zip
+ * archive.  read() then stops at the end of each entry and nextEntry() moves on.
+ */
+class PipelinedInputStream extends InputStream {
+
+    interface Producer {
+        void produce(Sink sink) throws IOException;
+    }
+
+    private static final Logger _log = LoggerFactory.getLogger(PipelinedInputStream.class);
+    // how often a blocked producer checks whether the reader has gone away
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private static final Chunk END = new Chunk(null, null, 0, null);
+
+    private final String _name;
+    private final BlockingQueue<Chunk> _queue;
+    private final BlockingQueue<byte[]> _free;
+    private final int _chunkSize;
+    private final AtomicLong _bytesIn;
+    private final Runnable _abort;
+    private final long _started = System.nanoTime();
+    private long _bytesOut = 0;
+
+    private Chunk _current;
+    private int _position;
+    private volatile boolean _closed = false;
+    private volatile boolean _produced = false;
+
+    /**
+     * @param name describes the stream in log messages
+     * @param bytesIn counter the producer advances as it consumes its own input, for throughput reporting
+     * @param abort stops the producer's input if the reader closes before the producer is done, e.g.
+     *              S3ObjectInputStream.abort(); runs on the reader's thread, so it must be safe to call
+     *              while the producer is reading.  May be null.
+     */
+    PipelinedInputStream(String name, Producer producer, ExecutorService executor, int chunkSize, int depth,
+                         AtomicLong bytesIn, Runnable abort) {
+        _name = name;
+        _queue = new ArrayBlockingQueue<>(depth);
+        // depth queued, one being filled and one being read
+        _free = new ArrayBlockingQueue<>(depth + 2);
+        _chunkSize = chunkSize;
+        _bytesIn = bytesIn;
+        _abort = abort;
+        executor.execute(() -> {
+            Sink sink = new Sink();
+            try {
+                producer.produce(sink);
+                sink.flush();
+                put(END);
+            } catch (Throwable any) {
+                if (!_closed) {
+                    put(new Chunk(null, null, 0, any));
+                }
+            } finally {
+                _produced = true;
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!advance()) return -1;
+        int n = Math.min(len, _current.length - _position);
+        System.arraycopy(_current.data, _position, b, off, n);
+        _position += n;
+        _bytesOut += n;
+        return n;
+    }
+
+    /**
+     * Skip the rest of the current entry.
+     * @return the name of the next entry, or null at the end of the stream
+     */
+    String nextEntry() throws IOException {
+        while (advance()) {
+            _position = _current.length;
+        }
+        if (_current == END) {
+            return null;
+        }
+        String entry = _current.entry;
+        // step past the marker
+        _current = null;
+        return entry;
+    }
+
+    // make _current a data chunk with bytes left to read; false at an entry marker or the end
+    private boolean advance() throws IOException {
+        if (_closed) throw new IOException("stream closed");
+        while (_current == null || (_current.data != null && _position == _current.length)) {
+            if (_current != null) {
+                _free.offer(_current.data);
+            }
+            try {
+                _current = _queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted reading " + _name);
+            }
+            _position = 0;
+            if (_current.error != null) {
+                Throwable error = _current.error;
+                _current = END;
+                if (error instanceof IOException) throw (IOException) error;
+                throw new IOException("failed reading " + _name, error);
+            }
+        }
+        return _current.data != null;
+    }
+
+    long getBytesIn() { return _bytesIn.get(); }
+    long getBytesOut() { return _bytesOut; }
+
+    @Override
+    public void close() {
+        if (_closed) return;
+        _closed = true;
+        _queue.clear();
+        if (_abort != null && !_produced) {
+            // the producer may be blocked on a network read that would otherwise run to the end
+            try {
+                _abort.run();
+            } catch (RuntimeException e) {
+                _log.warn("unable to abort {}: {}", _name, e.toString());
+            }
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - _started) / 1e9);
+        _log.info("{}: {} bytes in ({} KB/s), {} bytes out ({} KB/s)", _name,
+                _bytesIn.get(), Math.round(_bytesIn.get() / seconds / 1024),
+                _bytesOut, Math.round(_bytesOut / seconds / 1024));
+    }
+
+    private void put(Chunk chunk) {
+        try {
+            while (!_closed && !_queue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                // the reader is slower, wait for room
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The producer's end of the pipe.
+     */
+    class Sink {
+        private byte[] _buffer;
+        private int _filled;
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                acquire();
+                int n = Math.min(len, _buffer.length - _filled);
+                System.arraycopy(b, off, _buffer, _filled, n);
+                _filled += n;
+                off += n;
+                len -= n;
+                if (_filled == _buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Copy the stream to the pipe until its end, reading straight into chunk buffers.
+         */
+        void transferFrom(InputStream in) throws IOException {
+            while (true) {
+                acquire();
+                int n = in.read(_buffer, _filled, _buffer.length - _filled);
+                if (n == -1) return;
+                _filled += n;
+                if (_filled == _buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        private void acquire() {
+            if (_buffer == null) {
+                byte[] recycled = _free.poll();
+                _buffer = recycled != null ? recycled : new byte[_chunkSize];
+                _filled = 0;
+            }
+        }
+
+        /**
+         * Everything written after this belongs to the named entry.
+         */
+        void startEntry(String name) throws IOException {
+            flush();
+            send(new Chunk(name, null, 0, null));
+        }
+
+        void flush() throws IOException {
+            if (_buffer != null && _filled > 0) {
+                send(new Chunk(null, _buffer, _filled, null));
+                _buffer = null;
+            }
+        }
+
+        private void send(Chunk chunk) throws IOException {
+            put(chunk);
+            if (_closed) {
+                throw new IOException(_name + " closed by the reader");
+            }
+        }
+    }
+
+    /**
+     * Count the bytes read through the stream.
+     */
+    static InputStream counting(InputStream in, AtomicLong counter) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) counter.incrementAndGet();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) counter.addAndGet(n);
+                return n;
+            }
+        };
+    }
+
+    private static class Chunk {
+        private final String entry;
+        private final byte[] data;
+        private final int length;
+        private final Throwable error;
+
+        Chunk(String entry, byte[] data, int length, Throwable error) {
+            this.entry = entry;
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
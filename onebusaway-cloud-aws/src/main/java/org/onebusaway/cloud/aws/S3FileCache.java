@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Local disk copy of S3 objects, keyed by URL.  Each object is stored as a data
+ * file plus a small properties file recording its URL, ETag and length, so the
+ * cache survives restarts and a cached copy can be revalidated with a conditional
+ * GET instead of downloaded again.  The cache is bounded by total size; the least
+ * recently used objects are deleted first.  Recency is kept in the data file's
+ * modification time, so the order is rebuilt from the directory on startup.
+ * Downloads in progress are named after the process writing them, and only those
+ * of processes that are no longer running are cleaned up.
+ */
+public class S3FileCache {
+
+    public static final String CACHE_DIRECTORY_KEY = "oba.cloud.aws.s3.cacheDirectory";
+    public static final String CACHE_MAX_BYTES_KEY = "oba.cloud.aws.s3.cacheMaxBytes";
+    private static final long DEFAULT_CACHE_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String METADATA_SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".part";
+
+    private static final Logger _log = LoggerFactory.getLogger(S3FileCache.class);
+
+    // temp files carry the creating process's id so load() can tell abandoned ones apart
+    private static final String TEMP_PREFIX = "." + ProcessHandle.current().pid() + "-";
+
+    // one cache per directory for the whole process, so the size budget and LRU order are shared
+    private static final Map<Path, S3FileCache> _caches = new HashMap<>();
+
+    private final Path _directory;
+    private final long _maxBytes;
+    // access ordered, eldest first
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _totalBytes = 0;
+
+    /**
+     * @return the cache configured by system properties, or null if caching is not enabled.
+     * Every caller configured with the same directory gets the same cache.
+     */
+    public static S3FileCache fromSystemProperties() {
+        String directory = System.getProperty(CACHE_DIRECTORY_KEY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+        Path path = Paths.get(directory).toAbsolutePath().normalize();
+        synchronized (_caches) {
+            S3FileCache cache = _caches.get(path);
+            if (cache == null) {
+                try {
+                    cache = new S3FileCache(path, Long.getLong(CACHE_MAX_BYTES_KEY, DEFAULT_CACHE_MAX_BYTES));
+                } catch (IOException ioe) {
+                    _log.error("unable to use " + directory + " as an S3 cache, caching disabled: " + ioe);
+                    return null;
+                }
+                _caches.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    public S3FileCache(Path directory, long maxBytes) throws IOException {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        _directory = directory.toAbsolutePath();
+        _maxBytes = maxBytes;
+        Files.createDirectories(_directory);
+        load();
+    }
+
+    /**
+     * @return the cached entry for the URL, or null if there is none
+     */
+    public synchronized Entry get(String url) {
+        return _entries.get(url);
+    }
+
+    /**
+     * A file in the cache directory to download into before calling put.
+     */
+    public Path newTempFile() throws IOException {
+        return Files.createTempFile(_directory, TEMP_PREFIX, TEMP_SUFFIX);
+    }
+
+    /**
+     * Move the downloaded file into the cache as the content of url, replacing any
+     * previous copy, and evict older entries if the cache is over its size.
+     */
+    public Entry put(String url, String eTag, Path downloaded) throws IOException {
+        String name = fileName(url);
+        Path data = _directory.resolve(name + DATA_SUFFIX);
+        long length = Files.size(downloaded);
+        Properties metadata = new Properties();
+        metadata.setProperty("url", url);
+        metadata.setProperty("etag", eTag == null ? "" : eTag);
+        metadata.setProperty("length", Long.toString(length));
+        Path metadataTemp = newTempFile();
+        try (Writer writer = Files.newBufferedWriter(metadataTemp, StandardCharsets.UTF_8)) {
+            metadata.store(writer, null);
+        }
+        Entry entry = new Entry(url, eTag, length, data);
+        synchronized (this) {
+            // the data is moved first: a crash in between leaves metadata that fails the length check
+            move(downloaded, data);
+            move(metadataTemp, _directory.resolve(name + METADATA_SUFFIX));
+            Entry previous = _entries.put(url, entry);
+            if (previous != null) {
+                _totalBytes -= previous.length;
+            }
+            _totalBytes += length;
+            Iterator<Entry> it = _entries.values().iterator();
+            while (_totalBytes > _maxBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest == entry) break;
+                it.remove();
+                _totalBytes -= eldest.length;
+                _log.info("evicting {} ({} bytes) from the S3 cache", eldest.url, eldest.length);
+                // under the lock, as remove() does, so a concurrent put of the same url cannot move a new copy in first
+                delete(eldest.file);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Open the cached content and mark it recently used.
+     * @return a FileChannel backed stream, or null if the entry has been evicted
+     */
+    public InputStream open(Entry entry) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry.file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                if (_entries.remove(entry.url, entry)) {
+                    _totalBytes -= entry.length;
+                }
+            }
+            return null;
+        }
+        synchronized (this) {
+            // refresh the access order
+            _entries.get(entry.url);
+        }
+        try {
+            Files.setLastModifiedTime(entry.file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ioe) {
+            _log.debug("unable to touch {}: {}", entry.file, ioe.toString());
+        }
+        return Channels.newInputStream(channel);
+    }
+
+    /**
+     * Drop the entry and delete its files, unless it has already been replaced.
+     */
+    public synchronized void remove(Entry entry) {
+        if (_entries.remove(entry.url, entry)) {
+            _totalBytes -= entry.length;
+            _log.info("removing {} from the S3 cache", entry.url);
+            // under the lock, so a concurrent put cannot move a new copy in first
+            delete(entry.file);
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return _totalBytes;
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    private void load() throws IOException {
+        List<Entry> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(_directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    if (isAbandoned(name)) {
+                        // left over from a download by a process that has since exited
+                        delete(file);
+                    }
+                } else if (name.endsWith(METADATA_SUFFIX)) {
+                    Entry entry = read(file);
+                    if (entry == null) {
+                        delete(file);
+                    } else {
+                        found.add(entry);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(e -> e.lastModified));
+        for (Entry entry : found) {
+            _entries.put(entry.url, entry);
+            _totalBytes += entry.length;
+        }
+        _log.info("S3 cache at {} holds {} objects, {} bytes", _directory, _entries.size(), _totalBytes);
+    }
+
+    // a temp file belongs to a download in progress while the process that created it runs
+    private static boolean isAbandoned(String tempName) {
+        int dash = tempName.indexOf('-');
+        if (!tempName.startsWith(".") || dash < 2) {
+            return false;
+        }
+        try {
+            long pid = Long.parseLong(tempName.substring(1, dash));
+            return pid == ProcessHandle.current().pid() || !ProcessHandle.of(pid).isPresent();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private Entry read(Path metadataFile) {
+        String name = metadataFile.getFileName().toString();
+        Path data = _directory.resolve(name.substring(0, name.length() - METADATA_SUFFIX.length()) + DATA_SUFFIX);
+        Properties metadata = new Properties();
+        try (Reader reader = Files.newBufferedReader(metadataFile, StandardCharsets.UTF_8)) {
+            metadata.load(reader);
+            String url = metadata.getProperty("url");
+            long length = Long.parseLong(metadata.getProperty("length", "-1"));
+            if (url == null || !Files.isRegularFile(data) || Files.size(data) != length) {
+                delete(data);
+                return null;
+            }
+            String eTag = metadata.getProperty("etag", "");
+            Entry entry = new Entry(url, eTag.isEmpty() ? null : eTag, length, data);
+            entry.lastModified = Files.getLastModifiedTime(data).toMillis();
+            return entry;
+        } catch (IOException | NumberFormatException e) {
+            _log.warn("discarding unreadable S3 cache entry {}: {}", metadataFile, e.toString());
+            delete(data);
+            return null;
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void delete(Path data) {
+        String name = data.getFileName().toString();
+        try {
+            Files.deleteIfExists(data);
+            if (name.endsWith(DATA_SUFFIX)) {
+                Files.deleteIfExists(data.resolveSibling(
+                        name.substring(0, name.length() - DATA_SUFFIX.length()) + METADATA_SUFFIX));
+            }
+        } catch (IOException ioe) {
+            _log.warn("unable to delete {}: {}", data, ioe.toString());
+        }
+    }
+
+    private static String fileName(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Entry {
+        private final String url;
+        private final String eTag;
+        private final long length;
+        private final Path file;
+        private long lastModified;
+
+        Entry(String url, String eTag, long length, Path file) {
+            this.url = url;
+            this.eTag = eTag;
+            this.length = length;
+            this.file = file;
+        }
+
+        public String getUrl() { return url; }
+        public String getETag() { return eTag; }
+        public long getLength() { return length; }
+        public Path getFile() { return file; }
+    }
+}
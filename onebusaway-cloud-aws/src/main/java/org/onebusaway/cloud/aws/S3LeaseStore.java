@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.onebusaway.cloud.api.Lease;
+import org.onebusaway.cloud.api.LeaseStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+/**
+ * A lease kept in a single S3 object.  Writes are conditional puts: If-None-Match
+ * to create the object and If-Match on the ETag last read to replace it, so of
+ * two instances racing for the lease exactly one succeeds.
+ */
+class S3LeaseStore implements LeaseStore {
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private final Supplier<AmazonS3> _s3;
+    private final String _bucket;
+    private final String _key;
+
+    S3LeaseStore(Supplier<AmazonS3> s3, AmazonS3URI uri) {
+        _s3 = s3;
+        _bucket = uri.getBucket();
+        _key = uri.getKey();
+    }
+
+    @Override
+    public Lease read() throws IOException {
+        try (S3Object object = _s3.get().getObject(_bucket, _key);
+             InputStream in = object.getObjectContent()) {
+            Properties p = new Properties();
+            p.load(in);
+            return Lease.fromProperties(p).withVersion(object.getObjectMetadata().getETag());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String write(Lease lease, String expectedVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        lease.toProperties().store(bytes, null);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(bytes.size());
+        metadata.setContentType("text/plain");
+        PutObjectRequest request = new PutObjectRequest(_bucket, _key,
+                new ByteArrayInputStream(bytes.toByteArray()), metadata);
+        // this SDK has no typed setters for conditional puts
+        if (expectedVersion == null) {
+            request.putCustomRequestHeader("If-None-Match", "*");
+        } else {
+            request.putCustomRequestHeader("If-Match", "\"" + expectedVersion + "\"");
+        }
+        try {
+            return _s3.get().putObject(request).getETag();
+        } catch (AmazonS3Exception e) {
+            // 409 is a conditional write racing another on the same key
+            if (e.getStatusCode() == HTTP_PRECONDITION_FAILED || e.getStatusCode() == HTTP_CONFLICT) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + _bucket + "/" + _key;
+    }
+}
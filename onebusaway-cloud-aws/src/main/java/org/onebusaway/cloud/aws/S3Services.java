@@ -15,61 +15,176 @@
  */
 package org.onebusaway.cloud.aws;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.MultipleFileUpload;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.Upload;
+import org.onebusaway.cloud.api.LeaseStore;
+import org.onebusaway.cloud.api.ZipEntryConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 // adapted from mta-otp-deployer
 public class S3Services {
     private final Logger _log = LoggerFactory.getLogger(S3Services.class);
 
-    // this expects config files present in ~/.aws
-    Map<CredentialContainer, AmazonS3> regionMap = new HashMap<>();
+    public static final String PARALLEL_DOWNLOAD_KEY = "oba.cloud.aws.s3.parallelDownload";
+    public static final String DOWNLOAD_PART_SIZE_KEY = "oba.cloud.aws.s3.downloadPartSize";
+    public static final String DOWNLOAD_PARALLELISM_KEY = "oba.cloud.aws.s3.downloadParallelism";
+    private static final int DEFAULT_DOWNLOAD_PART_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_DOWNLOAD_PARALLELISM = 4;
+    public static final String DOWNLOAD_BUFFER_SIZE_KEY = "oba.cloud.aws.s3.downloadBufferSize";
+    public static final String VERIFY_CHECKSUM_KEY = "oba.cloud.aws.s3.verifyChecksum";
+    private static final int DEFAULT_DOWNLOAD_BUFFER_SIZE = 1024 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    public static final String DECOMPRESS_KEY = "oba.cloud.aws.s3.decompress";
+    public static final String PIPELINE_CHUNK_SIZE_KEY = "oba.cloud.aws.s3.pipelineChunkSize";
+    public static final String PIPELINE_DEPTH_KEY = "oba.cloud.aws.s3.pipelineDepth";
+    private static final int DEFAULT_PIPELINE_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_PIPELINE_DEPTH = 16;
+    public static final String PIPELINE_THREADS_KEY = "oba.cloud.aws.s3.pipelineThreads";
+    private static final int DEFAULT_PIPELINE_THREADS = 32;
+    public static final String SYNC_CONCURRENCY_KEY = "oba.cloud.aws.s3.syncConcurrency";
+    private static final int DEFAULT_SYNC_CONCURRENCY = 8;
+
+    public static final String MULTIPART_THRESHOLD_KEY = "oba.cloud.aws.s3.multipartThreshold";
+    public static final String UPLOAD_PART_SIZE_KEY = "oba.cloud.aws.s3.uploadPartSize";
+    public static final String UPLOAD_CONCURRENCY_KEY = "oba.cloud.aws.s3.uploadConcurrency";
+    public static final String UPLOAD_ATTEMPTS_KEY = "oba.cloud.aws.s3.uploadAttempts";
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+    private static final long DEFAULT_UPLOAD_PART_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_UPLOAD_CONCURRENCY = 10;
+    private static final int DEFAULT_UPLOAD_ATTEMPTS = 2;
+    // log upload progress every this many percent
+    private static final int PROGRESS_LOG_PERCENT = 10;
+
+    private final boolean _parallelDownload = Boolean.getBoolean(PARALLEL_DOWNLOAD_KEY);
+    private final int _downloadPartSize = Integer.getInteger(DOWNLOAD_PART_SIZE_KEY, DEFAULT_DOWNLOAD_PART_SIZE);
+    private final int _downloadParallelism = Integer.getInteger(DOWNLOAD_PARALLELISM_KEY, DEFAULT_DOWNLOAD_PARALLELISM);
+    private final int _downloadBufferSize = Integer.getInteger(DOWNLOAD_BUFFER_SIZE_KEY, DEFAULT_DOWNLOAD_BUFFER_SIZE);
+    private final boolean _verifyChecksum = Boolean.getBoolean(VERIFY_CHECKSUM_KEY);
+    private final boolean _decompress = Boolean.getBoolean(DECOMPRESS_KEY);
+    private final int _pipelineChunkSize = Integer.getInteger(PIPELINE_CHUNK_SIZE_KEY, DEFAULT_PIPELINE_CHUNK_SIZE);
+    private final int _pipelineDepth = Integer.getInteger(PIPELINE_DEPTH_KEY, DEFAULT_PIPELINE_DEPTH);
+    private final int _pipelineThreads = Integer.getInteger(PIPELINE_THREADS_KEY, DEFAULT_PIPELINE_THREADS);
+    private final int _syncConcurrency = Integer.getInteger(SYNC_CONCURRENCY_KEY, DEFAULT_SYNC_CONCURRENCY);
+    private final long _multipartThreshold = Long.getLong(MULTIPART_THRESHOLD_KEY, DEFAULT_MULTIPART_THRESHOLD);
+    private final long _uploadPartSize = Long.getLong(UPLOAD_PART_SIZE_KEY, DEFAULT_UPLOAD_PART_SIZE);
+    private final int _uploadConcurrency = Integer.getInteger(UPLOAD_CONCURRENCY_KEY, DEFAULT_UPLOAD_CONCURRENCY);
+    private final int _uploadAttempts = Integer.getInteger(UPLOAD_ATTEMPTS_KEY, DEFAULT_UPLOAD_ATTEMPTS);
+    // created on first parallel download
+    private volatile ExecutorService _downloadExecutor;
+    // created on first sync; separate from the part executor so whole-object tasks never wait on their own parts
+    private volatile ExecutorService _syncExecutor;
+    // created on first pipelined read
+    private volatile ExecutorService _pipelineExecutor;
+    // null unless a cache directory is configured
+    private final S3FileCache _cache = S3FileCache.fromSystemProperties();
 
+    // this expects config files present in ~/.aws
+    private final AwsClientRegistry _clients = AwsClientRegistry.getInstance();
 
-    TransferManager tm;
 
-    private AmazonS3 getS3Provider(CredentialContainer cc) {
+    AmazonS3 getS3Provider(CredentialContainer cc) {
         if (cc == null) cc = CredentialContainer.getDefault();
         String profile = cc.getProfile();
         if (profile == null || profile.equals("")) {
             _log.error("profile must be set:  profile=|" + profile + "|");
             throw new IllegalStateException("profile must be set:  profile=|" + profile + "|");
         }
-        String region = cc.getRegion();
+        return _clients.getClient(AmazonS3.class, cc, S3Services::newS3Client);
+    }
 
-        synchronized (regionMap) {
-            if (regionMap.get(cc) == null) {
-                AmazonS3 s3 = AmazonS3ClientBuilder.standard()
-                        .withCredentials(new ProfileCredentialsProvider(profile))
-                        .withRegion(region)
-                        .build();
-                regionMap.put(cc, s3);
-            }
-        }
-        AmazonS3 result = regionMap.get(cc);
-        return result;
+    private static AmazonS3 newS3Client(CredentialContainer cc) {
+        return AmazonS3ClientBuilder.standard()
+                .withCredentials(new ProfileCredentialsProvider(cc.getProfile()))
+                .withRegion(cc.getRegion())
+                .build();
     }
 
-    private TransferManager getTransferManager() {
-        if (tm == null) {
-            tm = TransferManagerBuilder.defaultTransferManager();
-        }
-        return tm;
+    /**
+     * A lease store backed by the object at url, for leadership election.
+     */
+    LeaseStore newLeaseStore(String url, CredentialContainer cc) {
+        // looked up per request, as the registry may evict and later shut down the client
+        return new S3LeaseStore(() -> getS3Provider(cc), new AmazonS3URI(url));
+    }
+
+    // one TransferManager per credential, on an S3 client of its own so the registry can shut both down together
+    private TransferManager getTransferManager(CredentialContainer cc) {
+        if (cc == null) cc = CredentialContainer.getDefault();
+        getS3Provider(cc); // validates the profile
+        return _clients.getClient(TransferManager.class, cc, c -> newTransferManager(newS3Client(c)));
+    }
+
+    // the SDK default provider chain and region, as putRecursively without a credential has always used
+    private TransferManager getDefaultChainTransferManager() {
+        return _clients.getClient(TransferManager.class, null,
+                c -> newTransferManager(AmazonS3ClientBuilder.defaultClient()));
+    }
+
+    private TransferManager newTransferManager(AmazonS3 s3) {
+        return TransferManagerBuilder.standard()
+                .withS3Client(s3)
+                .withMultipartUploadThreshold(_multipartThreshold)
+                .withMinimumUploadPartSize(_uploadPartSize)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(_uploadConcurrency,
+                        new NamedThreadFactory("s3-upload")))
+                .build();
     }
 
     // input stream will need be closed
@@ -81,48 +196,685 @@ public class S3Services {
         return o.getObjectContent();
     }
 
+    /**
+     * Open the object for reading.  With parallel download enabled, objects larger
+     * than one part are fetched as concurrent range requests behind a single ordered
+     * stream; otherwise this is the same as fetch(url, profile).  With a cache directory
+     * configured, the object is served from local disk after a conditional GET confirms
+     * it has not changed.  The stream must be closed.
+     */
+    public InputStream fetchStream(String url, CredentialContainer profile) throws IOException {
+        if (_cache != null) {
+            return fetchCached(url, profile);
+        }
+        if (!_parallelDownload) {
+            return fetch(url, profile);
+        }
+        if (profile == null) throw new IllegalStateException("profile cannot be null!");
+        AmazonS3URI uri = new AmazonS3URI(url);
+        AmazonS3 s3 = getS3Provider(profile);
+        S3Object first;
+        try {
+            first = s3.getObject(new GetObjectRequest(uri.getBucket(), uri.getKey()).withRange(0, _downloadPartSize - 1));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                // empty objects have no byte range to ask for
+                return fetch(url, profile);
+            }
+            throw e;
+        }
+        long length = first.getObjectMetadata().getInstanceLength();
+        if (length <= _downloadPartSize) {
+            return first.getObjectContent();
+        }
+        _log.info("fetching {} ({} bytes) with profile {} as {} byte parts, {} at a time",
+                url, length, profile.getProfile(), _downloadPartSize, _downloadParallelism);
+        return new ParallelRangeInputStream(s3, uri.getBucket(), uri.getKey(), first,
+                getDownloadExecutor(), _downloadPartSize, _downloadParallelism);
+    }
+
+    private InputStream fetchCached(String url, CredentialContainer profile) throws IOException {
+        if (profile == null) throw new IllegalStateException("profile cannot be null!");
+        AmazonS3URI uri = new AmazonS3URI(url);
+        S3FileCache.Entry cached = _cache.get(url);
+        Path temp = _cache.newTempFile();
+        try {
+            ObjectMetadata metadata;
+            try {
+                metadata = transfer(profile, uri, temp, cached == null ? null : cached.getETag());
+            } catch (AmazonClientException e) {
+                if (cached != null && !SpoolReplayer.isTransient(e)) {
+                    // e.g. deleted or no longer readable: the copy must not outlive the object
+                    _cache.remove(cached);
+                    throw e;
+                }
+                return serveStale(url, cached, e);
+            } catch (IOException e) {
+                return serveStale(url, cached, e);
+            }
+            if (metadata == null) {
+                InputStream in = _cache.open(cached);
+                if (in != null) {
+                    _log.info("{} not modified, serving {} bytes from cache", url, cached.getLength());
+                    return in;
+                }
+                // evicted since the lookup
+                metadata = transfer(profile, uri, temp, null);
+            }
+            S3FileCache.Entry entry = _cache.put(url, metadata.getETag(), temp);
+            _log.info("cached {} ({} bytes)", url, entry.getLength());
+            InputStream in = _cache.open(entry);
+            return in != null ? in : fetch(url, profile);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // the cached copy when S3 could not be reached, otherwise the error
+    private <E extends Exception> InputStream serveStale(String url, S3FileCache.Entry cached, E e) throws E, IOException {
+        InputStream stale = cached == null ? null : _cache.open(cached);
+        if (stale == null) throw e;
+        _log.warn("unable to revalidate {}, serving the cached copy: {}", url, e.toString());
+        return stale;
+    }
+
+    /**
+     * As fetchStream, but with decompression enabled a gzip object is inflated on a
+     * separate thread while the network read continues on another, and the caller
+     * reads the decompressed content.  The stream must be closed.
+     */
+    public InputStream fetchDecoded(String url, CredentialContainer profile) throws IOException {
+        InputStream raw = fetchStream(url, profile);
+        if (!_decompress) {
+            return raw;
+        }
+        BufferedInputStream in = new BufferedInputStream(raw, GZIP_MAGIC.length);
+        if (!startsWith(in, GZIP_MAGIC)) {
+            return in;
+        }
+        AtomicLong compressed = new AtomicLong();
+        InputStream source = PipelinedInputStream.counting(prefetch(url, in, raw), compressed);
+        return newPipeline(url + " (gzip)", compressed, source, sink -> {
+            try (InputStream gzip = new GZIPInputStream(source, _pipelineChunkSize)) {
+                sink.transferFrom(gzip);
+            }
+        });
+    }
+
+    /**
+     * Read a zip archive entry by entry.  The archive is inflated on a separate
+     * thread from the consumer; each entry's stream ends with the entry, and the
+     * consumer is not expected to close it.
+     */
+    public void fetchZipEntries(String url, CredentialContainer profile, ZipEntryConsumer consumer) throws IOException {
+        AtomicLong compressed = new AtomicLong();
+        InputStream raw = fetchStream(url, profile);
+        InputStream source = PipelinedInputStream.counting(prefetch(url, raw, raw), compressed);
+        try (PipelinedInputStream entries = newPipeline(url + " (zip)", compressed, source, sink -> {
+            try (ZipInputStream zip = new ZipInputStream(source)) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (entry.isDirectory()) continue;
+                    sink.startEntry(entry.getName());
+                    sink.transferFrom(zip);
+                }
+            }
+        })) {
+            InputStream unclosable = new FilterInputStream(entries) {
+                @Override
+                public void close() {
+                    // the pipeline is closed once every entry has been read
+                }
+            };
+            String name;
+            while ((name = entries.nextEntry()) != null) {
+                consumer.accept(name, unclosable);
+            }
+        }
+    }
+
+    /**
+     * Move the network read to its own thread, unless it already has its own threads or is local.
+     * @param in the stream to read, raw or a wrapper around it
+     * @param raw the stream as returned by fetchStream, aborted if the reader closes early
+     */
+    private InputStream prefetch(String url, InputStream in, InputStream raw) throws IOException {
+        if (raw instanceof ParallelRangeInputStream || _cache != null) {
+            return in;
+        }
+        AtomicLong read = new AtomicLong();
+        Runnable abort = raw instanceof S3ObjectInputStream ? ((S3ObjectInputStream) raw)::abort : null;
+        return newPipeline(url, read, in, abort, sink -> {
+            try (InputStream counted = PipelinedInputStream.counting(in, read)) {
+                sink.transferFrom(counted);
+            }
+        });
+    }
+
+    private PipelinedInputStream newPipeline(String name, AtomicLong bytesIn, InputStream source,
+                                             PipelinedInputStream.Producer producer) throws IOException {
+        return newPipeline(name, bytesIn, source, null, producer);
+    }
+
+    /**
+     * @param source what the producer reads, closed here if the pipeline cannot be started
+     * @param abort see PipelinedInputStream; may be null
+     */
+    private PipelinedInputStream newPipeline(String name, AtomicLong bytesIn, InputStream source, Runnable abort,
+                                             PipelinedInputStream.Producer producer) throws IOException {
+        try {
+            return new PipelinedInputStream(name, producer, getPipelineExecutor(), _pipelineChunkSize, _pipelineDepth,
+                    bytesIn, abort);
+        } catch (RejectedExecutionException ree) {
+            if (abort != null) {
+                abort.run();
+            }
+            source.close();
+            throw new IOException("too many S3 streams open to read " + name, ree);
+        }
+    }
+
+    private static boolean startsWith(BufferedInputStream in, byte[] magic) throws IOException {
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != (b & 0xff)) return false;
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    private ExecutorService getPipelineExecutor() {
+        if (_pipelineExecutor == null) {
+            synchronized (this) {
+                if (_pipelineExecutor == null) {
+                    // each task lives as long as its stream; streams beyond the pool wait for one
+                    // to close, and are refused once the queue is full rather than growing the pool
+                    _pipelineExecutor = CloudExecutors.newExecutor("s3-pipeline", _pipelineThreads,
+                            _pipelineThreads * 4, false);
+                }
+            }
+        }
+        return _pipelineExecutor;
+    }
+
+    private ExecutorService getDownloadExecutor() {
+        if (_downloadExecutor == null) {
+            synchronized (this) {
+                if (_downloadExecutor == null) {
+                    // every stream keeps at most parallelism parts in flight, so the queue
+                    // only fills with many concurrent downloads; then the reader fetches itself
+                    _downloadExecutor = CloudExecutors.newExecutor("s3", _downloadParallelism * 4,
+                            _downloadParallelism * 16, true);
+                }
+            }
+        }
+        return _downloadExecutor;
+    }
+
+    /**
+     * Download to destinationPath/toFileName.
+     * @return the path written, or null if it could not be written
+     */
     public String fetch(String url, String toFileName, String destinationPath, CredentialContainer profile) {
         _log.info("fetching " + url + " to " + destinationPath
                 +" with profile " + profile.toString());
-        S3ObjectInputStream s3is = fetch(url, profile);
-        File mkdir = new File(destinationPath);
-        if (!mkdir.exists() || !mkdir.isDirectory()) {
-            mkdir.mkdirs();
-        }
-        String destinationFileName = destinationPath + File.separator + toFileName;
-        FileOutputStream fos;
+        File destination = new File(destinationPath, toFileName);
         try {
-            fos = new FileOutputStream(new File(destinationFileName));
-            byte[] read_buf = new byte[1024];
-            int read_len = 0;
-            while ((read_len = s3is.read(read_buf)) > 0) {
-                fos.write(read_buf, 0, read_len);
-            }
-            s3is.close();
-            fos.close();
+            download(url, destination, profile);
         } catch (IOException ioe) {
-            _log.error("unable to write {} to {}", url, destinationFileName);
-            destinationFileName = null;
+            _log.error("unable to write {} to {}: {}", url, destination, ioe.toString());
+            return null;
+        }
+        return destination.getPath();
+    }
+
+    /**
+     * Download the object to the given file.  The content is written through a
+     * FileChannel to a temporary file next to the destination, which is renamed into
+     * place only once complete, so readers never see a partial file.  With parallel
+     * download enabled, parts are fetched concurrently and written at their offsets.
+     * With checksum verification enabled, the content is compared to the ETag when
+     * the ETag is an MD5 (i.e. neither a multipart upload nor KMS encrypted).
+     *
+     * @return the destination
+     */
+    public File download(String url, File destination, CredentialContainer profile) throws IOException {
+        return download(new AmazonS3URI(url), destination, profile);
+    }
+
+    private File download(AmazonS3URI uri, File destination, CredentialContainer profile) throws IOException {
+        if (profile == null) throw new IllegalStateException("profile cannot be null!");
+        _log.info("downloading {} to {} with profile {}", uri, destination, profile.getProfile());
+        Path target = destination.getAbsoluteFile().toPath();
+        Files.createDirectories(target.getParent());
+        Path temp = newPartFile(target);
+        boolean complete = false;
+        try {
+            transfer(profile, uri, temp, null);
+            keepPermissions(target, temp);
+            moveIntoPlace(temp, target);
+            complete = true;
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * Write the object to the file, unless the object's ETag is still unlessETag.
+     * @return the object's metadata, or null if it has not changed
+     */
+    private ObjectMetadata transfer(CredentialContainer profile, AmazonS3URI uri, Path file,
+                                    String unlessETag) throws IOException {
+        AmazonS3 s3 = getS3Provider(profile);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MessageDigest digest = _verifyChecksum ? newMd5() : null;
+            ObjectMetadata metadata = _parallelDownload
+                    ? downloadParts(s3, uri, channel, unlessETag)
+                    : downloadSequentially(s3, uri, channel, digest, unlessETag);
+            if (metadata == null) {
+                return null;
+            }
+            if (digest != null && isMd5ETag(metadata)) {
+                if (_parallelDownload) {
+                    // parts arrived out of order, digest the finished file
+                    digestFile(channel, digest);
+                }
+                String actual = toHex(digest.digest());
+                if (!actual.equalsIgnoreCase(metadata.getETag())) {
+                    throw new IOException("checksum mismatch for " + uri + ": expected "
+                            + metadata.getETag() + " but was " + actual);
+                }
+            }
+            channel.force(true);
+            return metadata;
+        }
+    }
+
+    // a unique file beside the target, created with the umask's permissions as FileOutputStream
+    // always has; Files.createTempFile would make it readable by the owner only
+    private static Path newPartFile(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling("." + target.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".part");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException taken) {
+                // try another name
+            }
+        }
+    }
+
+    // a file replacing one that exists keeps that file's permissions
+    private static void keepPermissions(Path target, Path temp) throws IOException {
+        if (Files.exists(target) && Files.getFileAttributeView(target, PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        }
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private ObjectMetadata downloadSequentially(AmazonS3 s3, AmazonS3URI uri, FileChannel channel,
+                                                MessageDigest digest, String unlessETag) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(uri.getBucket(), uri.getKey());
+        if (unlessETag != null) {
+            request.withNonmatchingETagConstraint(unlessETag);
+        }
+        S3Object o = s3.getObject(request);
+        if (o == null) {
+            // not modified
+            return null;
+        }
+        try (InputStream in = o.getObjectContent()) {
+            copy(in, channel, 0, ByteBuffer.allocateDirect(_downloadBufferSize), digest);
+        }
+        return o.getObjectMetadata();
+    }
+
+    // concurrent range GETs, each written at its own offset; at most downloadParallelism in flight
+    private ObjectMetadata downloadParts(AmazonS3 s3, AmazonS3URI uri, FileChannel channel,
+                                         String unlessETag) throws IOException {
+        String bucket = uri.getBucket();
+        String key = uri.getKey();
+        GetObjectRequest firstRequest = new GetObjectRequest(bucket, key).withRange(0, _downloadPartSize - 1);
+        if (unlessETag != null) {
+            firstRequest.withNonmatchingETagConstraint(unlessETag);
+        }
+        S3Object first;
+        try {
+            first = s3.getObject(firstRequest);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                // empty objects have no byte range to ask for
+                return downloadSequentially(s3, uri, channel, null, unlessETag);
+            }
+            throw e;
+        }
+        if (first == null) {
+            // not modified
+            return null;
+        }
+        ObjectMetadata metadata = first.getObjectMetadata();
+        long length = metadata.getInstanceLength();
+        String etag = metadata.getETag();
+        ExecutorService executor = getDownloadExecutor();
+        Semaphore permits = new Semaphore(_downloadParallelism);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            permits.acquire();
+            futures.add(executor.submit(() -> writePart(s3, null, first, channel, 0, permits, failed)));
+            for (long start = _downloadPartSize; start < length && !failed.get(); start += _downloadPartSize) {
+                GetObjectRequest request = new GetObjectRequest(bucket, key)
+                        .withRange(start, Math.min(length, start + _downloadPartSize) - 1)
+                        .withMatchingETagConstraint(etag);
+                long position = start;
+                permits.acquire();
+                futures.add(executor.submit(() -> writePart(s3, request, null, channel, position, permits, failed)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted downloading " + uri);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("unable to download " + uri, cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return metadata;
+    }
+
+    // fetch the part unless it was already fetched, and write it at position
+    private Void writePart(AmazonS3 s3, GetObjectRequest request, S3Object part, FileChannel channel,
+                           long position, Semaphore permits, AtomicBoolean failed) throws IOException {
+        try {
+            if (part == null) {
+                part = s3.getObject(request);
+                if (part == null) {
+                    throw new IOException("s3://" + request.getBucketName() + "/" + request.getKey()
+                            + " changed during download");
+                }
+            }
+            try (InputStream in = part.getObjectContent()) {
+                copy(in, channel, position, ByteBuffer.allocateDirect(_downloadBufferSize), null);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.set(true);
+            throw e;
+        } finally {
+            permits.release();
+        }
+        return null;
+    }
+
+    // fill the buffer completely before each write so large objects cost few write calls
+    private static void copy(InputStream in, FileChannel out, long position, ByteBuffer buffer,
+                             MessageDigest digest) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        boolean eof = false;
+        while (!eof) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+
+    private void digestFile(FileChannel channel, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(_downloadBufferSize);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Download every object under the url's prefix into the directory, keeping the
+     * key's path below the prefix.  Pages of the listing are consumed as they arrive
+     * and their objects downloaded concurrently, at most syncConcurrency at a time.
+     * Local files whose size and ETag already match the object are skipped: the ETag
+     * is compared to the file's MD5 when it is one, and otherwise to the ETag recorded
+     * when the file was last synced.
+     */
+    public SyncSummary syncPrefix(String url, File directory, CredentialContainer profile) throws IOException {
+        if (profile == null) throw new IllegalStateException("profile cannot be null!");
+        AmazonS3URI uri = new AmazonS3URI(url);
+        String bucket = uri.getBucket();
+        String prefix = uri.getKey() == null ? "" : uri.getKey();
+        if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+            prefix += "/";
         }
-        return destinationFileName;
+        Path root = directory.getAbsoluteFile().toPath().normalize();
+        Files.createDirectories(root);
+        _log.info("syncing {} to {} with profile {}", url, root, profile.getProfile());
+
+        AmazonS3 s3 = getS3Provider(profile);
+        SyncManifest manifest = new SyncManifest(root);
+        ExecutorService executor = getSyncExecutor();
+        List<Future<?>> downloads = new ArrayList<>();
+        SyncSummary summary = new SyncSummary();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        ListObjectsV2Result page;
+        do {
+            page = s3.listObjectsV2(request);
+            for (S3ObjectSummary object : page.getObjectSummaries()) {
+                String relative = object.getKey().substring(prefix.length());
+                if (relative.isEmpty() || relative.endsWith("/") || relative.equals(SyncManifest.FILE_NAME)) {
+                    // folder placeholders have no content
+                    continue;
+                }
+                Path target = root.resolve(relative).normalize();
+                if (!target.startsWith(root)) {
+                    _log.warn("skipping {}, it would be written outside {}", object.getKey(), root);
+                    continue;
+                }
+                if (isCurrent(object, relative, target, manifest)) {
+                    summary._skipped++;
+                    continue;
+                }
+                downloads.add(executor.submit(() -> {
+                    download(objectUri(bucket, object.getKey()), target.toFile(), profile);
+                    manifest.record(relative, object.getETag(), target);
+                    return null;
+                }));
+            }
+            request.setContinuationToken(page.getNextContinuationToken());
+        } while (page.isTruncated());
+
+        for (Future<?> download : downloads) {
+            try {
+                download.get();
+                summary._downloaded++;
+            } catch (ExecutionException ee) {
+                summary._failed++;
+                _log.error("sync of {} failed: {}", url, ee.getCause().toString());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : downloads) f.cancel(true);
+                throw new InterruptedIOException("sync of " + url + " interrupted");
+            }
+        }
+        manifest.store();
+        _log.info("sync of {} to {} complete: {}", url, root, summary);
+        return summary;
+    }
+
+    private boolean isCurrent(S3ObjectSummary object, String relative, Path file, SyncManifest manifest)
+            throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) != object.getSize()) {
+            return false;
+        }
+        if (manifest.isCurrent(relative, object.getETag(), file)) {
+            return true;
+        }
+        String eTag = object.getETag();
+        if (eTag == null || eTag.contains("-")) {
+            // a multipart ETag is not the MD5 of the content
+            return false;
+        }
+        MessageDigest digest = newMd5();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digestFile(channel, digest);
+        }
+        if (!toHex(digest.digest()).equalsIgnoreCase(eTag)) {
+            return false;
+        }
+        manifest.record(relative, eTag, file);
+        return true;
+    }
+
+    // the URI constructor quotes characters in the key that a plain string concatenation would not
+    private static AmazonS3URI objectUri(String bucket, String key) {
+        try {
+            return new AmazonS3URI(new URI("s3", bucket, "/" + key, null));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("invalid key " + key, e);
+        }
+    }
+
+    private ExecutorService getSyncExecutor() {
+        if (_syncExecutor == null) {
+            synchronized (this) {
+                if (_syncExecutor == null) {
+                    // when every worker is busy the listing thread downloads too, which
+                    // keeps a huge prefix from queueing without bound
+                    _syncExecutor = CloudExecutors.newExecutor("s3-sync", _syncConcurrency,
+                            _syncConcurrency, true);
+                }
+            }
+        }
+        return _syncExecutor;
+    }
+
+    private static boolean isMd5ETag(ObjectMetadata metadata) {
+        String etag = metadata.getETag();
+        return etag != null && !etag.contains("-")
+                && !"aws:kms".equals(metadata.getSSEAlgorithm())
+                && metadata.getSSECustomerAlgorithm() == null;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
     }
 
     public boolean put(String url, String fileName) {
         return put(url, fileName, null);
     }
 
+    /**
+     * Upload the file.  Files at or above the multipart threshold are uploaded as
+     * concurrent parts; a failed multipart upload is aborted, so S3 does not keep
+     * its parts, and retried up to the configured number of attempts.
+     */
     public boolean put(String url, String fileName, CredentialContainer cc) {
         _log.info("uploading {} to {}", fileName, url);
         AmazonS3URI uri = new AmazonS3URI(url);
-        getS3Provider(cc).putObject(uri.getBucket(), uri.getKey(), new File(fileName));
-        return true;
+        File file = new File(fileName);
+        if (file.length() < _multipartThreshold) {
+            getS3Provider(cc).putObject(uri.getBucket(), uri.getKey(), file);
+            return true;
+        }
+        return putMultipart(uri, file, cc, () -> new LoggingProgressListener(url, file.length()));
+    }
+
+    /**
+     * Upload the file as concurrent parts, reporting progress to a listener.
+     * @param listeners supplies a fresh listener for each attempt, so a retry's
+     *                  progress starts from zero; may be null
+     * @return false if every attempt failed
+     */
+    public boolean putMultipart(AmazonS3URI uri, File file, CredentialContainer cc,
+                                Supplier<? extends ProgressListener> listeners) {
+        TransferManager tm = getTransferManager(cc);
+        for (int attempt = 1; attempt <= _uploadAttempts; attempt++) {
+            Upload upload = tm.upload(uri.getBucket(), uri.getKey(), file);
+            if (listeners != null) {
+                upload.addProgressListener(listeners.get());
+            }
+            try {
+                upload.waitForCompletion();
+                _log.info("upload of {} to {} complete", file, uri);
+                return true;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                upload.abort();
+                _log.error("upload of {} to {} interrupted", file, uri);
+                return false;
+            } catch (Exception any) {
+                upload.abort();
+                _log.error("upload of " + file + " to " + uri + " failed (attempt " + attempt
+                        + " of " + _uploadAttempts + "): " + any);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Abort multipart uploads to the url's bucket started before the given date,
+     * e.g. ones orphaned by a process that died mid upload.
+     */
+    public void abortIncompleteUploads(String url, CredentialContainer cc, Date startedBefore) {
+        AmazonS3URI uri = new AmazonS3URI(url);
+        _log.info("aborting multipart uploads to {} started before {}", uri.getBucket(), startedBefore);
+        getTransferManager(cc).abortMultipartUploads(uri.getBucket(), startedBefore);
     }
 
     public boolean putRecursively(String url, String directoryName) {
+        return putRecursively(url, directoryName, getDefaultChainTransferManager());
+    }
+
+    public boolean putRecursively(String url, String directoryName, CredentialContainer cc) {
+        return putRecursively(url, directoryName, getTransferManager(cc));
+    }
+
+    private boolean putRecursively(String url, String directoryName, TransferManager tm) {
         _log.info("uploading (recursively) {} to {}", directoryName, url);
         try {
             AmazonS3URI uri = new AmazonS3URI(url);
-            MultipleFileUpload upload = getTransferManager().uploadDirectory(uri.getBucket(), uri.getKey(), new File(directoryName), true);
+            MultipleFileUpload upload = tm.uploadDirectory(uri.getBucket(), uri.getKey(), new File(directoryName), true);
             upload.waitForCompletion();
             _log.info("upload complete!");
         } catch (Exception any) {
@@ -131,4 +883,49 @@ public class S3Services {
         }
         return true;
     }
+
+    /**
+     * Counts of what a syncPrefix did.
+     */
+    public static class SyncSummary {
+        private int _downloaded = 0;
+        private int _skipped = 0;
+        private int _failed = 0;
+
+        /** objects written to disk */
+        public int getDownloaded() { return _downloaded; }
+        /** objects already present locally */
+        public int getSkipped() { return _skipped; }
+        /** objects that could not be downloaded */
+        public int getFailed() { return _failed; }
+
+        @Override
+        public String toString() {
+            return _downloaded + " downloaded, " + _skipped + " unchanged, " + _failed + " failed";
+        }
+    }
+
+    // logs every PROGRESS_LOG_PERCENT of a transfer
+    private class LoggingProgressListener implements ProgressListener {
+        private final String _url;
+        private final long _total;
+        private final AtomicLong _transferred = new AtomicLong();
+        private volatile int _lastLoggedPercent = 0;
+
+        LoggingProgressListener(String url, long total) {
+            _url = url;
+            _total = Math.max(1, total);
+        }
+
+        @Override
+        public void progressChanged(ProgressEvent progressEvent) {
+            long bytes = progressEvent.getBytesTransferred();
+            if (bytes <= 0) return;
+            int percent = (int) (_transferred.addAndGet(bytes) * 100 / _total);
+            if (percent >= _lastLoggedPercent + PROGRESS_LOG_PERCENT) {
+                _lastLoggedPercent = percent;
+                _log.info("uploading {}: {}%", _url, Math.min(percent, 100));
+            }
+        }
+    }
 }
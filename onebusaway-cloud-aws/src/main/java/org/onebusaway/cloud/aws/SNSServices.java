@@ -15,36 +15,486 @@
  */
 package org.onebusaway.cloud.aws;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.Topic;
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.ExternalResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Encapsulate and cache references to AWS SNS sdk.
+ * Encapsulate and cache references to AWS SNS sdk.  Each publish uses a client in
+ * the region of the topic's ARN, so publishing to another region's topic does not
+ * cross regions.  Topics may also be named; names are resolved to ARNs once and cached.
  */
 public class SNSServices {
-    private AmazonSNS _sns;
-    private Boolean _initialized = null;
+    public static final String BATCH_ATTEMPTS_KEY = "oba.cloud.aws.sns.batchAttempts";
+    // PublishBatch accepts up to 10 entries per request
+    static final int MAX_BATCH_ENTRIES = 10;
+    // and up to 256 KB of message bodies, counted in UTF-8
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final int DEFAULT_BATCH_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    // stands for the default client in _unavailable, the registry keys it by null
+    private static final CredentialContainer DEFAULT_CLIENT = new CredentialContainer(null, null);
+
+    private final Logger _log = LoggerFactory.getLogger(SNSServices.class);
+    private final AwsClientRegistry _clients = AwsClientRegistry.getInstance();
+    private final int _batchAttempts = Integer.getInteger(BATCH_ATTEMPTS_KEY, DEFAULT_BATCH_ATTEMPTS);
+    // clients whose creation has failed, so we don't retry on every publish
+    private final Set<CredentialContainer> _unavailable = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Destination, String> _topicArns = new ConcurrentHashMap<>();
+    // null unless asynchronous publishing is enabled
+    private AsyncMessagePublisher _asyncPublisher;
+    // null unless spooling is enabled
+    private final DiskSpool _spool = DiskSpool.fromSystemProperties("sns", this);
+    private final SpoolReplayer _replayer;
+    private Thread _shutdownHook;
+
+    public SNSServices() {
+        if (_spool != null) {
+            // the spool's replayer, shared with any other instance spooling to the same directory
+            _replayer = _spool.replayer(this::replay);
+        } else {
+            _replayer = null;
+        }
+        if (Boolean.getBoolean(AsyncMessagePublisher.ASYNC_KEY)) {
+            _asyncPublisher = new AsyncMessagePublisher(this);
+            _asyncPublisher.start();
+        }
+        if (_asyncPublisher != null || _spool != null) {
+            _shutdownHook = new Thread(this::shutdown, "sns-message-drain");
+            // the drain publishes through the clients, so they must outlive it
+            _clients.retain(this);
+            Runtime.getRuntime().addShutdownHook(_shutdownHook);
+        }
+    }
+
+    // so an instance shut down by its owner does not stay reachable from the JVM
+    private synchronized void removeShutdownHook() {
+        if (_shutdownHook != null && Thread.currentThread() != _shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(_shutdownHook);
+            } catch (IllegalStateException shuttingDown) {
+                // the hook is already running or about to
+            }
+            _shutdownHook = null;
+        }
+    }
+
+    public AsyncMessagePublisher getAsyncPublisher() {
+        return _asyncPublisher;
+    }
 
     public boolean publish(String topic, String message) {
-        AmazonSNS sns = getSns();
+        return publish(null, topic, message);
+    }
+
+    /**
+     * @param credential profile to publish with, or null for the default provider chain
+     * @param topic topic ARN, or a topic name in the credential's region
+     * @return true if the message was published, queued or spooled
+     */
+    public boolean publish(Credential credential, String topic, String message) {
+        if (_asyncPublisher != null) {
+            return _asyncPublisher.publish(credential, topic, Collections.singletonList(message));
+        }
+        if (isSpooling()) {
+            return spool(credential, topic, message);
+        }
+        AmazonSNS sns = getSns(credential, topic);
         if (sns == null) return false;
-        PublishRequest pr = new PublishRequest(topic, message);
-        PublishResult result = _sns.publish(pr);
-        return result.getMessageId() != null;
+        try {
+            String arn = getTopicArn(sns, credential, topic);
+            if (arn == null) return false;
+            PublishResult result = sns.publish(new PublishRequest(arn, message));
+            return result.getMessageId() != null;
+        } catch (NotFoundException nfe) {
+            // the topic was deleted, resolve the name again next time
+            _topicArns.remove(new Destination(credential, topic));
+            throw nfe;
+        } catch (AmazonClientException ace) {
+            if (shouldSpool(ace) && spool(credential, topic, message)) {
+                _log.warn("spooled a message to " + topic + ": " + ace);
+                return true;
+            }
+            throw ace;
+        }
     }
 
-    public AmazonSNS getSns() {
-        if (_initialized == null) {
+    public ExternalResult publishMessages(String topic, List<String> messages) {
+        return publishMessages(null, topic, messages);
+    }
+
+    /**
+     * Publish several messages to the topic, queued for the background sender if
+     * asynchronous publishing is enabled and as PublishBatch requests otherwise.
+     */
+    public ExternalResult publishMessages(Credential credential, String topic, List<String> messages) {
+        if (_asyncPublisher != null) {
+            boolean accepted = _asyncPublisher.publish(credential, topic, messages);
+            return new AwsExternalResult(accepted, accepted ? null : "message buffer full", null);
+        }
+        return publishBatch(credential, topic, messages);
+    }
+
+    /**
+     * Publish the messages in PublishBatch requests of up to ten entries and 256 KB.
+     * A message over 256 KB on its own fails without being sent.  Entries
+     * that fail through no fault of the sender are sent again, without the entries
+     * that succeeded, up to the configured number of attempts.  If spooling is
+     * enabled, messages that still fail for a reason that may pass are spooled.
+     * @return one result per message, in order, holding its message id or error
+     */
+    public AggregateExternalResult publishBatch(Credential credential, String topic, List<String> messages) {
+        ExternalResult[] results = new ExternalResult[messages.size()];
+        for (int i = 0; i < results.length; i++) {
+            int bytes = utf8Length(messages.get(i));
+            if (bytes > MAX_BATCH_BYTES) {
+                results[i] = new AwsExternalResult(false, "message of " + bytes + " bytes is over the "
+                        + MAX_BATCH_BYTES + " byte limit", null);
+            }
+        }
+        if (isSpooling()) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) continue;
+                results[i] = spool(credential, topic, messages.get(i))
+                        ? new AwsExternalResult(true, null, "spooled")
+                        : new AwsExternalResult(false, "message spool unavailable", null);
+            }
+            return new AggregateExternalResult(Arrays.asList(results));
+        }
+        List<Integer> undelivered = send(credential, topic, messages, results);
+        if (!undelivered.isEmpty() && _spool != null) {
+            int spooled = 0;
+            for (int i : undelivered) {
+                if (spool(credential, topic, messages.get(i))) {
+                    results[i] = new AwsExternalResult(true, null, "spooled");
+                    spooled++;
+                }
+            }
+            _log.warn("spooled {} messages to {}", spooled, topic);
+        }
+        return new AggregateExternalResult(Arrays.asList(results));
+    }
+
+    /**
+     * Publish the messages, filling in results.
+     * @return the indexes of messages that failed for a reason that may pass
+     */
+    private List<Integer> send(Credential credential, String topic, List<String> messages, ExternalResult[] results) {
+        List<Integer> undelivered = new ArrayList<>(0);
+        AmazonSNS sns = getSns(credential, topic);
+        String arn = null;
+        if (sns != null) {
+            try {
+                arn = getTopicArn(sns, credential, topic);
+            } catch (AmazonClientException ace) {
+                _log.warn("unable to look up SNS topic " + topic + ": " + ace);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != null) continue;
+                    results[i] = new AwsExternalResult(false, ace.toString(), null);
+                    if (SpoolReplayer.isTransient(ace)) {
+                        undelivered.add(i);
+                    }
+                }
+                return undelivered;
+            }
+        }
+        for (List<Integer> batch : batches(messages, results)) {
+            if (sns == null) {
+                fill(results, batch, new AwsExternalResult(false, "SNS client unavailable", null));
+            } else if (arn == null) {
+                fill(results, batch, new AwsExternalResult(false, "topic " + topic + " not found", null));
+            } else {
+                publishBatch(sns, arn, messages, batch, results, undelivered);
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new AwsExternalResult(false, "no result returned for message " + i, null);
+            }
+        }
+        return undelivered;
+    }
+
+    // the indexes of messages without a result yet, grouped into requests within both PublishBatch limits
+    private static List<List<Integer>> batches(List<String> messages, ExternalResult[] results) {
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> batch = new ArrayList<>(MAX_BATCH_ENTRIES);
+        int batchBytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (results[i] != null) continue;
+            int bytes = utf8Length(messages.get(i));
+            if (batch.size() == MAX_BATCH_ENTRIES || batchBytes + bytes > MAX_BATCH_BYTES) {
+                batches.add(batch);
+                batch = new ArrayList<>(MAX_BATCH_ENTRIES);
+                batchBytes = 0;
+            }
+            batch.add(i);
+            batchBytes += bytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static void fill(ExternalResult[] results, List<Integer> indexes, ExternalResult result) {
+        for (int i : indexes) {
+            results[i] = result;
+        }
+    }
+
+    // the encoded size of the string, without encoding it
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void publishBatch(AmazonSNS sns, String topic, List<String> messages, List<Integer> batch,
+                              ExternalResult[] results, List<Integer> undelivered) {
+        List<Integer> pending = batch;
+        for (int attempt = 1; ; attempt++) {
+            List<PublishBatchRequestEntry> entries = new ArrayList<>(pending.size());
+            for (int i : pending) {
+                // ids only need to be unique within the request
+                entries.add(new PublishBatchRequestEntry().withId(Integer.toString(i)).withMessage(messages.get(i)));
+            }
+            List<Integer> retry = new ArrayList<>();
+            try {
+                PublishBatchResult result = sns.publishBatch(new PublishBatchRequest()
+                        .withTopicArn(topic)
+                        .withPublishBatchRequestEntries(entries));
+                for (PublishBatchResultEntry sent : result.getSuccessful()) {
+                    results[Integer.parseInt(sent.getId())] = new AwsExternalResult(true, null, sent.getMessageId());
+                }
+                for (BatchResultErrorEntry failed : result.getFailed()) {
+                    int i = Integer.parseInt(failed.getId());
+                    results[i] = new AwsExternalResult(false, failed.getCode() + ": " + failed.getMessage(), null);
+                    if (!Boolean.TRUE.equals(failed.getSenderFault())) {
+                        retry.add(i);
+                    }
+                }
+            } catch (AmazonClientException ace) {
+                // the client has already retried the request itself
+                _log.warn("unable to publish " + pending.size() + " messages to " + topic + ": " + ace);
+                for (int i : pending) {
+                    results[i] = new AwsExternalResult(false, ace.toString(), null);
+                }
+                if (SpoolReplayer.isTransient(ace)) {
+                    undelivered.addAll(pending);
+                }
+                return;
+            }
+            if (retry.isEmpty() || attempt >= _batchAttempts) {
+                if (!retry.isEmpty()) {
+                    _log.warn("{} messages to {} failed after {} attempts", retry.size(), topic, attempt);
+                    undelivered.addAll(retry);
+                }
+                return;
+            }
+            pending = retry;
             try {
-                _sns = AmazonSNSClientBuilder.defaultClient();
-                _initialized = true;
-            } catch (Exception any) {
-                _initialized = false;
+                Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                undelivered.addAll(retry);
+                return;
             }
         }
-        if (!_initialized) return null;
-        return _sns;
+    }
+
+    // true while SNS is down and messages go straight to the spool
+    private boolean isSpooling() {
+        return _replayer != null && _replayer.isOutage();
+    }
+
+    private boolean shouldSpool(AmazonClientException failure) {
+        return _spool != null && SpoolReplayer.isTransient(failure);
+    }
+
+    private boolean spool(Credential credential, String topic, String message) {
+        if (_spool == null) return false;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            DiskSpool.writeCredential(out, credential);
+            DiskSpool.writeString(out, topic);
+            DiskSpool.writeString(out, message);
+            out.flush();
+            if (!_spool.append(bytes.toByteArray())) {
+                return false;
+            }
+        } catch (IOException ioe) {
+            _log.warn("unable to spool a message to " + topic + ": " + ioe);
+            return false;
+        }
+        _replayer.reportOutage();
+        return true;
+    }
+
+    // each spooled record is one message, replayed in PublishBatch requests per topic
+    private void replay(List<byte[]> records) throws IOException {
+        Map<Destination, List<String>> byTopic = new LinkedHashMap<>();
+        for (byte[] record : records) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            Credential credential = DiskSpool.readCredential(in);
+            String topic = DiskSpool.readString(in);
+            byTopic.computeIfAbsent(new Destination(credential, topic), k -> new ArrayList<>())
+                    .add(DiskSpool.readString(in));
+        }
+        for (Map.Entry<Destination, List<String>> entry : byTopic.entrySet()) {
+            String topic = entry.getKey().getName();
+            ExternalResult[] results = new ExternalResult[entry.getValue().size()];
+            List<Integer> undelivered = send(entry.getKey().getCredential(), topic, entry.getValue(), results);
+            if (!undelivered.isEmpty()) {
+                throw new IOException(undelivered.size() + " spooled messages to " + topic + " undelivered: "
+                        + results[undelivered.get(0)].getErrorMessage());
+            }
+            for (ExternalResult result : results) {
+                if (!result.getSuccess()) {
+                    _log.warn("dropping a spooled message to {}: {}", topic, result.getErrorMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish anything still buffered and stop the background threads, if any.
+     * Spooled messages not yet replayed stay on disk for the next start.
+     */
+    public void shutdown() {
+        removeShutdownHook();
+        if (_asyncPublisher != null) {
+            _asyncPublisher.shutdown();
+        }
+        if (_spool != null) {
+            // the last instance using the spool stops its replayer and closes it
+            _spool.release(this);
+        }
+        _clients.release(this);
+    }
+
+    public AmazonSNS getSns() {
+        if (_unavailable.contains(DEFAULT_CLIENT)) return null;
+        try {
+            // default provider chain, shared with any other user of the default client
+            return _clients.getClient(AmazonSNS.class, null, cc -> AmazonSNSClientBuilder.defaultClient());
+        } catch (Exception any) {
+            _log.warn("unable to create SNS client: " + any);
+            _unavailable.add(DEFAULT_CLIENT);
+            return null;
+        }
+    }
+
+    /**
+     * The client for publishing to the topic: in the region named by the topic's ARN,
+     * or else the credential's region, using the credential's profile if there is one.
+     */
+    public AmazonSNS getSns(Credential credential, String topic) {
+        String region = regionOf(topic);
+        CredentialContainer cc;
+        if (credential == null) {
+            if (region == null) return getSns();
+            // a null profile builds with the default provider chain
+            cc = new CredentialContainer(null, region);
+        } else {
+            CredentialContainer configured = CredentialContainer.fromCredential(credential);
+            cc = new CredentialContainer(configured.getProfile(), region != null ? region : configured.getRegion());
+        }
+        if (_unavailable.contains(cc)) return null;
+        try {
+            return _clients.getClient(AmazonSNS.class, cc, c -> {
+                AmazonSNSClientBuilder builder = AmazonSNSClientBuilder.standard().withRegion(c.getRegion());
+                if (c.getProfile() != null) {
+                    builder.withCredentials(new ProfileCredentialsProvider(c.getProfile()));
+                }
+                return builder.build();
+            });
+        } catch (Exception any) {
+            _log.warn("unable to create SNS client for " + cc + ": " + any);
+            _unavailable.add(cc);
+            return null;
+        }
+    }
+
+    // arn:partition:sns:region:account:name
+    static String regionOf(String topic) {
+        if (topic == null || !topic.startsWith("arn:")) return null;
+        String[] parts = topic.split(":", 6);
+        return parts.length == 6 && !parts[3].isEmpty() ? parts[3] : null;
+    }
+
+    /**
+     * @return the topic if it is already an ARN, otherwise the ARN of the topic with that name, or null
+     */
+    private String getTopicArn(AmazonSNS sns, Credential credential, String topic) {
+        if (topic.startsWith("arn:")) return topic;
+        Destination key = new Destination(credential, topic);
+        String arn = _topicArns.get(key);
+        if (arn == null) {
+            arn = findTopicArn(sns, topic);
+            if (arn == null) {
+                _log.warn("no SNS topic named {} for {}", topic, credential);
+                return null;
+            }
+            _topicArns.put(key, arn);
+        }
+        return arn;
+    }
+
+    private String findTopicArn(AmazonSNS sns, String name) {
+        String suffix = ":" + name;
+        String nextToken = null;
+        do {
+            ListTopicsResult page = sns.listTopics(nextToken);
+            for (Topic topic : page.getTopics()) {
+                if (topic.getTopicArn().endsWith(suffix)) {
+                    return topic.getTopicArn();
+                }
+            }
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return null;
     }
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a DiskSpool from a background thread: records are read in batches and
+ * handed to the sender, no faster than the configured rate so that a recovering
+ * service is not flooded.  A batch is committed once sent; if sending fails the
+ * same batch is tried again after an exponential backoff.  Delivery is at least
+ * once: a batch that partly succeeded before failing is sent again in full.
+ *
+ * The replayer also tracks whether the service is down.  Publishers report an
+ * outage when they spool, and while it lasts they spool straight away rather
+ * than wait on requests bound to fail; the first batch replayed ends it.
+ */
+class SpoolReplayer {
+
+    public static final String BATCH_SIZE_KEY = "oba.cloud.aws.spool.replayBatchSize";
+    public static final String RATE_KEY = "oba.cloud.aws.spool.replayPerSecond";
+    private static final int DEFAULT_BATCH_SIZE = 10;
+    private static final int DEFAULT_RATE = 50;
+    private static final long IDLE_MILLIS = 200;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    interface Sender {
+        /**
+         * Deliver the records.  Records the service rejects outright should be
+         * logged and skipped, they would only be rejected again.
+         * @throws Exception to have the batch sent again later
+         */
+        void send(List<byte[]> records) throws Exception;
+    }
+
+    private static final Logger _log = LoggerFactory.getLogger(SpoolReplayer.class);
+
+    private final String _name;
+    private final DiskSpool _spool;
+    private final Sender _sender;
+    private final int _batchSize;
+    private final long _nanosPerRecord;
+    private volatile boolean _running = false;
+    private volatile boolean _outage = false;
+    private Thread _replayer;
+
+    SpoolReplayer(String name, DiskSpool spool, Sender sender) {
+        this(name, spool, sender, Integer.getInteger(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE),
+                Integer.getInteger(RATE_KEY, DEFAULT_RATE));
+    }
+
+    SpoolReplayer(String name, DiskSpool spool, Sender sender, int batchSize, int recordsPerSecond) {
+        if (batchSize < 1 || recordsPerSecond < 1) {
+            throw new IllegalArgumentException("batchSize=" + batchSize + " and recordsPerSecond="
+                    + recordsPerSecond + " must be positive");
+        }
+        _name = name;
+        _spool = spool;
+        _sender = sender;
+        _batchSize = batchSize;
+        _nanosPerRecord = TimeUnit.SECONDS.toNanos(1) / recordsPerSecond;
+    }
+
+    synchronized void start() {
+        if (_running) return;
+        _running = true;
+        _replayer = new Thread(this::runReplayer, _name + "-spool-replay");
+        _replayer.setDaemon(true);
+        _replayer.start();
+    }
+
+    private void runReplayer() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        long nextSend = System.nanoTime();
+        try {
+            while (_running) {
+                if (_spool.isEmpty()) {
+                    // anything spooled has been replayed, expired or discarded
+                    _outage = false;
+                    Thread.sleep(IDLE_MILLIS);
+                    continue;
+                }
+                List<byte[]> batch = _spool.read(_batchSize);
+                if (batch.isEmpty()) {
+                    // only expired records, or the rest of a segment that is still being written
+                    _spool.commit();
+                    Thread.sleep(IDLE_MILLIS);
+                    continue;
+                }
+                long wait = nextSend - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                nextSend = Math.max(nextSend, System.nanoTime()) + batch.size() * _nanosPerRecord;
+                try {
+                    _sender.send(batch);
+                    _spool.commit();
+                    if (_outage) {
+                        _log.info("{} is reachable again, replaying its spool", _name);
+                        _outage = false;
+                    }
+                    backoff = MIN_BACKOFF_MILLIS;
+                } catch (InterruptedException ie) {
+                    throw ie;
+                } catch (Exception any) {
+                    _log.warn("unable to replay {} spooled {} records, retrying in {} ms: {}", batch.size(), _name,
+                            backoff, any.toString());
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // shutting down, what is left is replayed after a restart
+        }
+    }
+
+    /**
+     * The service is failing, spool rather than publish until a replay succeeds.
+     */
+    void reportOutage() {
+        _outage = true;
+    }
+
+    boolean isOutage() {
+        return _outage;
+    }
+
+    void shutdown() {
+        Thread replayer;
+        synchronized (this) {
+            if (!_running) return;
+            _running = false;
+            replayer = _replayer;
+        }
+        replayer.interrupt();
+        try {
+            replayer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the failure is likely to pass, e.g. throttling, a 5xx or no
+     * connection, so the data is worth spooling rather than dropping
+     */
+    static boolean isTransient(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return ase.getStatusCode() >= 500 || RetryUtils.isThrottlingException(ase)
+                    || RetryUtils.isRetryableServiceException(ase);
+        }
+        return e.isRetryable();
+    }
+}
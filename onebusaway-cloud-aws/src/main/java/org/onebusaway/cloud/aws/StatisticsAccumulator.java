@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-period count/sum/min/max.  Recording is lock-free: count and sum go to
+ * striped adders and min/max are maintained by CAS.  A sample racing with a
+ * snapshot may have its count and sum land in adjacent periods, but it is never lost.
+ */
+class StatisticsAccumulator {
+    private static final long EMPTY_MIN = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+    private static final long EMPTY_MAX = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+    private static final int RETIRED = -1;
+
+    private final LongAdder _count = new LongAdder();
+    private final DoubleAdder _sum = new DoubleAdder();
+    private final AtomicLong _min = new AtomicLong(EMPTY_MIN);
+    private final AtomicLong _max = new AtomicLong(EMPTY_MAX);
+    private int _idlePeriods = 0;
+    // held by a MetricHandle
+    private volatile boolean _pinned = false;
+    // threads inside recordIfLive, or RETIRED once the aggregator has let go of it
+    private final AtomicInteger _recorders = new AtomicInteger();
+
+    void record(double value) {
+        _count.increment();
+        _sum.add(value);
+        long current;
+        while (value < Double.longBitsToDouble(current = _min.get())) {
+            if (_min.compareAndSet(current, Double.doubleToRawLongBits(value))) break;
+        }
+        while (value > Double.longBitsToDouble(current = _max.get())) {
+            if (_max.compareAndSet(current, Double.doubleToRawLongBits(value))) break;
+        }
+    }
+
+    /**
+     * Record unless the accumulator has been retired, for callers that look it up
+     * by key and can find a retired one.
+     * @return false if retired, the caller should look the accumulator up again
+     */
+    boolean recordIfLive(double value) {
+        int recorders;
+        do {
+            recorders = _recorders.get();
+            if (recorders == RETIRED) return false;
+        } while (!_recorders.compareAndSet(recorders, recorders + 1));
+        try {
+            record(value);
+        } finally {
+            _recorders.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Retire an idle accumulator so it can be dropped.  Fails if it is pinned, a
+     * sample is being recorded, or one arrived since the last snapshot, so no
+     * sample can land in an accumulator that is no longer flushed.
+     */
+    boolean retire() {
+        if (_pinned || !_recorders.compareAndSet(0, RETIRED)) {
+            return false;
+        }
+        if (_count.sum() != 0) {
+            _recorders.set(0);
+            return false;
+        }
+        return true;
+    }
+
+    // only called from the flushing thread
+    StatisticSet snapshotAndReset() {
+        long count = _count.sumThenReset();
+        if (count == 0) {
+            _idlePeriods++;
+            return null;
+        }
+        _idlePeriods = 0;
+        double sum = _sum.sumThenReset();
+        double min = Double.longBitsToDouble(_min.getAndSet(EMPTY_MIN));
+        double max = Double.longBitsToDouble(_max.getAndSet(EMPTY_MAX));
+        if (min > max) {
+            // min/max were reset by a racing snapshot, fall back to the mean
+            min = max = sum / count;
+        }
+        return new StatisticSet()
+                .withSampleCount((double) count)
+                .withSum(sum)
+                .withMinimum(min)
+                .withMaximum(max);
+    }
+
+    int idlePeriods() {
+        return _idlePeriods;
+    }
+
+    void pin() {
+        _pinned = true;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records the ETag each file of a synced directory was downloaded with, along with
+ * the file's size and modification time when written.  A file that still has that
+ * size and time is taken to be unchanged, which lets multipart and KMS encrypted
+ * objects, whose ETag is not an MD5 of the content, be skipped on the next sync.
+ */
+class SyncManifest {
+
+    static final String FILE_NAME = ".s3sync.properties";
+
+    private static final Logger _log = LoggerFactory.getLogger(SyncManifest.class);
+
+    private final Path _file;
+    private final Properties _entries = new Properties();
+
+    SyncManifest(Path directory) {
+        _file = directory.resolve(FILE_NAME);
+        if (Files.isRegularFile(_file)) {
+            try (Reader reader = Files.newBufferedReader(_file, StandardCharsets.UTF_8)) {
+                _entries.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                _log.warn("ignoring unreadable sync manifest {}: {}", _file, e.toString());
+                _entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if the file was written by a previous sync of an object with this ETag
+     * and has not been touched since
+     */
+    boolean isCurrent(String relativePath, String eTag, Path file) throws IOException {
+        String recorded = _entries.getProperty(relativePath);
+        if (recorded == null || eTag == null) {
+            return false;
+        }
+        return recorded.equals(describe(eTag, file));
+    }
+
+    // Properties is synchronized, so downloads may record concurrently
+    void record(String relativePath, String eTag, Path file) throws IOException {
+        if (eTag != null) {
+            _entries.setProperty(relativePath, describe(eTag, file));
+        }
+    }
+
+    void store() throws IOException {
+        Path temp = Files.createTempFile(_file.getParent(), FILE_NAME, ".part");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                _entries.store(writer, null);
+            }
+            try {
+                Files.move(temp, _file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String describe(String eTag, Path file) throws IOException {
+        return eTag + " " + Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis();
+    }
+}
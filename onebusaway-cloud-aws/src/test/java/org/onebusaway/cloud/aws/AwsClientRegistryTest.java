@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AwsClientRegistryTest {
+
+    private static final int THREADS = 32;
+
+    @Test
+    public void buildsOneClientPerKeyUnderContention() throws Exception {
+        AwsClientRegistry registry = new AwsClientRegistry(64);
+        CredentialContainer cc = new CredentialContainer("profile", "us-east-1");
+        AtomicInteger builds = new AtomicInteger();
+        Function<CredentialContainer, Object> builder = c -> {
+            builds.incrementAndGet();
+            // widen the window in which other threads find the key but no client yet
+            sleep(50);
+            return new Object();
+        };
+        Set<Object> seen = ConcurrentHashMap.newKeySet();
+        runConcurrently(() -> seen.add(registry.getClient(Object.class, cc, builder)));
+        assertEquals(1, builds.get());
+        assertEquals(1, seen.size());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void buildsEachKeyOnceUnderContention() throws Exception {
+        AwsClientRegistry registry = new AwsClientRegistry(64);
+        AtomicInteger builds = new AtomicInteger();
+        Function<CredentialContainer, Object> builder = c -> {
+            builds.incrementAndGet();
+            return new Object();
+        };
+        AtomicInteger next = new AtomicInteger();
+        runConcurrently(() -> {
+            // four threads per key
+            CredentialContainer cc = new CredentialContainer("profile" + next.getAndIncrement() % 8, "us-east-1");
+            registry.getClient(Object.class, cc, builder);
+        });
+        assertEquals(8, builds.get());
+        assertEquals(8, registry.size());
+    }
+
+    @Test
+    public void failedBuildIsRetried() {
+        AwsClientRegistry registry = new AwsClientRegistry(64);
+        CredentialContainer cc = new CredentialContainer("profile", "us-east-1");
+        try {
+            registry.getClient(Object.class, cc, c -> {
+                throw new IllegalStateException("no credentials");
+            });
+        } catch (IllegalStateException expected) {
+        }
+        Object client = new Object();
+        assertSame(client, registry.getClient(Object.class, cc, c -> client));
+    }
+
+    @Test
+    public void evictedClientIsRebuilt() {
+        AwsClientRegistry registry = new AwsClientRegistry(1);
+        CredentialContainer first = new CredentialContainer("first", "us-east-1");
+        CredentialContainer second = new CredentialContainer("second", "us-east-1");
+        Object a = registry.getClient(Object.class, first, c -> new Object());
+        registry.getClient(Object.class, second, c -> new Object());
+        assertEquals(1, registry.size());
+        assertNotSame(a, registry.getClient(Object.class, first, c -> new Object()));
+    }
+
+    @Test
+    public void evictedClientIsShutDownAfterGracePeriod() throws Exception {
+        AwsClientRegistry registry = new AwsClientRegistry(1, 200);
+        CountDownLatch shutdown = new CountDownLatch(1);
+        AmazonWebServiceClient evicted = new AmazonWebServiceClient(new ClientConfiguration()) {
+            @Override
+            public void shutdown() {
+                shutdown.countDown();
+                super.shutdown();
+            }
+        };
+        registry.getClient(Object.class, new CredentialContainer("first", "us-east-1"), c -> evicted);
+        registry.getClient(Object.class, new CredentialContainer("second", "us-east-1"), c -> new Object());
+        assertEquals(1, registry.evictedCount());
+        // still usable by calls already made on it
+        assertEquals(1, shutdown.getCount());
+        assertTrue("evicted client was not shut down", shutdown.await(10, TimeUnit.SECONDS));
+        assertEquals(0, registry.evictedCount());
+        registry.shutdown();
+    }
+
+    @Test
+    public void shutdownStopsEvictedClientsAtOnce() {
+        AwsClientRegistry registry = new AwsClientRegistry(1, TimeUnit.HOURS.toMillis(1));
+        AtomicInteger shutdowns = new AtomicInteger();
+        Function<CredentialContainer, Object> builder = c -> new AmazonWebServiceClient(new ClientConfiguration()) {
+            @Override
+            public void shutdown() {
+                shutdowns.incrementAndGet();
+                super.shutdown();
+            }
+        };
+        registry.getClient(Object.class, new CredentialContainer("first", "us-east-1"), builder);
+        registry.getClient(Object.class, new CredentialContainer("second", "us-east-1"), builder);
+        assertEquals(0, shutdowns.get());
+        registry.shutdown();
+        assertEquals(2, shutdowns.get());
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.evictedCount());
+    }
+
+    @Test
+    public void lastReleaseShutsClientsDown() {
+        AwsClientRegistry registry = new AwsClientRegistry(64);
+        AtomicInteger shutdowns = new AtomicInteger();
+        registry.getClient(Object.class, new CredentialContainer("profile", "us-east-1"),
+                c -> new AmazonWebServiceClient(new ClientConfiguration()) {
+                    @Override
+                    public void shutdown() {
+                        shutdowns.incrementAndGet();
+                        super.shutdown();
+                    }
+                });
+        Object cloudwatch = new Object();
+        Object sns = new Object();
+        registry.retain(cloudwatch);
+        registry.retain(sns);
+        registry.release(cloudwatch);
+        // released twice, or never retained, changes nothing
+        registry.release(cloudwatch);
+        registry.release(new Object());
+        assertEquals(0, shutdowns.get());
+        assertEquals(1, registry.size());
+        registry.release(sns);
+        assertEquals(1, shutdowns.get());
+        assertEquals(0, registry.size());
+    }
+
+    // run the task on every thread at once, released together by a latch
+    private static void runConcurrently(Runnable task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        AtomicInteger failures = new AtomicInteger();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                executor.execute(() -> {
+                    ready.countDown();
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable any) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            ready.await();
+            start.countDown();
+            assertTrue("threads did not finish", done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, failures.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
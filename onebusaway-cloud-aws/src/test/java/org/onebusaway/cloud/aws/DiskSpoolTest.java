@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskSpoolTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+    private static final int HEADER_BYTES = 16;
+    // four records of this size fill a segment, the fifth rolls to the next
+    private static final int LARGE_PAYLOAD = 1000;
+    private static final int SMALL_PAYLOAD = 100;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private Path _directory;
+    private final List<DiskSpool> _open = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (DiskSpool spool : _open) {
+            spool.close();
+        }
+        try (Stream<Path> files = Files.walk(_directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void readsRecordsInOrderUntilCommitted() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        assertTrue(spool.isEmpty());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spool.append(record(i, SMALL_PAYLOAD)));
+        }
+        assertFalse(spool.isEmpty());
+        assertEquals(Arrays.asList(0, 1), ids(spool.read(2)));
+        // not committed, so read again
+        assertEquals(Arrays.asList(0, 1, 2), ids(spool.read(10)));
+        spool.commit();
+        assertTrue(spool.isEmpty());
+        assertEquals(3, spool.getCommittedCount());
+        assertEquals(0, spool.read(10).size());
+    }
+
+    @Test
+    public void rollsToNewSegmentAndDeletesReadSegments() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(spool.append(record(i, LARGE_PAYLOAD)));
+        }
+        assertEquals(3, segmentFiles().size());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), ids(spool.read(100)));
+        spool.commit();
+        assertEquals(1, segmentFiles().size());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void refusesRecordLargerThanSegment() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        assertFalse(spool.append(new byte[SEGMENT_BYTES]));
+        assertEquals(1, spool.getDiscardedCount());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void discardsOldestSegmentAtMaxBytes() throws IOException {
+        DiskSpool spool = open(2 * SEGMENT_BYTES, DAY_MILLIS);
+        // records 0-3 fill the first segment, 4-7 the second and 8 starts a third
+        for (int i = 0; i < 9; i++) {
+            assertTrue(spool.append(record(i, LARGE_PAYLOAD)));
+        }
+        assertEquals(1, spool.getDiscardedCount());
+        assertEquals(2, segmentFiles().size());
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8), ids(spool.read(100)));
+    }
+
+    @Test
+    public void commitAfterReadSegmentIsDiscardedKeepsNewOldestSegment() throws IOException {
+        DiskSpool spool = open(2 * SEGMENT_BYTES, DAY_MILLIS);
+        for (int i = 0; i < 4; i++) {
+            spool.append(record(i, LARGE_PAYLOAD));
+        }
+        assertEquals(Arrays.asList(0, 1), ids(spool.read(2)));
+        // while those are being sent the first segment is discarded to make room
+        for (int i = 4; i < 9; i++) {
+            spool.append(record(i, LARGE_PAYLOAD));
+        }
+        spool.commit();
+        // the read offset within the discarded segment must not be applied to the next
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8), ids(spool.read(100)));
+    }
+
+    @Test
+    public void skipsExpiredRecords() throws Exception {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, 50);
+        spool.append(record(0, SMALL_PAYLOAD));
+        Thread.sleep(100);
+        spool.append(record(1, SMALL_PAYLOAD));
+        assertEquals(Arrays.asList(1), ids(spool.read(10)));
+        assertEquals(1, spool.getExpiredCount());
+        spool.commit();
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void reopensAtCommittedPosition() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        for (int i = 0; i < 6; i++) {
+            spool.append(record(i, LARGE_PAYLOAD));
+        }
+        assertEquals(Arrays.asList(0, 1), ids(spool.read(2)));
+        spool.commit();
+        spool.read(1);
+        // read but not committed when the process stopped
+        close(spool);
+
+        DiskSpool reopened = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        assertFalse(reopened.isEmpty());
+        assertEquals(Arrays.asList(2, 3, 4, 5), ids(reopened.read(100)));
+        reopened.append(record(6, LARGE_PAYLOAD));
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6), ids(reopened.read(100)));
+    }
+
+    @Test
+    public void tornRecordIsOverwrittenOnReopen() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        spool.append(record(0, SMALL_PAYLOAD));
+        spool.append(record(1, SMALL_PAYLOAD));
+        close(spool);
+        // a crash after the length of the third record was written but before its payload
+        int torn = 2 * (HEADER_BYTES + SMALL_PAYLOAD);
+        writeInt(segmentFiles().get(0), torn, SMALL_PAYLOAD);
+
+        DiskSpool reopened = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        assertEquals(Arrays.asList(0, 1), ids(reopened.read(10)));
+        reopened.append(record(2, SMALL_PAYLOAD));
+        assertEquals(Arrays.asList(0, 1, 2), ids(reopened.read(10)));
+    }
+
+    @Test
+    public void corruptRecordSkipsRestOfItsSegment() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        for (int i = 0; i < 5; i++) {
+            spool.append(record(i, LARGE_PAYLOAD));
+        }
+        close(spool);
+        // flip a payload byte of record 1, so it fails its CRC
+        Path first = segmentFiles().get(0);
+        int offset = HEADER_BYTES + LARGE_PAYLOAD + HEADER_BYTES + 10;
+        writeInt(first, offset, 0x5a5a5a5a);
+
+        DiskSpool reopened = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        assertEquals(Arrays.asList(0, 4), ids(reopened.read(100)));
+    }
+
+    @Test
+    public void lockKeepsSecondSpoolOut() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        try {
+            open(4 * SEGMENT_BYTES, DAY_MILLIS);
+            fail("opened a locked spool");
+        } catch (IOException expected) {
+        }
+        spool.append(record(0, SMALL_PAYLOAD));
+        close(spool);
+        // unlocked by close
+        assertEquals(Arrays.asList(0), ids(open(4 * SEGMENT_BYTES, DAY_MILLIS).read(10)));
+    }
+
+    @Test
+    public void closedSpoolRefusesRecords() throws IOException {
+        DiskSpool spool = open(4 * SEGMENT_BYTES, DAY_MILLIS);
+        close(spool);
+        assertFalse(spool.append(record(0, SMALL_PAYLOAD)));
+    }
+
+    private DiskSpool open(long maxBytes, long maxAgeMillis) throws IOException {
+        DiskSpool spool = new DiskSpool("test", _directory, SEGMENT_BYTES, maxBytes, maxAgeMillis, 10);
+        spool.start();
+        _open.add(spool);
+        return spool;
+    }
+
+    private void close(DiskSpool spool) {
+        spool.close();
+        _open.remove(spool);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(_directory, "segment-*")) {
+            segments.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static void writeInt(Path file, int offset, int value) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate(4).putInt(0, value);
+            channel.write(bytes, offset);
+        }
+    }
+
+    // a payload of the given size, starting with its id
+    private static byte[] record(int id, int size) {
+        return ByteBuffer.allocate(size).putInt(0, id).array();
+    }
+
+    private static List<Integer> ids(List<byte[]> records) {
+        List<Integer> ids = new ArrayList<>();
+        for (byte[] record : records) {
+            ids.add(ByteBuffer.wrap(record).getInt(0));
+        }
+        return ids;
+    }
+}
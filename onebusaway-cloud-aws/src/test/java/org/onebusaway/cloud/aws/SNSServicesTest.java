@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import org.junit.Test;
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.ExternalResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SNSServicesTest {
+
+    private static final String TOPIC = "arn:aws:sns:us-east-1:123456789012:test";
+
+    @Test
+    public void splitsIntoRequestsOfTenEntries() {
+        StubSns sns = new StubSns(entry -> null);
+        AggregateExternalResult result = services(sns).publishBatch(null, TOPIC, messages(25, "message"));
+        assertEquals(Arrays.asList(10, 10, 5), sns.requestSizes());
+        assertTrue(result.getSuccess());
+        assertEquals(25, result.getResults().size());
+        for (int i = 0; i < 25; i++) {
+            // each result is mapped back to its own message
+            assertEquals("id-message" + i, result.getResults().get(i).getResponseMessage());
+        }
+    }
+
+    @Test
+    public void splitsAtMaxBatchBytes() {
+        StubSns sns = new StubSns(entry -> null);
+        // two of these fit in 256 KB, a third does not
+        String hundredKb = repeat('a', 100 * 1024);
+        List<String> messages = Collections.nCopies(5, hundredKb);
+        assertTrue(services(sns).publishBatch(null, TOPIC, messages).getSuccess());
+        assertEquals(Arrays.asList(2, 2, 1), sns.requestSizes());
+    }
+
+    @Test
+    public void countsBytesNotCharacters() {
+        StubSns sns = new StubSns(entry -> null);
+        // 140 KB once encoded, so one per request
+        String accented = repeat('\u00e9', 70 * 1024);
+        assertTrue(services(sns).publishBatch(null, TOPIC, Arrays.asList(accented, accented)).getSuccess());
+        assertEquals(Arrays.asList(1, 1), sns.requestSizes());
+        assertEquals(4, SNSServices.utf8Length("\u00e9\u00e9"));
+        assertEquals(4, SNSServices.utf8Length("\ud83d\ude8c"));
+    }
+
+    @Test
+    public void oversizedMessageFailsWithoutBeingSent() {
+        StubSns sns = new StubSns(entry -> null);
+        String oversized = repeat('a', SNSServices.MAX_BATCH_BYTES + 1);
+        AggregateExternalResult result = services(sns).publishBatch(null, TOPIC,
+                Arrays.asList("first", oversized, "last"));
+        assertEquals(Arrays.asList(2), sns.requestSizes());
+        assertEquals(Arrays.asList("first", "last"), sns.sentMessages());
+        assertTrue(result.getResults().get(0).getSuccess());
+        assertFalse(result.getResults().get(1).getSuccess());
+        assertTrue(result.getResults().get(2).getSuccess());
+    }
+
+    @Test
+    public void retriesOnlyEntriesThatAreNotTheSendersFault() {
+        List<String> failedOnce = new ArrayList<>();
+        StubSns sns = new StubSns(entry -> {
+            if (entry.getMessage().equals("invalid")) {
+                return failure(entry, "InvalidParameter", true);
+            }
+            if (entry.getMessage().equals("unlucky") && !failedOnce.contains("unlucky")) {
+                failedOnce.add("unlucky");
+                return failure(entry, "InternalError", false);
+            }
+            return null;
+        });
+        AggregateExternalResult result = services(sns).publishBatch(null, TOPIC,
+                Arrays.asList("ok", "invalid", "unlucky", "fine"));
+        assertEquals(Arrays.asList(4, 1), sns.requestSizes());
+        // only the entry that failed through no fault of its own is sent again
+        assertEquals("unlucky", sns.requests.get(1).get(0).getMessage());
+        List<ExternalResult> results = result.getResults();
+        assertTrue(results.get(0).getSuccess());
+        assertFalse(results.get(1).getSuccess());
+        assertTrue(results.get(1).getErrorMessage().startsWith("InvalidParameter"));
+        assertTrue(results.get(2).getSuccess());
+        assertEquals("id-unlucky", results.get(2).getResponseMessage());
+        assertTrue(results.get(3).getSuccess());
+        assertEquals(1, result.getFailureCount());
+    }
+
+    @Test
+    public void givesUpAfterConfiguredAttempts() {
+        StubSns sns = new StubSns(entry -> entry.getMessage().equals("doomed")
+                ? failure(entry, "InternalError", false) : null);
+        AggregateExternalResult result = services(sns).publishBatch(null, TOPIC, Arrays.asList("doomed", "ok"));
+        // the default of three attempts
+        assertEquals(Arrays.asList(2, 1, 1), sns.requestSizes());
+        assertFalse(result.getResults().get(0).getSuccess());
+        assertTrue(result.getResults().get(1).getSuccess());
+    }
+
+    @Test
+    public void failedRequestFailsOnlyItsOwnEntries() {
+        StubSns sns = new StubSns(entry -> null);
+        sns.failRequest = 2;
+        AggregateExternalResult result = services(sns).publishBatch(null, TOPIC, messages(15, "message"));
+        assertEquals(Arrays.asList(10, 5), sns.requestSizes());
+        for (int i = 0; i < 15; i++) {
+            assertEquals("message " + i, i < 10, result.getResults().get(i).getSuccess());
+        }
+        assertEquals(5, result.getFailureCount());
+    }
+
+    private static SNSServices services(AmazonSNS sns) {
+        return new SNSServices() {
+            @Override
+            public AmazonSNS getSns(Credential credential, String topic) {
+                return sns;
+            }
+        };
+    }
+
+    private static BatchResultErrorEntry failure(PublishBatchRequestEntry entry, String code, boolean senderFault) {
+        return new BatchResultErrorEntry().withId(entry.getId()).withCode(code).withMessage("stub failure")
+                .withSenderFault(senderFault);
+    }
+
+    private static List<String> messages(int count, String prefix) {
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(prefix + i);
+        }
+        return messages;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Records each PublishBatch request and answers every entry with a success,
+     * or with the failure the outcome function returns for it.
+     */
+    private static class StubSns extends AbstractAmazonSNS {
+        private final Function<PublishBatchRequestEntry, BatchResultErrorEntry> _outcome;
+        private final List<List<PublishBatchRequestEntry>> requests = new ArrayList<>();
+        // the request, counting from 1, to fail as a whole; 0 for none
+        private int failRequest = 0;
+
+        StubSns(Function<PublishBatchRequestEntry, BatchResultErrorEntry> outcome) {
+            _outcome = outcome;
+        }
+
+        @Override
+        public PublishBatchResult publishBatch(PublishBatchRequest request) {
+            assertEquals(TOPIC, request.getTopicArn());
+            requests.add(new ArrayList<>(request.getPublishBatchRequestEntries()));
+            if (requests.size() == failRequest) {
+                AmazonServiceException e = new AmazonServiceException("stub request failure");
+                e.setStatusCode(400);
+                e.setErrorCode("InvalidParameter");
+                throw e;
+            }
+            List<PublishBatchResultEntry> successful = new ArrayList<>();
+            List<BatchResultErrorEntry> failed = new ArrayList<>();
+            for (PublishBatchRequestEntry entry : request.getPublishBatchRequestEntries()) {
+                BatchResultErrorEntry failure = _outcome.apply(entry);
+                if (failure != null) {
+                    failed.add(failure);
+                } else {
+                    successful.add(new PublishBatchResultEntry().withId(entry.getId())
+                            .withMessageId("id-" + entry.getMessage()));
+                }
+            }
+            return new PublishBatchResult().withSuccessful(successful).withFailed(failed);
+        }
+
+        List<Integer> requestSizes() {
+            List<Integer> sizes = new ArrayList<>();
+            for (List<PublishBatchRequestEntry> request : requests) {
+                sizes.add(request.size());
+            }
+            return sizes;
+        }
+
+        List<String> sentMessages() {
+            List<String> messages = new ArrayList<>();
+            for (List<PublishBatchRequestEntry> request : requests) {
+                for (PublishBatchRequestEntry entry : request) {
+                    messages.add(entry.getMessage());
+                }
+            }
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolReplayerTest {
+
+    private Path _directory;
+    private DiskSpool _spool;
+    private SpoolReplayer _replayer;
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("spool");
+        _spool = new DiskSpool("test", _directory, 4096, 4 * 4096, TimeUnit.DAYS.toMillis(1), 10);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (_replayer != null) {
+            _replayer.shutdown();
+        }
+        _spool.close();
+        try (Stream<Path> files = Files.walk(_directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replaysEveryRecordInOrder() throws Exception {
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 25; i++) {
+            _spool.append(record(i));
+        }
+        _replayer = new SpoolReplayer("test", _spool, batch -> sent.addAll(ids(batch)), 10, 10000);
+        _replayer.start();
+        awaitEmpty();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, sent);
+        assertEquals(25, _spool.getCommittedCount());
+    }
+
+    @Test
+    public void failedBatchIsSentAgain() throws Exception {
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attempts = new AtomicInteger();
+        _spool.append(record(0));
+        _spool.append(record(1));
+        _replayer = new SpoolReplayer("test", _spool, batch -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("service unavailable");
+            }
+            sent.addAll(ids(batch));
+        }, 10, 10000);
+        _replayer.reportOutage();
+        _replayer.start();
+        awaitEmpty();
+        assertEquals(2, attempts.get());
+        assertEquals(Arrays.asList(0, 1), sent);
+        // the first batch replayed ends the outage
+        assertFalse(_replayer.isOutage());
+    }
+
+    @Test
+    public void transientFailures() {
+        assertTrue(SpoolReplayer.isTransient(serviceException(503, "ServiceUnavailable")));
+        assertTrue(SpoolReplayer.isTransient(serviceException(400, "Throttling")));
+        assertFalse(SpoolReplayer.isTransient(serviceException(400, "InvalidParameterValue")));
+        assertFalse(SpoolReplayer.isTransient(serviceException(403, "AccessDenied")));
+        assertTrue(SpoolReplayer.isTransient(new AmazonClientException("Unable to execute HTTP request")));
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!_spool.isEmpty()) {
+            assertTrue("spool not replayed", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static AmazonServiceException serviceException(int status, String code) {
+        AmazonServiceException e = new AmazonServiceException(code);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    private static byte[] record(int id) {
+        return ByteBuffer.allocate(4).putInt(0, id).array();
+    }
+
+    private static List<Integer> ids(List<byte[]> records) {
+        List<Integer> ids = new ArrayList<>();
+        for (byte[] record : records) {
+            ids.add(ByteBuffer.wrap(record).getInt(0));
+        }
+        return ids;
+    }
+}
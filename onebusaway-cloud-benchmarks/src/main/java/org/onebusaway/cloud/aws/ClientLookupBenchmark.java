@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.s3.AmazonS3;
+import org.onebusaway.cloud.api.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the cached client for a credential, which every call does.  Runs on
+ * several threads, as the registry is shared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ClientLookupBenchmark {
+
+    private S3Services _s3;
+    private CloudWatchServices _cloudwatch;
+    private Credential _credential;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        LocalS3.shared();
+        LocalCloudWatch.shared();
+        _credential = new CredentialContainer().getDefaultCredential();
+        _s3 = new S3Services();
+        _cloudwatch = new CloudWatchServices();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _cloudwatch.shutdown();
+    }
+
+    @Benchmark
+    public AmazonS3 s3Provider() {
+        return _s3.getS3Provider(new CredentialContainer(CredentialContainer.DEFAULT_PROFILE,
+                CredentialContainer.DEFAULT_REGION));
+    }
+
+    @Benchmark
+    public AmazonCloudWatch cloudWatchClient() {
+        return _cloudwatch.getClient(_credential);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.S3Object;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking S3 GETs, as the asynchronous API issues them, on the default bounded
+ * pool of platform threads and in the virtual thread mode of CloudExecutors.
+ * Each operation is a burst of concurrent requests to a local stand-in that adds
+ * a fixed latency; the peakPlatformThreads counter shows what each mode costs in
+ * threads.  The virtual mode needs a Java 21 JVM, and falls back to the pool on
+ * older ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    private static final String BUCKET = "benchmark";
+    // as ExternalServicesAws sizes its pools
+    private static final int PLATFORM_THREADS = 16;
+    private static final int QUEUE_SIZE = 10000;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"200"})
+    public int burst;
+
+    @Param({"20"})
+    public long latency;
+
+    private LocalS3 _server;
+    private AmazonS3 _s3;
+    private ExecutorService _executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        _server = new LocalS3();
+        _server.setLatencyMillis(latency);
+        _server.put(BUCKET, "object", new byte[1024]);
+        // enough connections that the pool, not the HTTP client, limits concurrency
+        _s3 = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(_server.getEndpoint(), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("benchmark", "benchmark")))
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(burst))
+                .build();
+        System.setProperty(CloudExecutors.VIRTUAL_THREADS_KEY, Boolean.toString(virtualThreads));
+        System.setProperty("oba.cloud.aws.benchmark.maxConcurrency", Integer.toString(burst));
+        _executor = CloudExecutors.newExecutor("benchmark", PLATFORM_THREADS, QUEUE_SIZE, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _executor.shutdownNow();
+        _s3.shutdown();
+        _server.close();
+    }
+
+    @Benchmark
+    public int burst(ThreadCount threads) throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>(burst);
+        for (int i = 0; i < burst; i++) {
+            futures.add(_executor.submit(this::get));
+        }
+        int bytes = 0;
+        for (Future<Integer> future : futures) {
+            bytes += future.get();
+        }
+        threads.record();
+        return bytes;
+    }
+
+    private int get() throws Exception {
+        try (S3Object object = _s3.getObject(BUCKET, "object");
+             InputStream in = object.getObjectContent()) {
+            byte[] buffer = new byte[4096];
+            int total = 0;
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * The most platform threads alive at once during the iteration.  Virtual
+     * threads are not counted by the JVM's thread bean.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadCount {
+        private final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+        public long peakPlatformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            _threads.resetPeakThreadCount();
+            peakPlatformThreads = 0;
+        }
+
+        void record() {
+            peakPlatformThreads = _threads.getPeakThreadCount();
+        }
+    }
+}
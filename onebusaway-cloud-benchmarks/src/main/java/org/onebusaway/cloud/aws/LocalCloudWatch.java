@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts PutMetricData requests on a loopback port and discards them, counting
+ * requests and bytes, so the publishing paths can be measured without the network.
+ */
+class LocalCloudWatch implements AutoCloseable {
+
+    private static final byte[] RESPONSE = ("<PutMetricDataResponse xmlns=\"http://monitoring.amazonaws.com/doc/2010-08-01/\">"
+            + "<ResponseMetadata><RequestId>benchmark</RequestId></ResponseMetadata>"
+            + "</PutMetricDataResponse>").getBytes(StandardCharsets.UTF_8);
+
+    private static LocalCloudWatch _shared;
+
+    private final HttpServer _server;
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+
+    LocalCloudWatch() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", this::handle);
+        _server.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("local-cloudwatch")));
+        _server.start();
+    }
+
+    /**
+     * The server behind the default credential's CloudWatch client.  It lasts as long
+     * as the JVM, because the client registry keeps the first client made for a credential.
+     */
+    static synchronized LocalCloudWatch shared() throws IOException {
+        if (_shared == null) {
+            _shared = new LocalCloudWatch();
+            AmazonCloudWatch client = _shared.newClient();
+            AwsClientRegistry.getInstance().getClient(AmazonCloudWatch.class, CredentialContainer.getDefault(),
+                    cc -> client);
+        }
+        return _shared;
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    AmazonCloudWatch newClient() {
+        return AmazonCloudWatchClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(getEndpoint(), "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("benchmark", "benchmark")))
+                .build();
+    }
+
+    long getRequestCount() { return _requests.get(); }
+    long getRequestBytes() { return _bytes.get(); }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                total += n;
+            }
+            _bytes.addAndGet(total);
+            _requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        _server.stop(0);
+    }
+}
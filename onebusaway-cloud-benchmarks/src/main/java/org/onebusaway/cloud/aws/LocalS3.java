@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Enough of S3 on a loopback port for GetObject, including byte ranges, so the
+ * download paths can be measured without the network.  Objects live in memory
+ * under path style URLs, /bucket/key.
+ */
+class LocalS3 implements AutoCloseable {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private static LocalS3 _shared;
+
+    private final HttpServer _server;
+    private final Map<String, byte[]> _objects = new ConcurrentHashMap<>();
+    private final Map<String, String> _eTags = new ConcurrentHashMap<>();
+    private volatile long _latencyMillis = 0;
+
+    LocalS3() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", this::handle);
+        _server.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("local-s3")));
+        _server.start();
+    }
+
+    /**
+     * The server behind the default credential's S3 client.  It lasts as long as the
+     * JVM, because the client registry keeps the first client made for a credential.
+     */
+    static synchronized LocalS3 shared() throws IOException {
+        if (_shared == null) {
+            _shared = new LocalS3();
+            AmazonS3 client = _shared.newClient();
+            AwsClientRegistry.getInstance().getClient(AmazonS3.class, CredentialContainer.getDefault(), cc -> client);
+        }
+        return _shared;
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    /**
+     * A client for this server, with static credentials and path style access.
+     */
+    AmazonS3 newClient() {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(getEndpoint(), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("benchmark", "benchmark")))
+                .build();
+    }
+
+    /**
+     * Delay every response, to stand in for the round trip to a real region.
+     */
+    void setLatencyMillis(long latencyMillis) {
+        _latencyMillis = latencyMillis;
+    }
+
+    void put(String bucket, String key, byte[] content) throws Exception {
+        String path = "/" + bucket + "/" + key;
+        _objects.put(path, content);
+        // a plain MD5 ETag, which the SDK checks whole object downloads against
+        _eTags.put(path, toHex(MessageDigest.getInstance("MD5").digest(content)));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (_latencyMillis > 0) {
+                Thread.sleep(_latencyMillis);
+            }
+            String path = exchange.getRequestURI().getPath();
+            byte[] content = _objects.get(path);
+            if (content == null) {
+                send(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>".getBytes(), 0, -1);
+                return;
+            }
+            exchange.getResponseHeaders().add("ETag", "\"" + _eTags.get(path) + "\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Thu, 01 Jan 2026 00:00:00 GMT");
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                send(exchange, 200, content, 0, content.length);
+                return;
+            }
+            Matcher m = RANGE.matcher(range);
+            if (!m.matches() || Long.parseLong(m.group(1)) >= content.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+                send(exchange, 416, new byte[0], 0, -1);
+                return;
+            }
+            int start = Integer.parseInt(m.group(1));
+            int end = m.group(2).isEmpty() ? content.length - 1
+                    : (int) Math.min(content.length - 1, Long.parseLong(m.group(2)));
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + end + "/" + content.length);
+            send(exchange, 206, content, start, end - start + 1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] content, int offset, int length)
+            throws IOException {
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        if (length < 0) {
+            length = content.length;
+        }
+        exchange.sendResponseHeaders(status, head || length == 0 ? -1 : length);
+        if (!head && length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content, offset, length);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        _server.stop(0);
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.onebusaway.cloud.api.Credential;
+import org.onebusaway.cloud.api.MetricHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CloudWatch publishing path: building MetricDatums, splitting them into
+ * PutMetricData requests, and publishing them to a local stand-in, against
+ * recording through a registered MetricHandle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricBenchmark {
+
+    @Param({"20", "1000", "5000"})
+    public int metrics;
+
+    private CloudWatchServices _cloudwatch;
+    private Credential _credential;
+    private List<String> _names;
+    private List<String> _dimensionNames;
+    private List<String> _dimensionValues;
+    private List<Double> _values;
+    private List<MetricDatum> _datums;
+    private MetricHandle _handle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        LocalCloudWatch.shared();
+        _credential = new CredentialContainer().getDefaultCredential();
+        _cloudwatch = new CloudWatchServices();
+        _handle = _cloudwatch.registerMetric(_credential, "Benchmark", "Updates",
+                new String[]{"Agency"}, new String[]{"agency-1"});
+        _names = new ArrayList<>(metrics);
+        _dimensionNames = new ArrayList<>(metrics);
+        _dimensionValues = new ArrayList<>(metrics);
+        _values = new ArrayList<>(metrics);
+        _datums = new ArrayList<>(metrics);
+        for (int i = 0; i < metrics; i++) {
+            _names.add("Metric" + (i % 50));
+            _dimensionNames.add("Agency");
+            _dimensionValues.add("agency-" + (i % 7));
+            _values.add((double) i);
+            _datums.add(_cloudwatch.getMetricAsMetricDatum(_names.get(i),
+                    Collections.singletonList(new Dimension().withName("Agency").withValue(_dimensionValues.get(i))),
+                    i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _cloudwatch.shutdown();
+    }
+
+    @Benchmark
+    public MetricDatum[] buildDatums() {
+        MetricDatum[] datums = new MetricDatum[metrics];
+        for (int i = 0; i < metrics; i++) {
+            datums[i] = _cloudwatch.getMetricAsMetricDatum(_names.get(i),
+                    Collections.singletonList(new Dimension().withName("Agency").withValue(_dimensionValues.get(i))),
+                    _values.get(i));
+        }
+        return datums;
+    }
+
+    @Benchmark
+    public List<List<MetricDatum>> chunk() {
+        return _cloudwatch.chunk(_datums);
+    }
+
+    @Benchmark
+    public void recordWithHandle() {
+        _handle.record(42.0);
+    }
+
+    @Benchmark
+    public Object publishMetrics() {
+        return _cloudwatch.publishMetrics(_credential, "Benchmark", _names, _dimensionNames, _dimensionValues, _values);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.aws;
+
+import org.onebusaway.cloud.api.ExternalResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading an object through getFileAsStream from a local S3 stand-in, with and
+ * without parallel range downloads.  Divide the object size by the time per
+ * operation for throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class S3StreamBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    @Param({"1048576", "67108864"})
+    public int objectSize;
+
+    @Param({"false", "true"})
+    public boolean parallelDownload;
+
+    // per response, in milliseconds
+    @Param({"0", "20"})
+    public long latency;
+
+    private ExternalServicesAws _services;
+    private String _url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // getFileAsStream without a profile uses the default credential's client
+        LocalS3 server = LocalS3.shared();
+        server.setLatencyMillis(latency);
+        byte[] content = new byte[objectSize];
+        new Random(objectSize).nextBytes(content);
+        _url = "s3://" + BUCKET + "/object-" + objectSize;
+        server.put(BUCKET, "object-" + objectSize, content);
+        System.setProperty(S3Services.PARALLEL_DOWNLOAD_KEY, Boolean.toString(parallelDownload));
+        _services = new ExternalServicesAws();
+    }
+
+    @Benchmark
+    public long getFileAsStream(Blackhole blackhole) {
+        long[] total = new long[1];
+        ExternalResult result = _services.getFileAsStream(_url, (InputStream in) -> {
+            byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                total[0] += n;
+                blackhole.consume(buffer);
+            }
+        });
+        if (!result.getSuccess() || total[0] != objectSize) {
+            throw new IllegalStateException("read " + total[0] + " of " + objectSize + " bytes: " + result);
+        }
+        return total[0];
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.noop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The noop publishMetrics, which builds a description of every call for its log
+ * message.  This is the metric cost deployments without a cloud backend pay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NoopPublishBenchmark {
+
+    @Param({"1", "20", "1000"})
+    public int metrics;
+
+    private ExternalServicesNoopImpl _services;
+    private List<String> _names;
+    private List<String> _dimensionNames;
+    private List<String> _dimensionValues;
+    private List<Double> _values;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        _services = new ExternalServicesNoopImpl();
+        _names = new ArrayList<>(metrics);
+        _dimensionNames = new ArrayList<>(metrics);
+        _dimensionValues = new ArrayList<>(metrics);
+        _values = new ArrayList<>(metrics);
+        for (int i = 0; i < metrics; i++) {
+            _names.add("Metric" + i);
+            _dimensionNames.add("Agency");
+            _dimensionValues.add("agency-" + (i % 7));
+            _values.add((double) i);
+        }
+    }
+
+    @Benchmark
+    public Object publishMetric() {
+        return _services.publishMetric("Benchmark", "Metric", "Agency", "agency-1", 1.0);
+    }
+
+    @Benchmark
+    public Object publishMetrics() {
+        return _services.publishMetrics("Benchmark", _names, _dimensionNames, _dimensionValues, _values);
+    }
+}
@@ -15,16 +15,25 @@
  */
 package org.onebusaway.cloud.noop;
 
+import org.onebusaway.cloud.api.AsyncExternalServices;
 import org.onebusaway.cloud.api.Credential;
 import org.onebusaway.cloud.api.ExternalResult;
-import org.onebusaway.cloud.api.ExternalServices;
 import org.onebusaway.cloud.api.InputStreamConsumer;
+import org.onebusaway.cloud.api.LeadershipElectionService;
+import org.onebusaway.cloud.api.LeadershipListener;
+import org.onebusaway.cloud.api.MeterRegistry;
+import org.onebusaway.cloud.api.MetricDescriptor;
+import org.onebusaway.cloud.api.MetricHandle;
+import org.onebusaway.cloud.api.NoopMeterRegistry;
+import org.onebusaway.cloud.api.ZipEntryConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-public class ExternalServicesNoopImpl implements ExternalServices {
+public class ExternalServicesNoopImpl implements AsyncExternalServices {
     private final Logger _log = LoggerFactory.getLogger(ExternalServicesNoopImpl.class);
 
     @Override
@@ -33,6 +42,24 @@ public class ExternalServicesNoopImpl implements ExternalServices {
         return new AlwaysTrueExternalResult();
     }
 
+    @Override
+    public ExternalResult publishMessage(Credential credential, String topic, String messageContents) {
+        _log.info("publishMessage({" + topic + "}, {" + messageContents + "})");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult publishMessages(String topic, List<String> messages) {
+        _log.info("publishMessages({" + topic + "}, {" + messages + "})");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult publishMessages(Credential credential, String topic, List<String> messages) {
+        _log.info("publishMessages({" + topic + "}, {" + messages + "})");
+        return new AlwaysTrueExternalResult();
+    }
+
     @Override
     public ExternalResult publishMetric(String topic, String metricName, String dimensionName, String dimensionValue, double value) {
         _log.info("publishMetric({" + topic + ":" + metricName + "}, {"
@@ -110,6 +137,54 @@ public class ExternalServicesNoopImpl implements ExternalServices {
         return publishMultiDimensionalMetric(namespace, metricName, dimensionName, dimensionValue, value);
     }
 
+    @Override
+    public ExternalResult publishMetric(String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        _log.info("publishMetric({" + namespace + ":" + metric + "}, {"
+                + dimensionName + ":" + dimensionValue + "}, {" + value + "})");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult publishMetric(Credential credential, String namespace, MetricDescriptor metric, String dimensionName, String dimensionValue, double value) {
+        return publishMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        _log.info("publishMetric({" + namespace + ":" + metric + "}, {"
+                + Arrays.toString(dimensionName) + "=" + Arrays.toString(dimensionValue) + "}, {" + value + "})");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult publishMultiDimensionalMetric(Credential credential, String namespace, MetricDescriptor metric, String[] dimensionName, String[] dimensionValue, double value) {
+        return publishMultiDimensionalMetric(namespace, metric, dimensionName, dimensionValue, value);
+    }
+
+    @Override
+    public MetricHandle registerMetric(String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        // logged once here rather than per sample
+        _log.info("registerMetric({" + namespace + ":" + metricName + "}, {"
+                + Arrays.toString(dimensionName) + "=" + Arrays.toString(dimensionValue) + "})");
+        return value -> { };
+    }
+
+    @Override
+    public MetricHandle registerMetric(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue) {
+        return registerMetric(namespace, metricName, dimensionName, dimensionValue);
+    }
+
+    @Override
+    public MeterRegistry getMeterRegistry(String namespace) {
+        _log.info("getMeterRegistry({" + namespace + "})");
+        return NoopMeterRegistry.INSTANCE;
+    }
+
+    @Override
+    public MeterRegistry getMeterRegistry(Credential credential, String namespace) {
+        return getMeterRegistry(namespace);
+    }
+
     @Override
     public ExternalResult getFileAsStream(String url, InputStreamConsumer callback, String profile) {
         _log.info("getFileAsStream({" + url + "}, " + profile + " }");
@@ -128,6 +203,42 @@ public class ExternalServicesNoopImpl implements ExternalServices {
         return new AlwaysTrueExternalResult();
     }
 
+    @Override
+    public ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer callback, String profile, String region) {
+        _log.info("getZipEntriesAsStream({" + url + " }");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult getZipEntriesAsStream(String url, ZipEntryConsumer callback) {
+        _log.info("getZipEntriesAsStream({" + url + " }");
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult getFile(String url, String file, String profile, String region) {
+        _log.info("getFile({" + url + " } to " + file);
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult getFile(String url, String file) {
+        _log.info("getFile({" + url + " } to " + file);
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult getDirectory(String url, String directory, String profile, String region) {
+        _log.info("getDirectory({" + url + " } to " + directory);
+        return new AlwaysTrueExternalResult();
+    }
+
+    @Override
+    public ExternalResult getDirectory(String url, String directory) {
+        _log.info("getDirectory({" + url + " } to " + directory);
+        return new AlwaysTrueExternalResult();
+    }
+
     @Override
     public ExternalResult putFile(String url, String file, String profile, String region) {
         _log.info("putFile({" + url + " } from " + file);
@@ -144,4 +255,120 @@ public class ExternalServicesNoopImpl implements ExternalServices {
     public boolean isInstancePrimary() {
         return true;
     }
+
+    @Override
+    public LeadershipElectionService getLeadershipElectionService() {
+        return new LeadershipElectionService() {
+            @Override
+            public boolean isInstancePrimary() { return true; }
+            @Override
+            public long getFencingToken() { return -1; }
+            @Override
+            public void addListener(LeadershipListener listener) { listener.leadershipAcquired(-1); }
+            @Override
+            public void removeListener(LeadershipListener listener) { }
+            @Override
+            public void shutdown() { }
+        };
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessageAsync(String topic, String messageContents) {
+        return CompletableFuture.completedFuture(publishMessage(topic, messageContents));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessageAsync(Credential credential, String topic, String messageContents) {
+        return CompletableFuture.completedFuture(publishMessage(credential, topic, messageContents));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessagesAsync(String topic, List<String> messages) {
+        return CompletableFuture.completedFuture(publishMessages(topic, messages));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMessagesAsync(Credential credential, String topic, List<String> messages) {
+        return CompletableFuture.completedFuture(publishMessages(credential, topic, messages));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricAsync(Credential credential, String namespace, String metricName, String dimensionName, String dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return CompletableFuture.completedFuture(publishMetrics(namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMetricsAsync(Credential credential, String namespace, List<String> metricNames, List<String> dimensionNames, List<String> dimensionValues, List<Double> values) {
+        return CompletableFuture.completedFuture(publishMetrics(credential, namespace, metricNames, dimensionNames, dimensionValues, values));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMultiDimensionalMetric(namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> publishMultiDimensionalMetricAsync(Credential credential, String namespace, String metricName, String[] dimensionName, String[] dimensionValue, double value) {
+        return CompletableFuture.completedFuture(publishMultiDimensionalMetric(credential, namespace, metricName, dimensionName, dimensionValue, value));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer callback, String profile, String region) {
+        return CompletableFuture.completedFuture(getFileAsStream(url, callback, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsStreamAsync(String url, InputStreamConsumer callback) {
+        return CompletableFuture.completedFuture(getFileAsStream(url, callback));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer callback, String profile, String region) {
+        return CompletableFuture.completedFuture(getZipEntriesAsStream(url, callback, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getZipEntriesAsStreamAsync(String url, ZipEntryConsumer callback) {
+        return CompletableFuture.completedFuture(getZipEntriesAsStream(url, callback));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsync(String url, String file, String profile, String region) {
+        return CompletableFuture.completedFuture(getFile(url, file, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getFileAsync(String url, String file) {
+        return CompletableFuture.completedFuture(getFile(url, file));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory, String profile, String region) {
+        return CompletableFuture.completedFuture(getDirectory(url, directory, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> getDirectoryAsync(String url, String directory) {
+        return CompletableFuture.completedFuture(getDirectory(url, directory));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> putFileAsync(String url, String file, String profile, String region) {
+        return CompletableFuture.completedFuture(putFile(url, file, profile, region));
+    }
+
+    @Override
+    public CompletableFuture<ExternalResult> putFileAsync(String url, String file) {
+        return CompletableFuture.completedFuture(putFile(url, file));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.noop;
+
+import org.onebusaway.cloud.api.LeaseElectionService;
+
+/**
+ * A lease election within one JVM.  Services created with the same name elect one
+ * leader among themselves, which makes failover testable without a cloud store.
+ */
+public class InMemoryLeadershipElectionService extends LeaseElectionService {
+
+    public static final long DEFAULT_LEASE_MILLIS = 800;
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 200;
+
+    public InMemoryLeadershipElectionService(String name) {
+        this(name, DEFAULT_LEASE_MILLIS, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    public InMemoryLeadershipElectionService(String name, long leaseMillis, long heartbeatMillis) {
+        super(new InMemoryLeaseStore(name), defaultHolderId(), leaseMillis, heartbeatMillis);
+    }
+}
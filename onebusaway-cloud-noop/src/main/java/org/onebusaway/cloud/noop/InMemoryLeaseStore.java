@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.noop;
+
+import org.onebusaway.cloud.api.Lease;
+import org.onebusaway.cloud.api.LeaseStore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leases held in memory, shared by every store of the same name in the JVM, so
+ * several election services can contend for leadership in a test.
+ */
+public class InMemoryLeaseStore implements LeaseStore {
+
+    private static final Map<String, Lease> _leases = new ConcurrentHashMap<>();
+    private static final AtomicLong _versions = new AtomicLong();
+
+    private final String _name;
+
+    public InMemoryLeaseStore(String name) {
+        _name = name;
+    }
+
+    @Override
+    public Lease read() {
+        Lease lease = _leases.get(_name);
+        return lease == null ? null : copy(lease, lease.getVersion());
+    }
+
+    @Override
+    public String write(Lease lease, String expectedVersion) {
+        String version = Long.toString(_versions.incrementAndGet());
+        Lease written = copy(lease, version);
+        if (expectedVersion == null) {
+            return _leases.putIfAbsent(_name, written) == null ? version : null;
+        }
+        Lease current = _leases.get(_name);
+        if (current == null || !current.getVersion().equals(expectedVersion)) {
+            return null;
+        }
+        return _leases.replace(_name, current, written) ? version : null;
+    }
+
+    /**
+     * Forget the lease, e.g. between tests.
+     */
+    public void clear() {
+        _leases.remove(_name);
+    }
+
+    private static Lease copy(Lease lease, String version) {
+        return new Lease(lease.getHolder(), lease.getToken(), lease.getDurationMillis(), lease.isReleased())
+                .withVersion(version);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2019 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.cloud.noop;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onebusaway.cloud.api.Lease;
+import org.onebusaway.cloud.api.LeadershipListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryLeadershipElectionServiceTest {
+
+    private static final long LEASE_MILLIS = 400;
+    private static final long HEARTBEAT_MILLIS = 20;
+    // long enough that only a released lease can change hands within a test
+    private static final long LONG_LEASE_MILLIS = 60000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final String _name = "test-" + UUID.randomUUID();
+    private final List<InMemoryLeadershipElectionService> _services = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (InMemoryLeadershipElectionService service : _services) {
+            service.shutdown();
+        }
+        new InMemoryLeaseStore(_name).clear();
+    }
+
+    @Test
+    public void firstServiceLeadsWithTokenOne() throws Exception {
+        InMemoryLeadershipElectionService a = start(LONG_LEASE_MILLIS);
+        awaitTrue(a::isInstancePrimary);
+        assertEquals(1, a.getFencingToken());
+
+        InMemoryLeadershipElectionService b = start(LONG_LEASE_MILLIS);
+        Thread.sleep(HEARTBEAT_MILLIS * 10);
+        assertTrue(a.isInstancePrimary());
+        assertFalse(b.isInstancePrimary());
+        assertEquals(-1, b.getFencingToken());
+    }
+
+    @Test
+    public void releasedLeaseIsTakenOverAtOnce() throws Exception {
+        InMemoryLeadershipElectionService a = start(LONG_LEASE_MILLIS);
+        awaitTrue(a::isInstancePrimary);
+        InMemoryLeadershipElectionService b = start(LONG_LEASE_MILLIS);
+
+        a.shutdown();
+        assertFalse(a.isInstancePrimary());
+        assertEquals(-1, a.getFencingToken());
+        // well within the lease, so b did not wait for it to expire
+        awaitTrue(b::isInstancePrimary);
+        assertEquals(2, b.getFencingToken());
+    }
+
+    @Test
+    public void abandonedLeaseIsTakenOverOnceExpired() throws Exception {
+        // a holder that stopped renewing without releasing, e.g. a crashed process
+        InMemoryLeaseStore store = new InMemoryLeaseStore(_name);
+        assertTrue(store.write(new Lease("crashed", 7, LEASE_MILLIS, false), null) != null);
+
+        long started = System.nanoTime();
+        InMemoryLeadershipElectionService a = start(LEASE_MILLIS);
+        awaitTrue(a::isInstancePrimary);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("took over after " + waitedMillis + "ms", waitedMillis >= LEASE_MILLIS);
+        assertEquals(8, a.getFencingToken());
+        assertEquals(a.getHolderId(), store.read().getHolder());
+    }
+
+    @Test
+    public void fencingTokenIncrementsWithEachHandover() throws Exception {
+        InMemoryLeadershipElectionService a = start(LONG_LEASE_MILLIS);
+        awaitTrue(a::isInstancePrimary);
+        InMemoryLeadershipElectionService b = start(LONG_LEASE_MILLIS);
+        InMemoryLeadershipElectionService c = start(LONG_LEASE_MILLIS);
+        long previous = a.getFencingToken();
+
+        InMemoryLeadershipElectionService leader = a;
+        for (int handover = 0; handover < 2; handover++) {
+            leader.shutdown();
+            awaitTrue(() -> b.isInstancePrimary() || c.isInstancePrimary());
+            leader = b.isInstancePrimary() ? b : c;
+            assertEquals(previous + 1, leader.getFencingToken());
+            previous = leader.getFencingToken();
+        }
+        assertEquals(3, previous);
+    }
+
+    @Test
+    public void listenersHearOfEachChange() throws Exception {
+        InMemoryLeadershipElectionService a = start(LONG_LEASE_MILLIS);
+        awaitTrue(a::isInstancePrimary);
+        InMemoryLeadershipElectionService b = start(LONG_LEASE_MILLIS);
+        BlockingQueue<Long> events = new LinkedBlockingQueue<>();
+        b.addListener(new LeadershipListener() {
+            @Override
+            public void leadershipAcquired(long fencingToken) {
+                events.add(fencingToken);
+            }
+
+            @Override
+            public void leadershipLost() {
+                events.add(-1L);
+            }
+        });
+
+        a.shutdown();
+        assertEquals(Long.valueOf(2), events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        b.shutdown();
+        assertEquals(Long.valueOf(-1), events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private InMemoryLeadershipElectionService start(long leaseMillis) {
+        InMemoryLeadershipElectionService service =
+                new InMemoryLeadershipElectionService(_name, leaseMillis, HEARTBEAT_MILLIS);
+        _services.add(service);
+        service.start();
+        return service;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() - deadline < 0);
+            Thread.sleep(5);
+        }
+    }
+}